@@ -19,8 +19,10 @@ package com.android.providers.tv;
 import android.app.IntentService;
 import android.content.Intent;
 import android.database.Cursor;
+import android.media.tv.TvContract.Channels;
 import android.media.tv.TvContract.Programs;
 import android.media.tv.TvContract.WatchedPrograms;
+import android.os.Bundle;
 import android.os.SystemClock;
 import android.text.format.DateUtils;
 import android.util.Log;
@@ -71,6 +73,13 @@ public class EpgDataCleanupService extends IntentService {
         if (maxWatchedProgramEntryCount > 0) {
             clearOverflowWatchHistory(maxWatchedProgramEntryCount);
         }
+
+        // Goes last, so that the deletions above are logged before the change log is truncated.
+        int maxChangeLogEntryCount =
+                getResources().getInteger(R.integer.max_change_log_entry_count);
+        if (maxChangeLogEntryCount > 0) {
+            clearOverflowChangeLog(maxChangeLogEntryCount);
+        }
     }
 
     /**
@@ -107,6 +116,18 @@ public class EpgDataCleanupService extends IntentService {
         }
     }
 
+    /**
+     * Clear the change log except last {@code maxEntryCount} entries. Clients that haven't
+     * caught up with the remaining entries have to query all the data again.
+     */
+    @VisibleForTesting
+    void clearOverflowChangeLog(int maxEntryCount) {
+        Bundle extras = new Bundle();
+        extras.putInt(TvProvider.EXTRA_MAX_ENTRY_COUNT, maxEntryCount);
+        getContentResolver().call(Channels.CONTENT_URI, TvProvider.METHOD_TRUNCATE_CHANGES, null,
+                extras);
+    }
+
     /**
      * Clear watch history except last {@code maxEntryCount} entries.
      * "Last" here is based on watch start time, and so, in theory, history entry for program
@@ -16,24 +16,27 @@
 
 package com.android.providers.tv;
 
-import android.annotation.SuppressLint;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.pm.PackageManager;
+import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.media.tv.TvContract;
@@ -44,30 +47,71 @@ import android.media.tv.TvContract.Programs.Genres;
 import android.media.tv.TvContract.WatchedPrograms;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Binder;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.ParcelFileDescriptor.AutoCloseInputStream;
+import android.os.ParcelFileDescriptor.AutoCloseOutputStream;
+import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.Log;
+import android.util.LongSparseArray;
+import android.util.LruCache;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.SomeArgs;
+import com.android.providers.tv.util.CursorSnapshot;
+import com.android.providers.tv.util.DurationStats;
+import com.android.providers.tv.util.EpgRecordFormat;
+import com.android.providers.tv.util.EpgRecordReader;
+import com.android.providers.tv.util.EpgRecordWriter;
+import com.android.providers.tv.util.GenreMapper;
+import com.android.providers.tv.util.NotificationDispatcher;
 import com.android.providers.tv.util.SqlParams;
+import com.android.providers.tv.util.TimedStatement;
+import com.android.providers.tv.util.XmltvParser;
 import com.google.android.collect.Sets;
 
 import libcore.io.IoUtils;
+import libcore.io.Streams;
+import org.xmlpull.v1.XmlPullParserException;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * TV content provider. The contract between this provider and applications is defined in
@@ -82,28 +126,73 @@ public class TvProvider extends ContentProvider {
     private static final String OP_UPDATE = "update";
     private static final String OP_DELETE = "delete";
 
-    private static final int DATABASE_VERSION = 23;
-    private static final String DATABASE_NAME = "tv.db";
+    @VisibleForTesting
+    static final int DATABASE_VERSION = 33;
+    // The oldest version that can be upgraded without losing data. Databases older than this are
+    // dropped and recreated.
+    @VisibleForTesting
+    static final int MIN_UPGRADABLE_DATABASE_VERSION = 23;
+    @VisibleForTesting
+    static final String DATABASE_NAME = "tv.db";
     private static final String CHANNELS_TABLE = "channels";
     private static final String PROGRAMS_TABLE = "programs";
     private static final String WATCHED_PROGRAMS_TABLE = "watched_programs";
+    private static final String PROGRAMS_FTS_TABLE = "programs_fts";
+    private static final String LOGOS_TABLE = "logos";
+    private static final String CHANNEL_LOGOS_TABLE = "channel_logos";
+    private static final String CHANGE_LOG_TABLE = "change_log";
+    private static final String CHANGE_LOG_STATE_TABLE = "change_log_state";
     private static final String DELETED_CHANNELS_TABLE = "deleted_channels";  // Deprecated
     private static final String PROGRAMS_TABLE_PACKAGE_NAME_INDEX = "programs_package_name_index";
+    // Deprecated
     private static final String PROGRAMS_TABLE_CHANNEL_ID_INDEX = "programs_channel_id_index";
+    private static final String PROGRAMS_TABLE_CHANNEL_ID_TIME_INDEX =
+            "programs_channel_id_time_index";
     private static final String PROGRAMS_TABLE_START_TIME_INDEX = "programs_start_time_index";
     private static final String PROGRAMS_TABLE_END_TIME_INDEX = "programs_end_time_index";
+    // Deprecated
+    private static final String PROGRAMS_TABLE_END_TIME_GENRE_INDEX =
+            "programs_end_time_genre_index";
+    private static final String PROGRAMS_FTS_TABLE_INSERT_TRIGGER = "programs_fts_insert";
+    private static final String PROGRAMS_FTS_TABLE_BEFORE_UPDATE_TRIGGER =
+            "programs_fts_before_update";
+    private static final String PROGRAMS_FTS_TABLE_AFTER_UPDATE_TRIGGER =
+            "programs_fts_after_update";
+    private static final String PROGRAMS_FTS_TABLE_DELETE_TRIGGER = "programs_fts_delete";
+    private static final String PROGRAMS_FTS_COLUMNS = Programs.COLUMN_TITLE + ","
+            + Programs.COLUMN_EPISODE_TITLE + "," + Programs.COLUMN_SHORT_DESCRIPTION + ","
+            + Programs.COLUMN_LONG_DESCRIPTION;
     private static final String WATCHED_PROGRAMS_TABLE_CHANNEL_ID_INDEX =
             "watched_programs_channel_id_index";
+    private static final String WATCHED_PROGRAMS_TABLE_WATCH_START_TIME_INDEX =
+            "watched_programs_watch_start_time_index";
+    private static final String WATCHED_PROGRAMS_TABLE_UNCONSOLIDATED_INDEX =
+            "watched_programs_unconsolidated_index";
+    private static final String CHANNEL_LOGOS_TABLE_LOGO_HASH_INDEX =
+            "channel_logos_logo_hash_index";
+    private static final String CHANNEL_LOGOS_TABLE_UPLOAD_HASH_INDEX =
+            "channel_logos_upload_hash_index";
+    private static final String CHANNEL_LOGOS_TABLE_INSERT_TRIGGER = "channel_logos_insert";
+    private static final String CHANNEL_LOGOS_TABLE_DELETE_TRIGGER = "channel_logos_delete";
     private static final String DEFAULT_CHANNELS_SORT_ORDER = Channels.COLUMN_DISPLAY_NUMBER
             + " ASC";
     private static final String DEFAULT_PROGRAMS_SORT_ORDER = Programs.COLUMN_START_TIME_UTC_MILLIS
             + " ASC";
     private static final String DEFAULT_WATCHED_PROGRAMS_SORT_ORDER =
             WatchedPrograms.COLUMN_WATCH_START_TIME_UTC_MILLIS + " DESC";
-    private static final String CHANNELS_TABLE_INNER_JOIN_PROGRAMS_TABLE = CHANNELS_TABLE
-            + " INNER JOIN " + PROGRAMS_TABLE
-            + " ON (" + CHANNELS_TABLE + "." + Channels._ID + "="
-            + PROGRAMS_TABLE + "." + Programs.COLUMN_CHANNEL_ID + ")";
+    private static final String DEFAULT_PROGRAMS_NOW_NEXT_SORT_ORDER =
+            Programs.COLUMN_CHANNEL_ID + " ASC," + Programs.COLUMN_START_TIME_UTC_MILLIS + " ASC";
+    private static final String PROGRAMS_SEARCH_COLUMN_RANK = "search_rank";
+    private static final String DEFAULT_PROGRAMS_SEARCH_SORT_ORDER = PROGRAMS_SEARCH_COLUMN_RANK
+            + " ASC," + Programs.COLUMN_START_TIME_UTC_MILLIS + " ASC";
+    // The full text query is bound to the only parameter in the table expression. Hits are ranked
+    // by the first column that matches, i.e. a title match goes before a description match.
+    // Joining a subquery instead of the FTS table itself keeps column names unambiguous.
+    private static final String PROGRAMS_TABLE_INNER_JOIN_PROGRAMS_SEARCH = PROGRAMS_TABLE
+            + " INNER JOIN (SELECT docid,CAST(offsets(" + PROGRAMS_FTS_TABLE + ") AS INTEGER) AS "
+            + PROGRAMS_SEARCH_COLUMN_RANK + " FROM " + PROGRAMS_FTS_TABLE + " WHERE "
+            + PROGRAMS_FTS_TABLE + " MATCH ?) AS programs_search"
+            + " ON (" + PROGRAMS_TABLE + "." + Programs._ID + "=programs_search.docid)";
 
     private static final UriMatcher sUriMatcher;
     private static final int MATCH_CHANNEL = 1;
@@ -114,19 +203,213 @@ public class TvProvider extends ContentProvider {
     private static final int MATCH_PROGRAM_ID = 6;
     private static final int MATCH_WATCHED_PROGRAM = 7;
     private static final int MATCH_WATCHED_PROGRAM_ID = 8;
+    private static final int MATCH_PROGRAM_SEARCH = 9;
+    private static final int MATCH_PROGRAM_NOW_NEXT = 10;
 
+    // Deprecated. Logos are stored in files under LOGO_DIRECTORY, but SQLite can't drop columns.
     private static final String CHANNELS_COLUMN_LOGO = "logo";
     private static final int MAX_LOGO_IMAGE_SIZE = 256;
+    // The directory under the files directory that holds the logos in PNG files named after the
+    // hash of their content. Channels with identical logos share a single file.
+    private static final String LOGO_DIRECTORY = "logos";
+    private static final String LOGO_HASH_ALGORITHM = "SHA-1";
+
+    // The columns of the logos table, which counts the channels that refer to each logo file.
+    private static final String LOGOS_COLUMN_HASH = "hash";
+    private static final String LOGOS_COLUMN_REF_COUNT = "ref_count";
+
+    // The columns of the channel logos table, which maps a channel to its logo file.
+    private static final String CHANNEL_LOGOS_COLUMN_CHANNEL_ID = "channel_id";
+    private static final String CHANNEL_LOGOS_COLUMN_LOGO_HASH = "logo_hash";
+    // The hash of the image uploaded through openFile(), which was re-encoded into the logo file,
+    // so that the same upload can be linked without decoding it again. Null for the logos that
+    // were restored or moved by an upgrade.
+    private static final String CHANNEL_LOGOS_COLUMN_UPLOAD_HASH = "upload_hash";
+    // The column of the logo image of the channel logos in a snapshot, which is stored in a file
+    // instead of the table.
+    private static final String CHANNEL_LOGOS_COLUMN_LOGO = "logo";
+
+    // The columns of the change log table, which holds the latest change of each row of the
+    // channels, programs and watched programs tables. The triggers give a row a new sequence
+    // number whenever it changes, so the rows changed since a sequence number are the entries
+    // after it.
+    private static final String CHANGE_LOG_COLUMN_SEQUENCE = "sequence";
+    private static final String CHANGE_LOG_COLUMN_TYPE = "type";
+    private static final String CHANGE_LOG_COLUMN_ROW_ID = "row_id";
+    private static final String CHANGE_LOG_COLUMN_PACKAGE_NAME = "package_name";
+    private static final String CHANGE_LOG_COLUMN_DELETED = "deleted";
+    // The column of the single row of the change log state table, the highest sequence number
+    // whose entry may have been truncated from the change log.
+    private static final String CHANGE_LOG_STATE_COLUMN_TRUNCATED_SEQUENCE = "truncated_sequence";
+
+    // Logos are decoded on a small dedicated pool, so that a burst of logo writes during a channel
+    // scan doesn't decode hundreds of bitmaps at the same time.
+    private static final int LOGO_THREAD_COUNT = 2;
+    private static final long LOGO_THREAD_KEEP_ALIVE_SECONDS = 30;
+    // Each logo waiting for a thread holds its pipe open, so a write beyond this many waiting
+    // logos is refused, and the client can retry it later.
+    private static final int MAX_QUEUED_LOGO_COUNT = 64;
+    // Limits the size of an encoded logo image that a client can send.
+    private static final int MAX_LOGO_INPUT_SIZE = 4 * 1024 * 1024;
+    // The read buffer of each logo thread is kept for reuse only up to this size.
+    private static final int MAX_REUSED_LOGO_BUFFER_SIZE = 256 * 1024;
 
     // The internal column in the watched programs table to indicate whether the current log entry
     // is consolidated or not. Unconsolidated entries may have columns with missing data.
     private static final String WATCHED_PROGRAMS_COLUMN_CONSOLIDATED = "consolidated";
 
+    // The internal column in the programs table that holds the canonical genres as a bitmask, so
+    // that channels can be filtered by genre without matching strings.
+    private static final String PROGRAMS_COLUMN_CANONICAL_GENRE_MASK = "canonical_genre_mask";
+
+    // The internal column in the channels table that holds the XMLTV ID of the channels written
+    // by METHOD_IMPORT_XMLTV, by which they are matched in later imports of the same input.
+    private static final String CHANNELS_COLUMN_XMLTV_ID = "xmltv_id";
+
+    // The canonical genres in the order of their bits in PROGRAMS_COLUMN_CANONICAL_GENRE_MASK.
+    // The bits are stored in the database, so new genres must be appended.
+    private static final String[] CANONICAL_GENRE_BITS = {
+            Genres.FAMILY_KIDS,
+            Genres.SPORTS,
+            Genres.SHOPPING,
+            Genres.MOVIES,
+            Genres.COMEDY,
+            Genres.TRAVEL,
+            Genres.DRAMA,
+            Genres.EDUCATION,
+            Genres.ANIMAL_WILDLIFE,
+            Genres.NEWS,
+            Genres.GAMING,
+            Genres.ARTS,
+            Genres.ENTERTAINMENT,
+            Genres.LIFE_STYLE,
+            Genres.MUSIC,
+            Genres.PREMIER,
+            Genres.TECH_SCIENCE,
+    };
+
     private static final long MAX_PROGRAM_DATA_DELAY_IN_MILLIS = 10 * 1000; // 10 seconds
 
+    // Query parameters for reading programs, channels and watched programs in pages of bounded
+    // size, in the default sort order. A page starts after the row with the given sort key and ID,
+    // so rows inserted or deleted in the meantime don't shift the following pages. Omitting
+    // PARAM_AFTER_KEY with PARAM_AFTER_ID means that the sort key of that row was NULL.
+    private static final String PARAM_LIMIT = "limit";
+    private static final String PARAM_AFTER_KEY = "after_key";
+    private static final String PARAM_AFTER_ID = "after_id";
+
+    // The method of call() that replaces the programs of a channel which start in a time window,
+    // given by EXTRA_CHANNEL_ID, EXTRA_START_TIME (inclusive) and EXTRA_END_TIME (exclusive), with
+    // the ContentValues in EXTRA_PROGRAMS. Programs are matched by their start time, and only the
+    // ones that differ are inserted, updated or deleted, in a single transaction that sends a
+    // single notification. The result has the numbers of inserted, updated and deleted programs.
+    static final String METHOD_REPLACE_PROGRAMS = "replace_programs";
+    static final String EXTRA_CHANNEL_ID = "channel_id";
+    static final String EXTRA_START_TIME = "start_time";
+    static final String EXTRA_END_TIME = "end_time";
+    static final String EXTRA_PROGRAMS = "programs";
+    static final String EXTRA_INSERTED_COUNT = "inserted_count";
+    static final String EXTRA_UPDATED_COUNT = "updated_count";
+    static final String EXTRA_DELETED_COUNT = "deleted_count";
+
+    // The method of call() that returns the rows changed since the sequence number in
+    // EXTRA_SINCE_SEQUENCE, or since the change log began if it is 0. The result has the type,
+    // the row ID and whether the row was deleted for each change, in parallel arrays, and the
+    // sequence number to pass next time in EXTRA_SEQUENCE. EXTRA_HAS_MORE is set if there are
+    // more changes to get right away. EXTRA_RESET is set instead of the changes if they have been
+    // truncated from the change log, in which case the client must query all the rows again.
+    static final String METHOD_GET_CHANGES = "get_changes";
+    static final String EXTRA_SINCE_SEQUENCE = "since_sequence";
+    static final String EXTRA_SEQUENCE = "sequence";
+    static final String EXTRA_HAS_MORE = "has_more";
+    static final String EXTRA_RESET = "reset";
+    static final String EXTRA_CHANGE_TYPES = "change_types";
+    static final String EXTRA_CHANGE_ROW_IDS = "change_row_ids";
+    static final String EXTRA_CHANGE_DELETED = "change_deleted";
+    static final int CHANGE_TYPE_CHANNEL = 1;
+    static final int CHANGE_TYPE_PROGRAM = 2;
+    static final int CHANGE_TYPE_WATCHED_PROGRAM = 3;
+    // The method of call() that truncates the change log to its newest EXTRA_MAX_ENTRY_COUNT
+    // entries. Only this process can call it.
+    static final String METHOD_TRUNCATE_CHANGES = "truncate_changes";
+    static final String EXTRA_MAX_ENTRY_COUNT = "max_entry_count";
+    // Bounds the size of the result of METHOD_GET_CHANGES, which must fit in a binder transaction.
+    private static final int MAX_CHANGES_PER_CALL = 5000;
+
+    // The method of call() that imports an XMLTV document, read from the ParcelFileDescriptor in
+    // EXTRA_FILE_DESCRIPTOR, usually the read end of a pipe, into the channels of the input given
+    // by EXTRA_INPUT_ID. Channels are matched to the ones of previous imports by their XMLTV ID,
+    // and the imported programs of a channel replace its programs which start between the
+    // earliest start time and the latest end time of the imported ones. The document is imported
+    // in chunks, and the chunks imported before an error are kept. The result has the
+    // numbers of imported channels and programs, of programs skipped for a missing channel or
+    // start time, and of bytes read, and the elapsed time.
+    static final String METHOD_IMPORT_XMLTV = "import_xmltv";
+    static final String EXTRA_FILE_DESCRIPTOR = "file_descriptor";
+    static final String EXTRA_INPUT_ID = "input_id";
+    static final String EXTRA_CHANNEL_COUNT = "channel_count";
+    static final String EXTRA_PROGRAM_COUNT = "program_count";
+    static final String EXTRA_SKIPPED_COUNT = "skipped_count";
+    static final String EXTRA_BYTE_COUNT = "byte_count";
+    static final String EXTRA_ELAPSED_MILLIS = "elapsed_millis";
+    // The method of call() that inserts channels and programs encoded as in EpgRecordFormat, read
+    // from the ParcelFileDescriptor in EXTRA_FILE_DESCRIPTOR, usually the read end of a pipe.
+    // Programs can refer to the channels inserted earlier in the stream by their index. The result
+    // has the numbers of inserted channels and programs, and the row IDs of the inserted channels
+    // in EXTRA_CHANNEL_IDS.
+    static final String METHOD_INSERT_RECORDS = "insert_records";
+    static final String EXTRA_CHANNEL_IDS = "channel_ids";
+    // The method of call() that writes a snapshot of the channels, programs and watched programs
+    // encoded as in EpgRecordFormat to the ParcelFileDescriptor in EXTRA_FILE_DESCRIPTOR, usually
+    // the write end of a pipe, with the channel logos if EXTRA_INCLUDE_LOGOS is set. The snapshot
+    // is consistent with the change log up to the sequence number returned in EXTRA_SEQUENCE,
+    // from which METHOD_GET_CHANGES can follow it.
+    static final String METHOD_EXPORT_SNAPSHOT = "export_snapshot";
+    static final String EXTRA_INCLUDE_LOGOS = "include_logos";
+    static final String EXTRA_WATCHED_PROGRAM_COUNT = "watched_program_count";
+    static final String EXTRA_LOGO_COUNT = "logo_count";
+    // The method of call() that replaces the channels, programs and watched programs of every
+    // package with a snapshot of METHOD_EXPORT_SNAPSHOT, read from the ParcelFileDescriptor in
+    // EXTRA_FILE_DESCRIPTOR. Nothing is changed unless the whole snapshot is valid. The change log
+    // starts over, so its clients are told to reset. As the snapshot sets whether each channel is
+    // locked, the caller needs MODIFY_PARENTAL_CONTROLS as well.
+    static final String METHOD_RESTORE_SNAPSHOT = "restore_snapshot";
+    // Streams are read as they are written, and their rows are inserted in chunks of at most this
+    // size, each in its own transaction, so the memory used doesn't grow with the size of the
+    // stream.
+    private static final int IMPORT_CHUNK_SIZE = 500;
+    // METHOD_INSERT_RECORDS also commits a chunk once it is this old, and when the writer of the
+    // stream falls behind for longer than IMPORT_COMMIT_DELAY_MILLIS, so that the database isn't
+    // held while waiting for it. Waiting that long first groups the rows of a slowly written
+    // stream in fewer transactions.
+    private static final long IMPORT_CHUNK_MAX_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long IMPORT_COMMIT_DELAY_MILLIS = 10;
+    // The number of rows read by each query of METHOD_EXPORT_SNAPSHOT.
+    private static final int EXPORT_PAGE_SIZE = 1000;
+    // METHOD_EXPORT_SNAPSHOT fails if the database keeps changing while the rows changed during
+    // the export are read, for more rounds than this or more rows in all than this, as a sync
+    // would. The client can then export again once the sync is over.
+    private static final int MAX_EXPORT_CHANGE_ROUNDS = 10;
+    private static final int MAX_EXPORT_CHANGED_ROW_COUNT = 100000;
+
+    // The number of query shapes whose SQL text is kept.
+    private static final int QUERY_SQL_CACHE_SIZE = 64;
+    // The number of channel list snapshots kept, one per input and browsable filter.
+    private static final int CHANNEL_LIST_CACHE_SIZE = 16;
+    // The number of calling UIDs whose permissions are kept, and for how long. Permissions are
+    // granted at install time, so the cache is also cleared whenever a package changes.
+    private static final int CALLER_PERMISSIONS_CACHE_SIZE = 16;
+    private static final long CALLER_PERMISSIONS_VALIDITY_MILLIS = 30 * DateUtils.SECOND_IN_MILLIS;
+
     private static Map<String, String> sChannelProjectionMap;
     private static Map<String, String> sProgramProjectionMap;
     private static Map<String, String> sWatchedProgramProjectionMap;
+    private static Map<String, Long> sCanonicalGenreMasks;
+    // The program columns that METHOD_REPLACE_PROGRAMS compares and replaces.
+    private static String[] sReplaceableProgramColumns;
+    // The columns that METHOD_INSERT_RECORDS accepts.
+    private static Set<String> sInsertableChannelColumns;
+    private static Set<String> sInsertableProgramColumns;
 
     static {
         sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -136,6 +419,8 @@ public class TvProvider extends ContentProvider {
         sUriMatcher.addURI(TvContract.AUTHORITY, "passthrough/*", MATCH_PASSTHROUGH_ID);
         sUriMatcher.addURI(TvContract.AUTHORITY, "program", MATCH_PROGRAM);
         sUriMatcher.addURI(TvContract.AUTHORITY, "program/#", MATCH_PROGRAM_ID);
+        sUriMatcher.addURI(TvContract.AUTHORITY, "program/search/*", MATCH_PROGRAM_SEARCH);
+        sUriMatcher.addURI(TvContract.AUTHORITY, "program/now_next", MATCH_PROGRAM_NOW_NEXT);
         sUriMatcher.addURI(TvContract.AUTHORITY, "watched_program", MATCH_WATCHED_PROGRAM);
         sUriMatcher.addURI(TvContract.AUTHORITY, "watched_program/#", MATCH_WATCHED_PROGRAM_ID);
 
@@ -176,6 +461,10 @@ public class TvProvider extends ContentProvider {
         sChannelProjectionMap.put(Channels.COLUMN_VERSION_NUMBER,
                 CHANNELS_TABLE + "." + Channels.COLUMN_VERSION_NUMBER);
 
+        sInsertableChannelColumns = new HashSet<String>(sChannelProjectionMap.keySet());
+        sInsertableChannelColumns.remove(Channels._ID);
+        sInsertableChannelColumns.remove(Channels.COLUMN_PACKAGE_NAME);
+
         sProgramProjectionMap = new HashMap<String, String>();
         sProgramProjectionMap.put(Programs._ID, Programs._ID);
         sProgramProjectionMap.put(Programs.COLUMN_PACKAGE_NAME, Programs.COLUMN_PACKAGE_NAME);
@@ -204,6 +493,14 @@ public class TvProvider extends ContentProvider {
                 Programs.COLUMN_INTERNAL_PROVIDER_DATA);
         sProgramProjectionMap.put(Programs.COLUMN_VERSION_NUMBER, Programs.COLUMN_VERSION_NUMBER);
 
+        sInsertableProgramColumns = new HashSet<String>(sProgramProjectionMap.keySet());
+        sInsertableProgramColumns.remove(Programs._ID);
+        sInsertableProgramColumns.remove(Programs.COLUMN_PACKAGE_NAME);
+        Set<String> replaceableColumns = new HashSet<String>(sInsertableProgramColumns);
+        replaceableColumns.remove(Programs.COLUMN_CHANNEL_ID);
+        sReplaceableProgramColumns =
+                replaceableColumns.toArray(new String[replaceableColumns.size()]);
+
         sWatchedProgramProjectionMap = new HashMap<String, String>();
         sWatchedProgramProjectionMap.put(WatchedPrograms._ID, WatchedPrograms._ID);
         sWatchedProgramProjectionMap.put(WatchedPrograms.COLUMN_WATCH_START_TIME_UTC_MILLIS,
@@ -226,28 +523,85 @@ public class TvProvider extends ContentProvider {
                 WatchedPrograms.COLUMN_INTERNAL_SESSION_TOKEN);
         sWatchedProgramProjectionMap.put(WATCHED_PROGRAMS_COLUMN_CONSOLIDATED,
                 WATCHED_PROGRAMS_COLUMN_CONSOLIDATED);
+
+        sCanonicalGenreMasks = new HashMap<String, Long>();
+        for (int i = 0; i < CANONICAL_GENRE_BITS.length; i++) {
+            sCanonicalGenreMasks.put(CANONICAL_GENRE_BITS[i], 1L << i);
+        }
     }
 
     // Mapping from broadcast genre to canonical genre.
-    private static Map<String, String> sGenreMap;
+    private static GenreMapper sGenreMapper;
 
     private static final String PERMISSION_ACCESS_ALL_EPG_DATA =
             "com.android.providers.tv.permission.ACCESS_ALL_EPG_DATA";
 
+    // call() isn't covered by the permissions of the provider in the manifest.
+    private static final String PERMISSION_READ_EPG_DATA =
+            "com.android.providers.tv.permission.READ_EPG_DATA";
+    private static final String PERMISSION_WRITE_EPG_DATA =
+            "com.android.providers.tv.permission.WRITE_EPG_DATA";
+
     private static final String PERMISSION_ACCESS_WATCHED_PROGRAMS =
             "com.android.providers.tv.permission.ACCESS_WATCHED_PROGRAMS";
 
-    private static class DatabaseHelper extends SQLiteOpenHelper {
+    @VisibleForTesting
+    static class DatabaseHelper extends SQLiteOpenHelper {
         private final Context mContext;
+        // The compiled statements of the fixed internal queries, keyed by SQL.
+        private final Map<String, TimedStatement> mStatements =
+                new HashMap<String, TimedStatement>();
 
         DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
             mContext = context;
         }
 
+        // Returns the statement compiled from {@code sql}, compiling it on first use. It is kept
+        // until the helper is closed, so that the SQL is parsed only once.
+        synchronized TimedStatement getStatement(String name, String sql) {
+            TimedStatement statement = mStatements.get(sql);
+            if (statement == null) {
+                statement = new TimedStatement(name, getWritableDatabase().compileStatement(sql));
+                mStatements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        synchronized void dumpStatements(PrintWriter writer) {
+            for (TimedStatement statement : mStatements.values()) {
+                writer.print("  ");
+                statement.dump(writer);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            for (TimedStatement statement : mStatements.values()) {
+                statement.close();
+            }
+            mStatements.clear();
+            super.close();
+        }
+
         @Override
         public void onConfigure(SQLiteDatabase db) {
             db.setForeignKeyConstraintsEnabled(true);
+
+            Resources res = mContext.getResources();
+            // The page size can only be changed before the first table is created, and not at
+            // all in write-ahead logging mode.
+            if (db.getVersion() == 0) {
+                db.setPageSize(res.getInteger(R.integer.database_page_size));
+            }
+            // With write-ahead logging, queries from the guide run on a pool of read connections
+            // while an EPG sync holds a write transaction, instead of waiting for it to finish.
+            // The size of the pool is set by the system.
+            db.enableWriteAheadLogging();
+            // These apply to the primary connection, which runs every write transaction.
+            // Enabling write-ahead logging resets the synchronous mode, so they go after it.
+            db.execSQL("PRAGMA cache_size=-" + res.getInteger(R.integer.database_cache_size_kib));
+            db.execSQL("PRAGMA synchronous=" + res.getInteger(R.integer.database_synchronous));
         }
 
         @Override
@@ -277,6 +631,7 @@ public class TvProvider extends ContentProvider {
                     + Channels.COLUMN_INTERNAL_PROVIDER_DATA + " BLOB,"
                     + CHANNELS_COLUMN_LOGO + " BLOB,"
                     + Channels.COLUMN_VERSION_NUMBER + " INTEGER,"
+                    + CHANNELS_COLUMN_XMLTV_ID + " TEXT,"
                     // Needed for foreign keys in other tables.
                     + "UNIQUE(" + Channels._ID + "," + Channels.COLUMN_PACKAGE_NAME + ")"
                     + ");");
@@ -302,20 +657,15 @@ public class TvProvider extends ContentProvider {
                     + Programs.COLUMN_THUMBNAIL_URI + " TEXT,"
                     + Programs.COLUMN_INTERNAL_PROVIDER_DATA + " BLOB,"
                     + Programs.COLUMN_VERSION_NUMBER + " INTEGER,"
+                    + PROGRAMS_COLUMN_CANONICAL_GENRE_MASK + " INTEGER NOT NULL DEFAULT 0,"
                     + "FOREIGN KEY("
                             + Programs.COLUMN_CHANNEL_ID + "," + Programs.COLUMN_PACKAGE_NAME
                             + ") REFERENCES " + CHANNELS_TABLE + "("
                             + Channels._ID + "," + Channels.COLUMN_PACKAGE_NAME
                             + ") ON UPDATE CASCADE ON DELETE CASCADE"
                     + ");");
-            db.execSQL("CREATE INDEX " + PROGRAMS_TABLE_PACKAGE_NAME_INDEX + " ON " + PROGRAMS_TABLE
-                    + "(" + Programs.COLUMN_PACKAGE_NAME + ");");
-            db.execSQL("CREATE INDEX " + PROGRAMS_TABLE_CHANNEL_ID_INDEX + " ON " + PROGRAMS_TABLE
-                    + "(" + Programs.COLUMN_CHANNEL_ID + ");");
-            db.execSQL("CREATE INDEX " + PROGRAMS_TABLE_START_TIME_INDEX + " ON " + PROGRAMS_TABLE
-                    + "(" + Programs.COLUMN_START_TIME_UTC_MILLIS + ");");
-            db.execSQL("CREATE INDEX " + PROGRAMS_TABLE_END_TIME_INDEX + " ON " + PROGRAMS_TABLE
-                    + "(" + Programs.COLUMN_END_TIME_UTC_MILLIS + ");");
+            createProgramsIndexes(db);
+            createProgramsFtsTable(db);
             db.execSQL("CREATE TABLE " + WATCHED_PROGRAMS_TABLE + " ("
                     + WatchedPrograms._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
                     + WatchedPrograms.COLUMN_PACKAGE_NAME + " TEXT NOT NULL,"
@@ -338,24 +688,428 @@ public class TvProvider extends ContentProvider {
                             + Channels._ID + "," + Channels.COLUMN_PACKAGE_NAME
                             + ") ON UPDATE CASCADE ON DELETE CASCADE"
                     + ");");
-            db.execSQL("CREATE INDEX " + WATCHED_PROGRAMS_TABLE_CHANNEL_ID_INDEX + " ON "
-                    + WATCHED_PROGRAMS_TABLE + "(" + WatchedPrograms.COLUMN_CHANNEL_ID + ");");
+            createWatchedProgramsChannelIdIndex(db);
+            createWatchedProgramsIndexes(db);
+            createLogosTables(db);
+            addChannelLogosUploadHash(db);
+            createChangeLogTables(db);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            Log.i(TAG, "Upgrading from version " + oldVersion + " to " + newVersion
-                    + ", data will be lost!");
-            db.execSQL("DROP TABLE IF EXISTS " + DELETED_CHANNELS_TABLE);
-            db.execSQL("DROP TABLE IF EXISTS " + WATCHED_PROGRAMS_TABLE);
-            db.execSQL("DROP TABLE IF EXISTS " + PROGRAMS_TABLE);
-            db.execSQL("DROP TABLE IF EXISTS " + CHANNELS_TABLE);
+            if (oldVersion < MIN_UPGRADABLE_DATABASE_VERSION) {
+                Log.i(TAG, "Upgrading from version " + oldVersion + " to " + newVersion
+                        + ", data will be lost!");
+                db.execSQL("DROP TABLE IF EXISTS " + DELETED_CHANNELS_TABLE);
+                db.execSQL("DROP TABLE IF EXISTS " + WATCHED_PROGRAMS_TABLE);
+                db.execSQL("DROP TABLE IF EXISTS " + PROGRAMS_TABLE);
+                db.execSQL("DROP TABLE IF EXISTS " + CHANNELS_TABLE);
+
+                onCreate(db);
+                return;
+            }
+
+            Log.i(TAG, "Upgrading from version " + oldVersion + " to " + newVersion);
+            for (int version = oldVersion; version < newVersion; version++) {
+                long startTime = SystemClock.elapsedRealtime();
+                upgradeFrom(db, version);
+                Log.i(TAG, "Upgraded from version " + version + " to " + (version + 1) + " in "
+                        + (SystemClock.elapsedRealtime() - startTime) + "ms");
+            }
+        }
+
+        // Upgrades the schema from {@code version} to {@code version + 1} in place. Every step
+        // must keep the existing data and leave the schema identical to what onCreate() builds
+        // for {@code version + 1}. When bumping DATABASE_VERSION, add a step here rather than
+        // dropping tables.
+        @VisibleForTesting
+        void upgradeFrom(SQLiteDatabase db, int version) {
+            switch (version) {
+                case 23:
+                    // The composite index makes the single column channel ID index redundant.
+                    db.execSQL("DROP INDEX IF EXISTS " + PROGRAMS_TABLE_CHANNEL_ID_INDEX);
+                    createProgramsChannelIdTimeIndex(db);
+                    break;
+                case 24:
+                    createProgramsFtsTable(db);
+                    db.execSQL("INSERT INTO " + PROGRAMS_FTS_TABLE + "(" + PROGRAMS_FTS_TABLE
+                            + ") VALUES('rebuild');");
+                    break;
+                case 25:
+                    db.execSQL("ALTER TABLE " + PROGRAMS_TABLE + " ADD "
+                            + PROGRAMS_COLUMN_CANONICAL_GENRE_MASK
+                            + " INTEGER NOT NULL DEFAULT 0;");
+                    fillCanonicalGenreMasks(db);
+                    // The new index leads with the end time, so it also serves the deletion of
+                    // old programs.
+                    db.execSQL("DROP INDEX IF EXISTS " + PROGRAMS_TABLE_END_TIME_INDEX);
+                    db.execSQL("CREATE INDEX " + PROGRAMS_TABLE_END_TIME_GENRE_INDEX + " ON "
+                            + PROGRAMS_TABLE + "(" + Programs.COLUMN_END_TIME_UTC_MILLIS + ","
+                            + Programs.COLUMN_START_TIME_UTC_MILLIS + ","
+                            + PROGRAMS_COLUMN_CANONICAL_GENRE_MASK + ","
+                            + Programs.COLUMN_CHANNEL_ID + ");");
+                    break;
+                case 26:
+                    moveLogosToFiles(db);
+                    break;
+                case 27:
+                    createLogosTables(db);
+                    renameLogoFilesToHashes(db);
+                    break;
+                case 28:
+                    createWatchedProgramsIndexes(db);
+                    break;
+                case 29:
+                    // The change log starts empty, as if it had been truncated at sequence 0.
+                    createChangeLogTables(db);
+                    break;
+                case 30:
+                    db.execSQL("ALTER TABLE " + CHANNELS_TABLE + " ADD "
+                            + CHANNELS_COLUMN_XMLTV_ID + " TEXT;");
+                    break;
+                case 31:
+                    // The genre query seeks the channel ID and start time index instead.
+                    db.execSQL("DROP INDEX IF EXISTS " + PROGRAMS_TABLE_END_TIME_GENRE_INDEX);
+                    createProgramsEndTimeIndex(db);
+                    break;
+                case 32:
+                    addChannelLogosUploadHash(db);
+                    rehashLogoFiles(db);
+                    break;
+                default:
+                    throw new IllegalStateException("No upgrade step from version " + version);
+            }
+        }
+
+        private static void createProgramsIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX " + PROGRAMS_TABLE_PACKAGE_NAME_INDEX + " ON " + PROGRAMS_TABLE
+                    + "(" + Programs.COLUMN_PACKAGE_NAME + ");");
+            createProgramsChannelIdTimeIndex(db);
+            db.execSQL("CREATE INDEX " + PROGRAMS_TABLE_START_TIME_INDEX + " ON " + PROGRAMS_TABLE
+                    + "(" + Programs.COLUMN_START_TIME_UTC_MILLIS + ");");
+            createProgramsEndTimeIndex(db);
+        }
+
+        // Serves the channel and time window queries of the program guide, e.g.
+        // channel_id=? AND start_time<=? AND end_time>=?, with a single index range scan. Since
+        // channel_id is the leading column, it also serves the foreign key lookups from channels.
+        private static void createProgramsChannelIdTimeIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX " + PROGRAMS_TABLE_CHANNEL_ID_TIME_INDEX + " ON "
+                    + PROGRAMS_TABLE + "(" + Programs.COLUMN_CHANNEL_ID + ","
+                    + Programs.COLUMN_START_TIME_UTC_MILLIS + ","
+                    + Programs.COLUMN_END_TIME_UTC_MILLIS + ");");
+        }
+
+        // Serves the deletion of old programs.
+        private static void createProgramsEndTimeIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX " + PROGRAMS_TABLE_END_TIME_INDEX + " ON " + PROGRAMS_TABLE
+                    + "(" + Programs.COLUMN_END_TIME_UTC_MILLIS + ");");
+        }
+
+        private void moveLogosToFiles(SQLiteDatabase db) {
+            File logoDirectory = getLogoDirectory(mContext);
+            try (Cursor cursor = db.query(CHANNELS_TABLE,
+                    new String[] { Channels._ID, CHANNELS_COLUMN_LOGO },
+                    CHANNELS_COLUMN_LOGO + " IS NOT NULL", null, null, null, null)) {
+                while (cursor.moveToNext()) {
+                    long channelId = cursor.getLong(0);
+                    FileOutputStream fos = null;
+                    try {
+                        fos = new FileOutputStream(
+                                new File(logoDirectory, String.valueOf(channelId)));
+                        fos.write(cursor.getBlob(1));
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to move logo for channel ID " + channelId, e);
+                    } finally {
+                        IoUtils.closeQuietly(fos);
+                    }
+                }
+            }
+            db.execSQL("UPDATE " + CHANNELS_TABLE + " SET " + CHANNELS_COLUMN_LOGO + "=NULL WHERE "
+                    + CHANNELS_COLUMN_LOGO + " IS NOT NULL;");
+        }
+
+        private static void createWatchedProgramsChannelIdIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX " + WATCHED_PROGRAMS_TABLE_CHANNEL_ID_INDEX + " ON "
+                    + WATCHED_PROGRAMS_TABLE + "(" + WatchedPrograms.COLUMN_CHANNEL_ID + ");");
+        }
+
+        // The watch start time index serves the default sort order of the watch history and its
+        // cleanup. The consolidation engine only looks at the few unconsolidated rows, by session
+        // and in the order of watch start time, so the partial index keeps just those rows. Its
+        // WHERE clause must appear literally in the queries for SQLite to use it.
+        private static void createWatchedProgramsIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX " + WATCHED_PROGRAMS_TABLE_WATCH_START_TIME_INDEX + " ON "
+                    + WATCHED_PROGRAMS_TABLE + "("
+                    + WatchedPrograms.COLUMN_WATCH_START_TIME_UTC_MILLIS + ");");
+            db.execSQL("CREATE INDEX " + WATCHED_PROGRAMS_TABLE_UNCONSOLIDATED_INDEX + " ON "
+                    + WATCHED_PROGRAMS_TABLE + "(" + WatchedPrograms.COLUMN_INTERNAL_SESSION_TOKEN
+                    + "," + WatchedPrograms.COLUMN_WATCH_START_TIME_UTC_MILLIS + ") WHERE "
+                    + WATCHED_PROGRAMS_COLUMN_CONSOLIDATED + "=0;");
+        }
+
+        // Creates the tables that share logo files between channels. The triggers keep the number
+        // of channels that refer to each logo file, so that unreferenced files can be deleted.
+        // Channel logo rows are only inserted and deleted, never updated.
+        private static void createLogosTables(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + LOGOS_TABLE + " ("
+                    + LOGOS_COLUMN_HASH + " TEXT PRIMARY KEY,"
+                    + LOGOS_COLUMN_REF_COUNT + " INTEGER NOT NULL DEFAULT 0"
+                    + ");");
+            db.execSQL("CREATE TABLE " + CHANNEL_LOGOS_TABLE + " ("
+                    + CHANNEL_LOGOS_COLUMN_CHANNEL_ID + " INTEGER PRIMARY KEY,"
+                    + CHANNEL_LOGOS_COLUMN_LOGO_HASH + " TEXT NOT NULL,"
+                    + "FOREIGN KEY(" + CHANNEL_LOGOS_COLUMN_CHANNEL_ID + ") REFERENCES "
+                            + CHANNELS_TABLE + "(" + Channels._ID + ") ON DELETE CASCADE"
+                    + ");");
+            db.execSQL("CREATE INDEX " + CHANNEL_LOGOS_TABLE_LOGO_HASH_INDEX + " ON "
+                    + CHANNEL_LOGOS_TABLE + "(" + CHANNEL_LOGOS_COLUMN_LOGO_HASH + ");");
+            db.execSQL("CREATE TRIGGER " + CHANNEL_LOGOS_TABLE_INSERT_TRIGGER + " AFTER INSERT ON "
+                    + CHANNEL_LOGOS_TABLE + " BEGIN"
+                    + " INSERT OR IGNORE INTO " + LOGOS_TABLE + "(" + LOGOS_COLUMN_HASH
+                            + ") VALUES(new." + CHANNEL_LOGOS_COLUMN_LOGO_HASH + ");"
+                    + " UPDATE " + LOGOS_TABLE + " SET " + LOGOS_COLUMN_REF_COUNT + "="
+                            + LOGOS_COLUMN_REF_COUNT + "+1 WHERE " + LOGOS_COLUMN_HASH + "=new."
+                            + CHANNEL_LOGOS_COLUMN_LOGO_HASH + ";"
+                    + " END;");
+            // Also fires for the rows deleted by the cascade when a channel is deleted.
+            db.execSQL("CREATE TRIGGER " + CHANNEL_LOGOS_TABLE_DELETE_TRIGGER + " AFTER DELETE ON "
+                    + CHANNEL_LOGOS_TABLE + " BEGIN"
+                    + " UPDATE " + LOGOS_TABLE + " SET " + LOGOS_COLUMN_REF_COUNT + "="
+                            + LOGOS_COLUMN_REF_COUNT + "-1 WHERE " + LOGOS_COLUMN_HASH + "=old."
+                            + CHANNEL_LOGOS_COLUMN_LOGO_HASH + ";"
+                    + " END;");
+        }
+
+        private static void addChannelLogosUploadHash(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + CHANNEL_LOGOS_TABLE + " ADD "
+                    + CHANNEL_LOGOS_COLUMN_UPLOAD_HASH + " TEXT;");
+            db.execSQL("CREATE INDEX " + CHANNEL_LOGOS_TABLE_UPLOAD_HASH_INDEX + " ON "
+                    + CHANNEL_LOGOS_TABLE + "(" + CHANNEL_LOGOS_COLUMN_UPLOAD_HASH + ");");
+        }
+
+        private static void createChangeLogTables(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + CHANGE_LOG_TABLE + " ("
+                    + CHANGE_LOG_COLUMN_SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + CHANGE_LOG_COLUMN_TYPE + " INTEGER NOT NULL,"
+                    + CHANGE_LOG_COLUMN_ROW_ID + " INTEGER NOT NULL,"
+                    + CHANGE_LOG_COLUMN_PACKAGE_NAME + " TEXT,"
+                    + CHANGE_LOG_COLUMN_DELETED + " INTEGER NOT NULL,"
+                    + "UNIQUE(" + CHANGE_LOG_COLUMN_TYPE + "," + CHANGE_LOG_COLUMN_ROW_ID + ")"
+                    + ");");
+            db.execSQL("CREATE TABLE " + CHANGE_LOG_STATE_TABLE + " ("
+                    + CHANGE_LOG_STATE_COLUMN_TRUNCATED_SEQUENCE + " INTEGER NOT NULL"
+                    + ");");
+            db.execSQL("INSERT INTO " + CHANGE_LOG_STATE_TABLE + " VALUES(0);");
+            createChangeLogTriggers(db);
+        }
+
+        private static void createChangeLogTriggers(SQLiteDatabase db) {
+            createChangeLogTriggers(db, CHANNELS_TABLE, CHANGE_TYPE_CHANNEL);
+            createChangeLogTriggers(db, PROGRAMS_TABLE, CHANGE_TYPE_PROGRAM);
+            createChangeLogTriggers(db, WATCHED_PROGRAMS_TABLE, CHANGE_TYPE_WATCHED_PROGRAM);
+        }
+
+        // Creates the triggers that log the changes of the rows of {@code table}. Replacing the
+        // previous entry of a row keeps a single entry per row. The delete triggers also fire
+        // for the rows deleted by a cascade.
+        private static void createChangeLogTriggers(SQLiteDatabase db, String table, int type) {
+            for (String event : new String[] { "insert", "update", "delete" }) {
+                boolean deleted = event.equals("delete");
+                String row = deleted ? "old." : "new.";
+                db.execSQL("CREATE TRIGGER " + table + "_change_log_" + event + " AFTER "
+                        + event.toUpperCase(Locale.US) + " ON " + table + " BEGIN"
+                        + " INSERT OR REPLACE INTO " + CHANGE_LOG_TABLE + "("
+                                + CHANGE_LOG_COLUMN_TYPE + "," + CHANGE_LOG_COLUMN_ROW_ID + ","
+                                + CHANGE_LOG_COLUMN_PACKAGE_NAME + "," + CHANGE_LOG_COLUMN_DELETED
+                                + ") VALUES(" + type + "," + row + BaseTvColumns._ID + "," + row
+                                + BaseTvColumns.COLUMN_PACKAGE_NAME + "," + (deleted ? 1 : 0)
+                                + ");"
+                        + " END;");
+            }
+        }
+
+        // Renames the logo files named after channel IDs to the hash of their content, and links
+        // them to their channels.
+        private void renameLogoFilesToHashes(SQLiteDatabase db) {
+            File[] logoFiles = getLogoDirectory(mContext).listFiles();
+            if (logoFiles == null) {
+                return;
+            }
+            ContentValues values = new ContentValues();
+            for (File logoFile : logoFiles) {
+                long channelId;
+                try {
+                    channelId = Long.parseLong(logoFile.getName());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                String hash;
+                try {
+                    hash = computeLogoHash(IoUtils.readFileAsByteArray(logoFile.getPath()));
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read logo for channel ID " + channelId, e);
+                    logoFile.delete();
+                    continue;
+                }
+                File hashFile = new File(logoFile.getParentFile(), hash);
+                if (hashFile.exists()) {
+                    logoFile.delete();
+                } else if (!logoFile.renameTo(hashFile)) {
+                    Log.e(TAG, "Failed to rename logo for channel ID " + channelId);
+                    continue;
+                }
+                if (DatabaseUtils.queryNumEntries(db, CHANNELS_TABLE, Channels._ID + "=?",
+                        new String[] { String.valueOf(channelId) }) > 0) {
+                    values.put(CHANNEL_LOGOS_COLUMN_CHANNEL_ID, channelId);
+                    values.put(CHANNEL_LOGOS_COLUMN_LOGO_HASH, hash);
+                    db.insert(CHANNEL_LOGOS_TABLE, null, values);
+                }
+            }
+        }
+
+        // Renames the logo files that were named after the hash of the uploaded image to the hash
+        // of their content, keeping the former as the upload hash of the channels that use them.
+        private void rehashLogoFiles(SQLiteDatabase db) {
+            File logoDirectory = getLogoDirectory(mContext);
+            List<String> hashes = new ArrayList<String>();
+            try (Cursor cursor = db.query(true, CHANNEL_LOGOS_TABLE,
+                    new String[] { CHANNEL_LOGOS_COLUMN_LOGO_HASH }, null, null, null, null,
+                    null, null)) {
+                while (cursor.moveToNext()) {
+                    hashes.add(cursor.getString(0));
+                }
+            }
+            ContentValues values = new ContentValues();
+            for (String uploadHash : hashes) {
+                File logoFile = new File(logoDirectory, uploadHash);
+                String hash;
+                try {
+                    hash = computeLogoHash(IoUtils.readFileAsByteArray(logoFile.getPath()));
+                } catch (IOException e) {
+                    // Already gone, so the channels have no logo to rename.
+                    continue;
+                }
+                if (hash.equals(uploadHash)) {
+                    continue;
+                }
+                File hashFile = new File(logoDirectory, hash);
+                if (hashFile.exists()) {
+                    logoFile.delete();
+                } else if (!logoFile.renameTo(hashFile)) {
+                    Log.e(TAG, "Failed to rename logo " + uploadHash);
+                    continue;
+                }
+                values.put(CHANNEL_LOGOS_COLUMN_LOGO_HASH, hash);
+                values.put(CHANNEL_LOGOS_COLUMN_UPLOAD_HASH, uploadHash);
+                db.update(CHANNEL_LOGOS_TABLE, values, CHANNEL_LOGOS_COLUMN_LOGO_HASH + "=?",
+                        new String[] { uploadHash });
+            }
+            // The triggers only count inserted and deleted rows, so recount the updated ones.
+            db.delete(LOGOS_TABLE, null, null);
+            db.execSQL("INSERT INTO " + LOGOS_TABLE + "(" + LOGOS_COLUMN_HASH + ","
+                    + LOGOS_COLUMN_REF_COUNT + ") SELECT " + CHANNEL_LOGOS_COLUMN_LOGO_HASH
+                    + ",COUNT(*) FROM " + CHANNEL_LOGOS_TABLE + " GROUP BY "
+                    + CHANNEL_LOGOS_COLUMN_LOGO_HASH + ";");
+        }
+
+        private static void fillCanonicalGenreMasks(SQLiteDatabase db) {
+            try (Cursor cursor = db.query(true, PROGRAMS_TABLE,
+                    new String[] { Programs.COLUMN_CANONICAL_GENRE },
+                    Programs.COLUMN_CANONICAL_GENRE + " IS NOT NULL", null, null, null, null,
+                    null)) {
+                ContentValues values = new ContentValues();
+                while (cursor.moveToNext()) {
+                    String canonicalGenres = cursor.getString(0);
+                    long mask = getCanonicalGenreMask(canonicalGenres);
+                    if (mask != 0) {
+                        values.put(PROGRAMS_COLUMN_CANONICAL_GENRE_MASK, mask);
+                        db.update(PROGRAMS_TABLE, values, Programs.COLUMN_CANONICAL_GENRE + "=?",
+                                new String[] { canonicalGenres });
+                    }
+                }
+            }
+        }
+
+        // Creates the full text index of the program titles and descriptions. It is an external
+        // content FTS4 table that doesn't keep its own copy of the text, and its triggers keep it
+        // in sync with the programs table.
+        private static void createProgramsFtsTable(SQLiteDatabase db) {
+            db.execSQL("CREATE VIRTUAL TABLE " + PROGRAMS_FTS_TABLE + " USING fts4(content=\""
+                    + PROGRAMS_TABLE + "\"," + PROGRAMS_FTS_COLUMNS + ");");
+            createProgramsFtsTriggers(db);
+        }
+
+        private static void createProgramsFtsTriggers(SQLiteDatabase db) {
+            String newValues = "new." + Programs._ID + ",new." + Programs.COLUMN_TITLE
+                    + ",new." + Programs.COLUMN_EPISODE_TITLE
+                    + ",new." + Programs.COLUMN_SHORT_DESCRIPTION
+                    + ",new." + Programs.COLUMN_LONG_DESCRIPTION;
+            String deleteOld = "DELETE FROM " + PROGRAMS_FTS_TABLE + " WHERE docid=old."
+                    + Programs._ID + ";";
+            String insertNew = "INSERT INTO " + PROGRAMS_FTS_TABLE + "(docid,"
+                    + PROGRAMS_FTS_COLUMNS + ") VALUES(" + newValues + ");";
+
+            // An external content FTS table reads the old text from the content table to remove
+            // it from the index, so deletion should happen before the row changes.
+            db.execSQL("CREATE TRIGGER " + PROGRAMS_FTS_TABLE_INSERT_TRIGGER + " AFTER INSERT ON "
+                    + PROGRAMS_TABLE + " BEGIN " + insertNew + " END;");
+            db.execSQL("CREATE TRIGGER " + PROGRAMS_FTS_TABLE_BEFORE_UPDATE_TRIGGER
+                    + " BEFORE UPDATE OF " + PROGRAMS_FTS_COLUMNS + " ON " + PROGRAMS_TABLE
+                    + " BEGIN " + deleteOld + " END;");
+            db.execSQL("CREATE TRIGGER " + PROGRAMS_FTS_TABLE_AFTER_UPDATE_TRIGGER
+                    + " AFTER UPDATE OF " + PROGRAMS_FTS_COLUMNS + " ON " + PROGRAMS_TABLE
+                    + " BEGIN " + insertNew + " END;");
+            db.execSQL("CREATE TRIGGER " + PROGRAMS_FTS_TABLE_DELETE_TRIGGER + " BEFORE DELETE ON "
+                    + PROGRAMS_TABLE + " BEGIN " + deleteOld + " END;");
+        }
+
+        // Drops the triggers that keep the full text index and the change log, and the secondary
+        // indexes of the programs and watched programs tables, so that a restore neither fires
+        // triggers nor updates indexes for each row. The logo triggers are kept, since they count
+        // the references to the logo files.
+        private static void dropBulkLoadSchema(SQLiteDatabase db) {
+            for (String trigger : new String[] { PROGRAMS_FTS_TABLE_INSERT_TRIGGER,
+                    PROGRAMS_FTS_TABLE_BEFORE_UPDATE_TRIGGER,
+                    PROGRAMS_FTS_TABLE_AFTER_UPDATE_TRIGGER, PROGRAMS_FTS_TABLE_DELETE_TRIGGER }) {
+                db.execSQL("DROP TRIGGER " + trigger);
+            }
+            for (String table : new String[] { CHANNELS_TABLE, PROGRAMS_TABLE,
+                    WATCHED_PROGRAMS_TABLE }) {
+                for (String event : new String[] { "insert", "update", "delete" }) {
+                    db.execSQL("DROP TRIGGER " + table + "_change_log_" + event);
+                }
+            }
+            for (String index : new String[] { PROGRAMS_TABLE_PACKAGE_NAME_INDEX,
+                    PROGRAMS_TABLE_CHANNEL_ID_TIME_INDEX, PROGRAMS_TABLE_START_TIME_INDEX,
+                    PROGRAMS_TABLE_END_TIME_INDEX, WATCHED_PROGRAMS_TABLE_CHANNEL_ID_INDEX,
+                    WATCHED_PROGRAMS_TABLE_WATCH_START_TIME_INDEX,
+                    WATCHED_PROGRAMS_TABLE_UNCONSOLIDATED_INDEX }) {
+                db.execSQL("DROP INDEX " + index);
+            }
+        }
 
-            onCreate(db);
+        // Recreates what dropBulkLoadSchema() dropped, and rebuilds the full text index from the
+        // programs table. Building an index over the loaded rows sorts them once, which is much
+        // faster than inserting each row into it.
+        private static void createBulkLoadSchema(SQLiteDatabase db) {
+            createProgramsIndexes(db);
+            createWatchedProgramsChannelIdIndex(db);
+            createWatchedProgramsIndexes(db);
+            createProgramsFtsTriggers(db);
+            db.execSQL("INSERT INTO " + PROGRAMS_FTS_TABLE + "(" + PROGRAMS_FTS_TABLE
+                    + ") VALUES('rebuild');");
+            createChangeLogTriggers(db);
         }
     }
 
     private DatabaseHelper mOpenHelper;
+    private ProgramIntervalCache mProgramIntervalCache;
+    // How many operations or how much time of a batch may pass before its transaction is yielded
+    // to other threads waiting for the database. 0 means no limit.
+    private int mBatchYieldOperations;
+    private long mBatchYieldIntervalNanos;
+    private NotificationDispatcher mNotificationDispatcher;
 
     private final Handler mLogHandler = new WatchLogHandler();
 
@@ -365,12 +1119,37 @@ public class TvProvider extends ContentProvider {
             Log.d(TAG, "Creating TvProvider");
         }
         mOpenHelper = new DatabaseHelper(getContext());
+        mProgramIntervalCache = new ProgramIntervalCache(mOpenHelper);
+        Resources res = getContext().getResources();
+        mBatchYieldOperations = res.getInteger(R.integer.batch_yield_operations);
+        mBatchYieldIntervalNanos = TimeUnit.MILLISECONDS.toNanos(
+                res.getInteger(R.integer.batch_yield_interval_millis));
+        mNotificationDispatcher = new NotificationDispatcher(getContext().getContentResolver(),
+                res.getInteger(R.integer.notification_debounce_millis),
+                res.getInteger(R.integer.notification_collapse_threshold));
+        registerPackageChangeReceiver();
         deleteUnconsolidatedWatchedProgramsRows();
+        scheduleOrphanedLogoFilesDeletion();
         scheduleEpgDataCleanup();
         buildGenreMap();
         return true;
     }
 
+    private void registerPackageChangeReceiver() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        getContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                // The UID of a removed package may be reused by the next installed one.
+                mCallerPermissionsCache.evictAll();
+            }
+        }, filter);
+    }
+
     @VisibleForTesting
     void scheduleEpgDataCleanup() {
         Intent intent = new Intent(EpgDataCleanupService.ACTION_CLEAN_UP_EPG_DATA);
@@ -384,27 +1163,15 @@ public class TvProvider extends ContentProvider {
     }
 
     private void buildGenreMap() {
-        if (sGenreMap != null) {
+        if (sGenreMapper != null) {
             return;
         }
 
-        sGenreMap = new HashMap<String, String>();
-        buildGenreMap(R.array.genre_mapping_atsc);
-        buildGenreMap(R.array.genre_mapping_dvb);
-        buildGenreMap(R.array.genre_mapping_isdb);
-        buildGenreMap(R.array.genre_mapping_isdb_br);
-    }
-
-    @SuppressLint("DefaultLocale")
-    private void buildGenreMap(int id) {
-        String[] maps = getContext().getResources().getStringArray(id);
-        for (String map : maps) {
-            String[] arr = map.split("\\|");
-            if (arr.length != 2) {
-                throw new IllegalArgumentException("Invalid genre mapping : " + map);
-            }
-            sGenreMap.put(arr[0].toUpperCase(), arr[1]);
-        }
+        Resources res = getContext().getResources();
+        sGenreMapper = new GenreMapper(res.getStringArray(R.array.genre_mapping_atsc),
+                res.getStringArray(R.array.genre_mapping_dvb),
+                res.getStringArray(R.array.genre_mapping_isdb),
+                res.getStringArray(R.array.genre_mapping_isdb_br));
     }
 
     @VisibleForTesting
@@ -412,6 +1179,21 @@ public class TvProvider extends ContentProvider {
         return getCallingPackage();
     }
 
+    @VisibleForTesting
+    int getBatchYieldOperations() {
+        return mBatchYieldOperations;
+    }
+
+    @VisibleForTesting
+    long getBatchYieldIntervalNanos() {
+        return mBatchYieldIntervalNanos;
+    }
+
+    @VisibleForTesting
+    int getBatchYieldCount() {
+        return mBatchYieldCount.get();
+    }
+
     @Override
     public String getType(Uri uri) {
         switch (sUriMatcher.match(uri)) {
@@ -427,6 +1209,9 @@ public class TvProvider extends ContentProvider {
                 return Programs.CONTENT_TYPE;
             case MATCH_PROGRAM_ID:
                 return Programs.CONTENT_ITEM_TYPE;
+            case MATCH_PROGRAM_SEARCH:
+            case MATCH_PROGRAM_NOW_NEXT:
+                return Programs.CONTENT_TYPE;
             case MATCH_WATCHED_PROGRAM:
                 return WatchedPrograms.CONTENT_TYPE;
             case MATCH_WATCHED_PROGRAM_ID:
@@ -436,25 +1221,181 @@ public class TvProvider extends ContentProvider {
         }
     }
 
+    // The shape of a query, i.e. everything that goes into its SQL text but not the bound
+    // arguments. Queries of the same shape share the SQL text, and therefore the prepared statement
+    // in SQLite's statement cache.
+    private static final class QueryShape {
+        private final String mTables;
+        private final Map<String, String> mProjectionMap;
+        private final String[] mProjection;
+        private final String mSelection;
+        private final String mOrderBy;
+        // Either null or "?", since the limit is a bound argument. SQLiteQueryBuilder only accepts
+        // a literal limit, so it is appended to the SQL it builds.
+        private final String mLimit;
+        private final int mHashCode;
+
+        QueryShape(String tables, Map<String, String> projectionMap, String[] projection,
+                String selection, String orderBy, String limit) {
+            mTables = tables;
+            mProjectionMap = projectionMap;
+            mProjection = projection;
+            mSelection = selection;
+            mOrderBy = orderBy;
+            mLimit = limit;
+            mHashCode = Objects.hash(tables, Arrays.hashCode(projection), selection, orderBy,
+                    limit);
+        }
+
+        String buildQuery() {
+            SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+            queryBuilder.setTables(mTables);
+            queryBuilder.setProjectionMap(mProjectionMap);
+            String sql = queryBuilder.buildQuery(mProjection, mSelection, null, null, mOrderBy,
+                    null);
+            return mLimit != null ? sql + " LIMIT " + mLimit : sql;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof QueryShape)) {
+                return false;
+            }
+            QueryShape other = (QueryShape) o;
+            // The projection map is determined by the tables.
+            return mTables.equals(other.mTables) && Arrays.equals(mProjection, other.mProjection)
+                    && TextUtils.equals(mSelection, other.mSelection)
+                    && TextUtils.equals(mOrderBy, other.mOrderBy)
+                    && TextUtils.equals(mLimit, other.mLimit);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    // The SQL text of recent queries. The guide repeats a handful of shapes with different
+    // arguments, so building the SQL is mostly skipped.
+    private final LruCache<QueryShape, String> mQuerySqlCache =
+            new LruCache<QueryShape, String>(QUERY_SQL_CACHE_SIZE) {
+                @Override
+                protected String create(QueryShape shape) {
+                    return shape.buildQuery();
+                }
+            };
+    private final DurationStats mQueryStats = new DurationStats("query");
+
+    // Snapshots of the channel list with all the columns, keyed by the selection and its
+    // arguments, i.e. the input, the browsable flag and the calling package if the caller can only
+    // see its own channels. Channels change only during scans, while many apps query them again
+    // on every change notification.
+    private final LruCache<String, CursorSnapshot> mChannelListCache =
+            new LruCache<String, CursorSnapshot>(CHANNEL_LIST_CACHE_SIZE);
+    // Incremented by every invalidation, so that snapshots taken before it aren't cached.
+    private long mChannelListGeneration;
+
+    private CursorSnapshot getChannelListSnapshot(SqlParams params,
+            Map<String, String> projectionMap, String orderBy) {
+        StringBuilder key = new StringBuilder(params.getSelection() != null
+                ? params.getSelection() : "");
+        if (params.getSelectionArgs() != null) {
+            for (String arg : params.getSelectionArgs()) {
+                key.append('\0').append(arg);
+            }
+        }
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        // In a transaction of the calling thread, like an operation of applyBatch(), the query
+        // sees the changes of the transaction, which the cache doesn't have, and which other
+        // threads can't see and may yet be rolled back. The cache is bypassed then.
+        boolean inTransaction = db.inTransaction();
+        CursorSnapshot snapshot = inTransaction ? null : mChannelListCache.get(key.toString());
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        long generation;
+        synchronized (mChannelListCache) {
+            generation = mChannelListGeneration;
+        }
+        String sql = mQuerySqlCache.get(new QueryShape(params.getTables(), projectionMap, null,
+                params.getSelection(), orderBy, null));
+        try (Cursor cursor = db.rawQuery(sql, params.getSelectionArgs())) {
+            snapshot = new CursorSnapshot(cursor);
+        }
+        if (inTransaction) {
+            return snapshot;
+        }
+        synchronized (mChannelListCache) {
+            if (generation == mChannelListGeneration) {
+                mChannelListCache.put(key.toString(), snapshot);
+            }
+        }
+        return snapshot;
+    }
+
+    private void invalidateChannelList() {
+        synchronized (mChannelListCache) {
+            mChannelListGeneration++;
+            mChannelListCache.evictAll();
+        }
+    }
+
+    // Set when the channels table is written in a transaction of the thread, so that the channel
+    // list is invalidated again once the transaction ends.
+    private final ThreadLocal<Boolean> mTLChannelsChanged = new ThreadLocal<Boolean>();
+
+    private void onChannelsChanged() {
+        invalidateChannelList();
+        if (mOpenHelper.getWritableDatabase().inTransaction()) {
+            mTLChannelsChanged.set(Boolean.TRUE);
+        }
+    }
+
+    // Called after a transaction of the thread that may have written channels or programs ends.
+    // Caches filled by other threads during the transaction may miss its changes.
+    private void onTransactionEnded() {
+        mProgramIntervalCache.invalidateAll();
+        if (mTLChannelsChanged.get() != null) {
+            mTLChannelsChanged.set(null);
+            invalidateChannelList();
+        }
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
-        if (needsToLimitPackage(uri) && !TextUtils.isEmpty(sortOrder)) {
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        int match = sUriMatcher.match(uri);
+        boolean limitToPackage = needsToLimitPackage(uri, match);
+        if (limitToPackage && !TextUtils.isEmpty(sortOrder)) {
             throw new SecurityException("Sort order not allowed for " + uri);
         }
-        SqlParams params = createSqlParams(OP_QUERY, uri, selection, selectionArgs);
+        SqlParams params = createSqlParams(OP_QUERY, uri, match, limitToPackage, selection,
+                selectionArgs);
 
-        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
-        queryBuilder.setTables(params.getTables());
+        String tables = params.getTables();
+        Map<String, String> projectionMap;
+        Uri notificationUri = uri;
         String orderBy;
-        if (params.getTables().equals(PROGRAMS_TABLE)) {
-            queryBuilder.setProjectionMap(sProgramProjectionMap);
+        if (match == MATCH_PROGRAM_NOW_NEXT) {
+            projectionMap = sProgramProjectionMap;
+            orderBy = DEFAULT_PROGRAMS_NOW_NEXT_SORT_ORDER;
+            // The current program changes whenever any program changes.
+            notificationUri = Programs.CONTENT_URI;
+        } else if (tables.equals(PROGRAMS_TABLE)) {
+            projectionMap = sProgramProjectionMap;
             orderBy = DEFAULT_PROGRAMS_SORT_ORDER;
-        } else if (params.getTables().equals(WATCHED_PROGRAMS_TABLE)) {
-            queryBuilder.setProjectionMap(sWatchedProgramProjectionMap);
+        } else if (tables.equals(PROGRAMS_TABLE_INNER_JOIN_PROGRAMS_SEARCH)) {
+            projectionMap = sProgramProjectionMap;
+            orderBy = DEFAULT_PROGRAMS_SEARCH_SORT_ORDER;
+            // Search results change whenever any program changes.
+            notificationUri = Programs.CONTENT_URI;
+        } else if (tables.equals(WATCHED_PROGRAMS_TABLE)) {
+            projectionMap = sWatchedProgramProjectionMap;
             orderBy = DEFAULT_WATCHED_PROGRAMS_SORT_ORDER;
         } else {
-            queryBuilder.setProjectionMap(sChannelProjectionMap);
+            projectionMap = sChannelProjectionMap;
             orderBy = DEFAULT_CHANNELS_SORT_ORDER;
         }
 
@@ -463,13 +1404,47 @@ public class TvProvider extends ContentProvider {
             orderBy = sortOrder;
         }
 
-        // Get the database and run the query.
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        Cursor c = queryBuilder.query(db, projection, params.getSelection(),
-                params.getSelectionArgs(), null, null, orderBy);
+        String limit = null;
+        String[] args = params.getSelectionArgs();
+        String paramLimit = uri.getQueryParameter(PARAM_LIMIT);
+        if (paramLimit != null || uri.getQueryParameter(PARAM_AFTER_ID) != null) {
+            if (!TextUtils.isEmpty(sortOrder)) {
+                throw new IllegalArgumentException("Sort order not allowed for a page of " + uri);
+            }
+            orderBy = appendPageWhere(params, uri, match);
+            args = params.getSelectionArgs();
+            if (paramLimit != null) {
+                int pageSize = Integer.parseInt(paramLimit);
+                if (pageSize <= 0) {
+                    throw new IllegalArgumentException("Invalid limit: " + paramLimit);
+                }
+                // The limit is a bound argument as well, after the ones in the where clause.
+                limit = "?";
+                args = DatabaseUtils.appendSelectionArgs(args,
+                        new String[] { String.valueOf(pageSize) });
+            }
+        }
+
+        Cursor c = null;
+        // The channel list, optionally filtered by input and browsability, is served from memory.
+        // Channels filtered by genre aren't, since the filter depends on their programs.
+        boolean isPage = paramLimit != null || uri.getQueryParameter(PARAM_AFTER_ID) != null;
+        if (match == MATCH_CHANNEL && TextUtils.isEmpty(selection)
+                && TextUtils.isEmpty(sortOrder) && !isPage
+                && uri.getQueryParameter(TvContract.PARAM_CANONICAL_GENRE) == null) {
+            c = getChannelListSnapshot(params, projectionMap, orderBy).newCursor(projection);
+        }
+        if (c == null) {
+            // Get the database and run the query.
+            String sql = mQuerySqlCache.get(new QueryShape(tables, projectionMap, projection,
+                    params.getSelection(), orderBy, limit));
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            c = db.rawQueryWithFactory(null, sql, args, SQLiteDatabase.findEditTable(tables));
+        }
 
         // Tell the cursor what URI to watch, so it knows when its source data changes.
-        c.setNotificationUri(getContext().getContentResolver(), uri);
+        c.setNotificationUri(getContext().getContentResolver(), notificationUri);
+        mQueryStats.add(SystemClock.elapsedRealtimeNanos() - startNanos);
         return c;
     }
 
@@ -486,6 +1461,8 @@ public class TvProvider extends ContentProvider {
             case MATCH_CHANNEL_ID_LOGO:
             case MATCH_PASSTHROUGH_ID:
             case MATCH_PROGRAM_ID:
+            case MATCH_PROGRAM_SEARCH:
+            case MATCH_PROGRAM_NOW_NEXT:
             case MATCH_WATCHED_PROGRAM_ID:
                 throw new UnsupportedOperationException("Cannot insert into that URI: " + uri);
             default:
@@ -495,11 +1472,13 @@ public class TvProvider extends ContentProvider {
 
     private Uri insertChannel(Uri uri, ContentValues values) {
         // Mark the owner package of this channel.
-        values.put(Channels.COLUMN_PACKAGE_NAME, getCallingPackage_());
+        values.put(Channels.COLUMN_PACKAGE_NAME, getCallerPackage());
+        values.remove(CHANNELS_COLUMN_XMLTV_ID);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         long rowId = db.insert(CHANNELS_TABLE, null, values);
         if (rowId > 0) {
+            onChannelsChanged();
             Uri channelUri = TvContract.buildChannelUri(rowId);
             notifyChange(channelUri);
             return channelUri;
@@ -510,13 +1489,17 @@ public class TvProvider extends ContentProvider {
 
     private Uri insertProgram(Uri uri, ContentValues values) {
         // Mark the owner package of this program.
-        values.put(Programs.COLUMN_PACKAGE_NAME, getCallingPackage_());
+        values.put(Programs.COLUMN_PACKAGE_NAME, getCallerPackage());
 
         checkAndConvertGenre(values);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         long rowId = db.insert(PROGRAMS_TABLE, null, values);
         if (rowId > 0) {
+            Long channelId = values.getAsLong(Programs.COLUMN_CHANNEL_ID);
+            if (channelId != null) {
+                mProgramIntervalCache.invalidate(channelId);
+            }
             Uri programUri = TvContract.buildProgramUri(rowId);
             notifyChange(programUri);
             return programUri;
@@ -559,22 +1542,45 @@ public class TvProvider extends ContentProvider {
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        SqlParams params = createSqlParams(OP_DELETE, uri, selection, selectionArgs);
+        int match = sUriMatcher.match(uri);
+        SqlParams params = createSqlParams(OP_DELETE, uri, match,
+                needsToLimitPackage(uri, match), selection, selectionArgs);
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count = 0;
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
             case MATCH_CHANNEL_ID_LOGO:
-                ContentValues values = new ContentValues();
-                values.putNull(CHANNELS_COLUMN_LOGO);
-                count = db.update(params.getTables(), values, params.getSelection(),
-                        params.getSelectionArgs());
+                long channelId = Long.parseLong(uri.getPathSegments().get(1));
+                if (channelExists(params)) {
+                    count = db.delete(CHANNEL_LOGOS_TABLE, CHANNEL_LOGOS_COLUMN_CHANNEL_ID + "=?",
+                            new String[] { String.valueOf(channelId) });
+                }
+                if (count > 0) {
+                    scheduleOrphanedLogoFilesDeletion();
+                }
                 break;
             case MATCH_CHANNEL:
+            case MATCH_CHANNEL_ID:
+                count = db.delete(params.getTables(), params.getSelection(),
+                        params.getSelectionArgs());
+                if (count > 0) {
+                    onChannelsChanged();
+                    scheduleOrphanedLogoFilesDeletion();
+                    // The programs of the deleted channels are deleted as well.
+                    mProgramIntervalCache.invalidateAll();
+                }
+                break;
             case MATCH_PROGRAM:
+            case MATCH_PROGRAM_ID: {
+                long programsChannelId = getProgramsChannelId(uri, null);
+                count = db.delete(params.getTables(), params.getSelection(),
+                        params.getSelectionArgs());
+                if (count > 0) {
+                    invalidateProgramIntervals(programsChannelId);
+                }
+                break;
+            }
             case MATCH_WATCHED_PROGRAM:
-            case MATCH_CHANNEL_ID:
             case MATCH_PASSTHROUGH_ID:
-            case MATCH_PROGRAM_ID:
             case MATCH_WATCHED_PROGRAM_ID:
                 count = db.delete(params.getTables(), params.getSelection(),
                         params.getSelectionArgs());
@@ -590,34 +1596,76 @@ public class TvProvider extends ContentProvider {
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        SqlParams params = createSqlParams(OP_UPDATE, uri, selection, selectionArgs);
+        int match = sUriMatcher.match(uri);
+        SqlParams params = createSqlParams(OP_UPDATE, uri, match,
+                needsToLimitPackage(uri, match), selection, selectionArgs);
         if (params.getTables().equals(CHANNELS_TABLE)) {
             if (values.containsKey(Channels.COLUMN_LOCKED)
                     && !callerHasModifyParentalControlsPermission()) {
                 throw new SecurityException("Not allowed to modify Channels.COLUMN_LOCKED");
             }
-        } else if (params.getTables().equals(PROGRAMS_TABLE)) {
+            values.remove(CHANNELS_COLUMN_XMLTV_ID);
+        }
+        long programsChannelId = -1;
+        boolean updatesPrograms = params.getTables().equals(PROGRAMS_TABLE);
+        // The cached intervals only hold the times and the channels of the programs.
+        boolean updatesIntervals = updatesPrograms
+                && (values.containsKey(Programs.COLUMN_START_TIME_UTC_MILLIS)
+                        || values.containsKey(Programs.COLUMN_END_TIME_UTC_MILLIS)
+                        || values.containsKey(Programs.COLUMN_CHANNEL_ID));
+        if (updatesPrograms) {
             checkAndConvertGenre(values);
+            programsChannelId = getProgramsChannelId(uri, values);
         }
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count = db.update(params.getTables(), values, params.getSelection(),
                 params.getSelectionArgs());
         if (count > 0) {
+            if (updatesIntervals) {
+                invalidateProgramIntervals(programsChannelId);
+            } else if (params.getTables().equals(CHANNELS_TABLE)) {
+                onChannelsChanged();
+            }
             notifyChange(uri);
         }
         return count;
     }
 
-    private SqlParams createSqlParams(String operation, Uri uri, String selection,
-            String[] selectionArgs) {
+    // Returns the ID of the channel that all the programs that an update or a delete on
+    // {@code uri} changes belong to, if the URI tells it, or -1 if they may belong to any
+    // channel. The channel of a single program isn't looked up, as that would cost a query for
+    // every change of a program by ID.
+    private long getProgramsChannelId(Uri uri, ContentValues values) {
+        if (values != null && values.containsKey(Programs.COLUMN_CHANNEL_ID)) {
+            // The programs move from their channels to another.
+            return -1;
+        }
+        String paramChannelId = uri.getQueryParameter(TvContract.PARAM_CHANNEL);
+        return paramChannelId != null ? Long.parseLong(paramChannelId) : -1;
+    }
+
+    private void invalidateProgramIntervals(long channelId) {
+        if (channelId == -1) {
+            mProgramIntervalCache.invalidateAll();
+        } else {
+            mProgramIntervalCache.invalidate(channelId);
+        }
+    }
+
+    // Builds the tables, selection and arguments of an operation on {@code uri}, which matches
+    // {@code match}. The selection must not depend on anything but the URI pattern, the presence
+    // of its query parameters, the caller's selection and {@code limitToPackage}, since queries
+    // with the same selection share their SQL text. Everything else is a bound argument.
+    private SqlParams createSqlParams(String operation, Uri uri, int match,
+            boolean limitToPackage, String selection, String[] selectionArgs) {
         SqlParams params = new SqlParams(null, selection, selectionArgs);
-        if (needsToLimitPackage(uri)) {
+        if (limitToPackage) {
             if (!TextUtils.isEmpty(selection)) {
                 throw new SecurityException("Selection not allowed for " + uri);
             }
-            params.setWhere(BaseTvColumns.COLUMN_PACKAGE_NAME + "=?", getCallingPackage_());
+            params.setWhere(BaseTvColumns.COLUMN_PACKAGE_NAME + "=?", getCallerPackage());
         }
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
             case MATCH_CHANNEL:
                 String genre = uri.getQueryParameter(TvContract.PARAM_CANONICAL_GENRE);
                 if (genre == null) {
@@ -630,12 +1678,10 @@ public class TvProvider extends ContentProvider {
                     if (!Genres.isCanonical(genre)) {
                         throw new IllegalArgumentException("Not a canonical genre : " + genre);
                     }
-                    params.setTables(CHANNELS_TABLE_INNER_JOIN_PROGRAMS_TABLE);
+                    params.setTables(CHANNELS_TABLE);
                     String curTime = String.valueOf(System.currentTimeMillis());
-                    params.appendWhere("LIKE(?, " + Programs.COLUMN_CANONICAL_GENRE + ") AND "
-                            + Programs.COLUMN_START_TIME_UTC_MILLIS + "<=? AND "
-                            + Programs.COLUMN_END_TIME_UTC_MILLIS + ">=?",
-                            "%" + genre + "%", curTime, curTime);
+                    params.appendWhere(CHANNELS_GENRE_WHERE,
+                            String.valueOf(getCanonicalGenreMask(genre)), curTime, curTime);
                 }
                 String inputId = uri.getQueryParameter(TvContract.PARAM_INPUT);
                 if (inputId != null) {
@@ -671,6 +1717,28 @@ public class TvProvider extends ContentProvider {
                 params.setTables(PROGRAMS_TABLE);
                 params.appendWhere(Programs._ID + "=?", uri.getLastPathSegment());
                 break;
+            case MATCH_PROGRAM_SEARCH:
+                if (!operation.equals(OP_QUERY)) {
+                    throw new UnsupportedOperationException("Cannot " + operation + " that URI: "
+                            + uri);
+                }
+                params.setTables(PROGRAMS_TABLE_INNER_JOIN_PROGRAMS_SEARCH);
+                // The parameter in the table expression precedes the ones in the where clause.
+                String[] searchArgs = new String[] { uri.getLastPathSegment() };
+                if (params.getSelectionArgs() != null) {
+                    searchArgs = DatabaseUtils.appendSelectionArgs(searchArgs,
+                            params.getSelectionArgs());
+                }
+                params.setWhere(params.getSelection(), searchArgs);
+                break;
+            case MATCH_PROGRAM_NOW_NEXT:
+                if (!operation.equals(OP_QUERY)) {
+                    throw new UnsupportedOperationException("Cannot " + operation + " that URI: "
+                            + uri);
+                }
+                params.setTables(PROGRAMS_TABLE);
+                appendNowNextWhere(params, uri);
+                break;
             case MATCH_WATCHED_PROGRAM:
                 params.setTables(WATCHED_PROGRAMS_TABLE);
                 params.appendWhere(WATCHED_PROGRAMS_COLUMN_CONSOLIDATED + "=?", "1");
@@ -700,41 +1768,68 @@ public class TvProvider extends ContentProvider {
         return Character.toUpperCase(str.charAt(0)) + str.substring(1);
     }
 
-    @SuppressLint("DefaultLocale")
     private void checkAndConvertGenre(ContentValues values) {
-        String canonicalGenres = values.getAsString(Programs.COLUMN_CANONICAL_GENRE);
+        // The genre mask is derived from the canonical genres only.
+        values.remove(PROGRAMS_COLUMN_CANONICAL_GENRE_MASK);
+
+        String canonicalGenres = convertGenres(values.getAsString(Programs.COLUMN_CANONICAL_GENRE),
+                values.getAsString(Programs.COLUMN_BROADCAST_GENRE));
+        if (canonicalGenres != null || values.containsKey(Programs.COLUMN_CANONICAL_GENRE)) {
+            values.put(Programs.COLUMN_CANONICAL_GENRE, canonicalGenres);
+            values.put(PROGRAMS_COLUMN_CANONICAL_GENRE_MASK,
+                    getCanonicalGenreMask(canonicalGenres));
+        }
+    }
 
+    // Returns the canonical genres to store for a program with the given genres.
+    private static String convertGenres(String canonicalGenres, String broadcastGenres) {
         if (!TextUtils.isEmpty(canonicalGenres)) {
             // Check if the canonical genres are valid. If not, clear them.
             String[] genres = Genres.decode(canonicalGenres);
             for (String genre : genres) {
                 if (!Genres.isCanonical(genre)) {
-                    values.putNull(Programs.COLUMN_CANONICAL_GENRE);
                     canonicalGenres = null;
                     break;
                 }
             }
         }
 
-        if (TextUtils.isEmpty(canonicalGenres)) {
+        if (TextUtils.isEmpty(canonicalGenres) && !TextUtils.isEmpty(broadcastGenres)) {
             // If the canonical genre is not set, try to map the broadcast genre to the canonical
             // genre.
-            String broadcastGenres = values.getAsString(Programs.COLUMN_BROADCAST_GENRE);
-            if (!TextUtils.isEmpty(broadcastGenres)) {
-                Set<String> genreSet = new HashSet<String>();
-                String[] genres = Genres.decode(broadcastGenres);
-                for (String genre : genres) {
-                    String canonicalGenre = sGenreMap.get(genre.toUpperCase());
-                    if (Genres.isCanonical(canonicalGenre)) {
-                        genreSet.add(canonicalGenre);
-                    }
-                }
-                if (genreSet.size() > 0) {
-                    values.put(Programs.COLUMN_CANONICAL_GENRE,
-                            Genres.encode(genreSet.toArray(new String[0])));
-                }
+            String mappedGenres = sGenreMapper.map(broadcastGenres);
+            if (mappedGenres != null) {
+                return mappedGenres;
+            }
+        }
+        return canonicalGenres;
+    }
+
+    // Selects the channels whose program on the air has one of the canonical genres of a mask. The
+    // arguments are the mask and the current time twice. As for now/next, the program on the air
+    // is the one that started last, if it hasn't ended, so it is found by a single seek on the
+    // channel ID and start time index for each channel.
+    @VisibleForTesting
+    static final String CHANNELS_GENRE_WHERE = "(SELECT ("
+            + PROGRAMS_COLUMN_CANONICAL_GENRE_MASK + "&?)!=0 AND "
+            + Programs.COLUMN_END_TIME_UTC_MILLIS + ">=? FROM " + PROGRAMS_TABLE + " WHERE "
+            + Programs.COLUMN_CHANNEL_ID + "=" + CHANNELS_TABLE + "." + Channels._ID + " AND "
+            + Programs.COLUMN_START_TIME_UTC_MILLIS + "<=? ORDER BY "
+            + Programs.COLUMN_START_TIME_UTC_MILLIS + " DESC LIMIT 1)";
+
+    // Returns the bitmask of the given encoded canonical genres. Unknown genres are ignored.
+    private static long getCanonicalGenreMask(String canonicalGenres) {
+        if (TextUtils.isEmpty(canonicalGenres)) {
+            return 0;
+        }
+        long mask = 0;
+        for (String genre : Genres.decode(canonicalGenres)) {
+            Long bit = sCanonicalGenreMasks.get(genre);
+            if (bit != null) {
+                mask |= bit;
             }
         }
+        return mask;
     }
 
     // We might have more than one thread trying to make its way through applyBatch() so the
@@ -750,54 +1845,1576 @@ public class TvProvider extends ContentProvider {
         mTLBatchNotifications.set(batchNotifications);
     }
 
+    // The caller doesn't change within a batch, so its permissions and package are resolved once
+    // for all the operations of the batch.
+    private final ThreadLocal<CallerPermissions> mTLBatchCallerPermissions =
+            new ThreadLocal<CallerPermissions>();
+    private final ThreadLocal<String> mTLBatchCallingPackage = new ThreadLocal<String>();
+
+    private void startBatch() {
+        setBatchNotificationsSet(Sets.<Uri>newHashSet());
+        mTLBatchCallerPermissions.set(getCallerPermissions());
+        mTLBatchCallingPackage.set(getCallingPackage_());
+    }
+
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
-        setBatchNotificationsSet(Sets.<Uri>newHashSet());
-        Context context = getContext();
+        startBatch();
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        db.beginTransaction();
+        BatchTransaction transaction = new BatchTransaction(db);
         try {
-            ContentProviderResult[] results = super.applyBatch(operations);
-            db.setTransactionSuccessful();
+            final int numOperations = operations.size();
+            final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            for (int i = 0; i < numOperations; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0) {
+                    // Only the caller knows where the batch can be committed in part. The results
+                    // of the operations before are committed if the transaction is yielded, so
+                    // the back references to them stay valid.
+                    transaction.onOperationBoundary(operation.isYieldAllowed());
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            transaction.setSuccessful();
             return results;
         } finally {
-            db.endTransaction();
+            transaction.end();
+            onTransactionEnded();
+            mTLBatchCallerPermissions.set(null);
+            mTLBatchCallingPackage.set(null);
             final Set<Uri> notifications = getBatchNotificationsSet();
             setBatchNotificationsSet(null);
-            for (final Uri uri : notifications) {
-                context.getContentResolver().notifyChange(uri, null);
+            mNotificationDispatcher.notifyChanges(notifications);
+        }
+    }
+
+    // Inserts the rows in a single transaction, so that they are inserted as a whole or not at
+    // all, unless batch_yield_operations or batch_yield_interval_millis is set: the transaction
+    // may then be yielded between any two rows, which commits the rows before.
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        startBatch();
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        BatchTransaction transaction = new BatchTransaction(db);
+        try {
+            int result;
+            int match = sUriMatcher.match(uri);
+            if (match == MATCH_CHANNEL || match == MATCH_PROGRAM) {
+                // The caller was resolved by startBatch().
+                result = bulkInsertRows(db, transaction, match, values, getCallerPackage());
+            } else {
+                result = super.bulkInsert(uri, values);
+            }
+            transaction.setSuccessful();
+            return result;
+        } finally {
+            transaction.end();
+            onTransactionEnded();
+            mTLBatchCallerPermissions.set(null);
+            mTLBatchCallingPackage.set(null);
+            final Set<Uri> notifications = getBatchNotificationsSet();
+            setBatchNotificationsSet(null);
+            mNotificationDispatcher.notifyChanges(notifications);
+        }
+    }
+
+    // Inserts channels or programs as insert() would, but with one compiled statement per set of
+    // columns. A guide usually sends all its rows with the same columns, so the statement is
+    // compiled once and only rebound for each row.
+    private int bulkInsertRows(SQLiteDatabase db, BatchTransaction transaction, int match,
+            ContentValues[] values, String packageName) {
+        String table = match == MATCH_CHANNEL ? CHANNELS_TABLE : PROGRAMS_TABLE;
+        Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+        try {
+            SQLiteStatement statement = null;
+            String[] columns = null;
+            for (int r = 0; r < values.length; r++) {
+                ContentValues row = values[r];
+                if (r > 0) {
+                    transaction.onOperationBoundary(true);
+                }
+                // Mark the owner package of this row.
+                row.put(BaseTvColumns.COLUMN_PACKAGE_NAME, packageName);
+                if (match == MATCH_PROGRAM) {
+                    checkAndConvertGenre(row);
+                } else {
+                    row.remove(CHANNELS_COLUMN_XMLTV_ID);
+                }
+                if (columns == null || !hasColumns(row, columns)) {
+                    columns = row.keySet().toArray(new String[row.size()]);
+                    Arrays.sort(columns);
+                    String key = TextUtils.join(",", columns);
+                    statement = statements.get(key);
+                    if (statement == null) {
+                        statement = db.compileStatement(buildInsertSql(table, columns));
+                        statements.put(key, statement);
+                    }
+                }
+                for (int i = 0; i < columns.length; i++) {
+                    DatabaseUtils.bindObjectToProgram(statement, i + 1, row.get(columns[i]));
+                }
+                if (statement.executeInsert() <= 0) {
+                    throw new SQLException("Failed to insert row into " + table);
+                }
+            }
+        } finally {
+            for (SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+        }
+        if (match == MATCH_CHANNEL) {
+            onChannelsChanged();
+        }
+        // A single notification of the table reaches the observers of each inserted row as well.
+        notifyChange(match == MATCH_CHANNEL ? Channels.CONTENT_URI : Programs.CONTENT_URI);
+        return values.length;
+    }
+
+    private static boolean hasColumns(ContentValues values, String[] columns) {
+        if (values.size() != columns.length) {
+            return false;
+        }
+        for (String column : columns) {
+            if (!values.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String buildInsertSql(String table, String[] columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ",").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        return sql.append(')').toString();
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        switch (method) {
+            case METHOD_REPLACE_PROGRAMS:
+                return callReplacePrograms(method, extras);
+            case METHOD_GET_CHANGES:
+                if (getContext().checkCallingOrSelfPermission(PERMISSION_READ_EPG_DATA)
+                        != PackageManager.PERMISSION_GRANTED) {
+                    throw new SecurityException("Not allowed to call " + method);
+                }
+                return getChanges(extras != null ? extras.getLong(EXTRA_SINCE_SEQUENCE) : 0);
+            case METHOD_TRUNCATE_CHANGES:
+                if (Binder.getCallingUid() != Process.myUid()) {
+                    throw new SecurityException("Not allowed to call " + method);
+                }
+                if (extras == null || !extras.containsKey(EXTRA_MAX_ENTRY_COUNT)) {
+                    throw new IllegalArgumentException("Missing arguments for " + method);
+                }
+                truncateChanges(extras.getInt(EXTRA_MAX_ENTRY_COUNT));
+                return null;
+            case METHOD_IMPORT_XMLTV:
+                return callImportXmltv(method, extras);
+            case METHOD_INSERT_RECORDS:
+                return callInsertRecords(method, extras);
+            case METHOD_EXPORT_SNAPSHOT:
+                return callExportSnapshot(method, extras);
+            case METHOD_RESTORE_SNAPSHOT:
+                return callRestoreSnapshot(method, extras);
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    private Bundle callImportXmltv(String method, Bundle extras) {
+        ParcelFileDescriptor pfd = extras != null
+                ? (ParcelFileDescriptor) extras.getParcelable(EXTRA_FILE_DESCRIPTOR) : null;
+        try (InputStream in = pfd != null ? new AutoCloseInputStream(pfd) : null) {
+            if (getContext().checkCallingOrSelfPermission(PERMISSION_WRITE_EPG_DATA)
+                    != PackageManager.PERMISSION_GRANTED) {
+                throw new SecurityException("Not allowed to call " + method);
+            }
+            String inputId = extras != null ? extras.getString(EXTRA_INPUT_ID) : null;
+            if (in == null || TextUtils.isEmpty(inputId)) {
+                throw new IllegalArgumentException("Missing arguments for " + method);
+            }
+            // The notifications of the import are sent once it has ended.
+            startBatch();
+            XmltvImport xmltvImport = new XmltvImport(inputId, getCallerPackage());
+            synchronized (mXmltvImports) {
+                mXmltvImports.add(xmltvImport);
+            }
+            try {
+                return xmltvImport.run(in);
+            } finally {
+                synchronized (mXmltvImports) {
+                    mXmltvImports.remove(xmltvImport);
+                }
+                mTLBatchCallerPermissions.set(null);
+                mTLBatchCallingPackage.set(null);
+                final Set<Uri> notifications = getBatchNotificationsSet();
+                setBatchNotificationsSet(null);
+                mNotificationDispatcher.notifyChanges(notifications);
+            }
+        } catch (IOException | XmlPullParserException e) {
+            // The chunks imported before the error are kept.
+            Log.e(TAG, "Failed to import XMLTV", e);
+            throw new IllegalArgumentException("Failed to import XMLTV: " + e.getMessage());
+        }
+    }
+
+    private Bundle callInsertRecords(String method, Bundle extras) {
+        ParcelFileDescriptor pfd = extras != null
+                ? (ParcelFileDescriptor) extras.getParcelable(EXTRA_FILE_DESCRIPTOR) : null;
+        try (InputStream in = pfd != null ? new AutoCloseInputStream(pfd) : null) {
+            if (getContext().checkCallingOrSelfPermission(PERMISSION_WRITE_EPG_DATA)
+                    != PackageManager.PERMISSION_GRANTED) {
+                throw new SecurityException("Not allowed to call " + method);
+            }
+            if (in == null) {
+                throw new IllegalArgumentException("Missing arguments for " + method);
+            }
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            Bundle result = new RecordInserter(getCallerPackage()).run(new EpgRecordReader(in));
+            mInsertRecordsStats.add(SystemClock.elapsedRealtimeNanos() - startNanos);
+            return result;
+        } catch (IOException e) {
+            // The chunks inserted before the error are kept.
+            Log.e(TAG, "Failed to insert records", e);
+            throw new IllegalArgumentException("Failed to insert records: " + e.getMessage());
+        }
+    }
+
+    private Bundle callExportSnapshot(String method, Bundle extras) {
+        ParcelFileDescriptor pfd = extras != null
+                ? (ParcelFileDescriptor) extras.getParcelable(EXTRA_FILE_DESCRIPTOR) : null;
+        try (OutputStream out = pfd != null ? new AutoCloseOutputStream(pfd) : null) {
+            if (!callerHasAccessAllEpgDataPermission()
+                    || !callerHasAccessWatchedProgramsPermission()) {
+                throw new SecurityException("Not allowed to call " + method);
+            }
+            if (out == null) {
+                throw new IllegalArgumentException("Missing arguments for " + method);
+            }
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            // The writer isn't closed on failure, so that the reader sees a truncated stream.
+            Bundle result = new SnapshotExporter(new EpgRecordWriter(out))
+                    .run(extras.getBoolean(EXTRA_INCLUDE_LOGOS));
+            mExportSnapshotStats.add(SystemClock.elapsedRealtimeNanos() - startNanos);
+            return result;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to export snapshot", e);
+            throw new IllegalStateException("Failed to export snapshot: " + e.getMessage());
+        }
+    }
+
+    private Bundle callRestoreSnapshot(String method, Bundle extras) {
+        ParcelFileDescriptor pfd = extras != null
+                ? (ParcelFileDescriptor) extras.getParcelable(EXTRA_FILE_DESCRIPTOR) : null;
+        try (InputStream in = pfd != null ? new AutoCloseInputStream(pfd) : null) {
+            if (getContext().checkCallingOrSelfPermission(PERMISSION_WRITE_EPG_DATA)
+                    != PackageManager.PERMISSION_GRANTED
+                    || !callerHasAccessAllEpgDataPermission()
+                    || !callerHasAccessWatchedProgramsPermission()
+                    || !callerHasModifyParentalControlsPermission()) {
+                throw new SecurityException("Not allowed to call " + method);
+            }
+            if (in == null) {
+                throw new IllegalArgumentException("Missing arguments for " + method);
+            }
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            // The snapshot is copied to a file before the restore starts, so that its transaction
+            // never waits for the caller.
+            File spoolFile = File.createTempFile("snapshot", null, getContext().getCacheDir());
+            try {
+                try (OutputStream out = new FileOutputStream(spoolFile)) {
+                    Streams.copy(in, out);
+                }
+                Bundle result;
+                try (InputStream spoolIn = new FileInputStream(spoolFile)) {
+                    result = new SnapshotRestorer().run(new EpgRecordReader(spoolIn));
+                }
+                mRestoreSnapshotStats.add(SystemClock.elapsedRealtimeNanos() - startNanos);
+                return result;
+            } finally {
+                spoolFile.delete();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to restore snapshot", e);
+            throw new IllegalArgumentException("Failed to restore snapshot: " + e.getMessage());
+        }
+    }
+
+    private Bundle callReplacePrograms(String method, Bundle extras) {
+        if (getContext().checkCallingOrSelfPermission(PERMISSION_WRITE_EPG_DATA)
+                != PackageManager.PERMISSION_GRANTED) {
+            throw new SecurityException("Not allowed to call " + method);
+        }
+        if (extras == null || !extras.containsKey(EXTRA_CHANNEL_ID)
+                || !extras.containsKey(EXTRA_START_TIME) || !extras.containsKey(EXTRA_END_TIME)
+                || extras.getParcelableArrayList(EXTRA_PROGRAMS) == null) {
+            throw new IllegalArgumentException("Missing arguments for " + method);
+        }
+        return replacePrograms(extras.getLong(EXTRA_CHANNEL_ID), extras.getLong(EXTRA_START_TIME),
+                extras.getLong(EXTRA_END_TIME),
+                extras.<ContentValues>getParcelableArrayList(EXTRA_PROGRAMS));
+    }
+
+    private Bundle replacePrograms(long channelId, long startTime, long endTime,
+            ArrayList<ContentValues> programs) {
+        SqlParams channelParams = new SqlParams(CHANNELS_TABLE, Channels._ID + "=?",
+                String.valueOf(channelId));
+        if (!callerHasAccessAllEpgDataPermission()) {
+            channelParams.appendWhere(Channels.COLUMN_PACKAGE_NAME + "=?", getCallerPackage());
+        }
+        if (!channelExists(channelParams)) {
+            throw new IllegalArgumentException("Unknown channel " + channelId);
+        }
+        String packageName = getCallerPackage();
+        for (ContentValues program : programs) {
+            Long channel = program.getAsLong(Programs.COLUMN_CHANNEL_ID);
+            Long programStartTime = program.getAsLong(Programs.COLUMN_START_TIME_UTC_MILLIS);
+            if ((channel != null && channel != channelId) || programStartTime == null
+                    || programStartTime < startTime || programStartTime >= endTime) {
+                throw new IllegalArgumentException("Program out of the replaced window: "
+                        + program);
+            }
+            program.put(Programs.COLUMN_CHANNEL_ID, channelId);
+            program.put(Programs.COLUMN_PACKAGE_NAME, packageName);
+            checkAndConvertGenre(program);
+        }
+        // Both the new and the existing programs are walked in the order of their start times.
+        Collections.sort(programs, new Comparator<ContentValues>() {
+            @Override
+            public int compare(ContentValues lhs, ContentValues rhs) {
+                return Long.compare(lhs.getAsLong(Programs.COLUMN_START_TIME_UTC_MILLIS),
+                        rhs.getAsLong(Programs.COLUMN_START_TIME_UTC_MILLIS));
+            }
+        });
+        String[] columns = new String[sReplaceableProgramColumns.length + 1];
+        columns[0] = Programs._ID;
+        System.arraycopy(sReplaceableProgramColumns, 0, columns, 1,
+                sReplaceableProgramColumns.length);
+
+        int insertedCount = 0;
+        int updatedCount = 0;
+        int deletedCount = 0;
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            // The existing programs are read before any change, since a cursor over the table
+            // would be refilled from the changed rows once past its first window.
+            CursorSnapshot existingPrograms;
+            try (Cursor cursor = db.query(PROGRAMS_TABLE, columns,
+                    Programs.COLUMN_CHANNEL_ID + "=? AND " + Programs.COLUMN_START_TIME_UTC_MILLIS
+                            + ">=? AND " + Programs.COLUMN_START_TIME_UTC_MILLIS + "<?",
+                    new String[] { String.valueOf(channelId), String.valueOf(startTime),
+                            String.valueOf(endTime) },
+                    null, null, Programs.COLUMN_START_TIME_UTC_MILLIS + "," + Programs._ID)) {
+                existingPrograms = new CursorSnapshot(cursor);
+            }
+            try (Cursor cursor = existingPrograms.newCursor(null)) {
+                int startTimeIndex = cursor.getColumnIndexOrThrow(
+                        Programs.COLUMN_START_TIME_UTC_MILLIS);
+                boolean hasRow = cursor.moveToNext();
+                int i = 0;
+                while (hasRow || i < programs.size()) {
+                    ContentValues program = i < programs.size() ? programs.get(i) : null;
+                    int compared = !hasRow ? 1 : program == null ? -1 : Long.compare(
+                            cursor.getLong(startTimeIndex),
+                            program.getAsLong(Programs.COLUMN_START_TIME_UTC_MILLIS));
+                    if (compared < 0) {
+                        db.delete(PROGRAMS_TABLE, Programs._ID + "=?",
+                                new String[] { String.valueOf(cursor.getLong(0)) });
+                        deletedCount++;
+                        hasRow = cursor.moveToNext();
+                    } else if (compared > 0) {
+                        if (db.insert(PROGRAMS_TABLE, null, program) <= 0) {
+                            throw new SQLException("Failed to insert row into " + PROGRAMS_TABLE);
+                        }
+                        insertedCount++;
+                        i++;
+                    } else {
+                        if (!hasValues(cursor, program)) {
+                            // Columns that the new program doesn't have are cleared, as if the
+                            // program had been deleted and inserted again.
+                            for (String column : sReplaceableProgramColumns) {
+                                if (!program.containsKey(column)) {
+                                    program.putNull(column);
+                                }
+                            }
+                            // The genre mask follows the canonical genres, even cleared ones.
+                            program.put(PROGRAMS_COLUMN_CANONICAL_GENRE_MASK,
+                                    getCanonicalGenreMask(program.getAsString(
+                                            Programs.COLUMN_CANONICAL_GENRE)));
+                            db.update(PROGRAMS_TABLE, program, Programs._ID + "=?",
+                                    new String[] { String.valueOf(cursor.getLong(0)) });
+                            updatedCount++;
+                        }
+                        hasRow = cursor.moveToNext();
+                        i++;
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (insertedCount + updatedCount + deletedCount > 0) {
+            mProgramIntervalCache.invalidate(channelId);
+            notifyChange(Programs.CONTENT_URI);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(EXTRA_INSERTED_COUNT, insertedCount);
+        result.putInt(EXTRA_UPDATED_COUNT, updatedCount);
+        result.putInt(EXTRA_DELETED_COUNT, deletedCount);
+        return result;
+    }
+
+    private Bundle getChanges(long sinceSequence) {
+        SqlParams params = new SqlParams(CHANGE_LOG_TABLE, CHANGE_LOG_COLUMN_SEQUENCE + ">?",
+                String.valueOf(sinceSequence));
+        if (!callerHasAccessAllEpgDataPermission()) {
+            params.appendWhere(CHANGE_LOG_COLUMN_PACKAGE_NAME + "=?", getCallerPackage());
+        }
+        if (!callerHasAccessWatchedProgramsPermission()) {
+            params.appendWhere(CHANGE_LOG_COLUMN_TYPE + "!=" + CHANGE_TYPE_WATCHED_PROGRAM);
+        }
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Bundle result = new Bundle();
+        int count = 0;
+        int[] types = new int[MAX_CHANGES_PER_CALL];
+        long[] rowIds = new long[MAX_CHANGES_PER_CALL];
+        boolean[] deleted = new boolean[MAX_CHANGES_PER_CALL];
+        long sequence = sinceSequence;
+        try (Cursor cursor = db.query(CHANGE_LOG_TABLE, new String[] {
+                CHANGE_LOG_COLUMN_SEQUENCE, CHANGE_LOG_COLUMN_TYPE, CHANGE_LOG_COLUMN_ROW_ID,
+                CHANGE_LOG_COLUMN_DELETED }, params.getSelection(), params.getSelectionArgs(),
+                null, null, CHANGE_LOG_COLUMN_SEQUENCE, String.valueOf(MAX_CHANGES_PER_CALL + 1))) {
+            while (cursor.moveToNext()) {
+                if (count == MAX_CHANGES_PER_CALL) {
+                    result.putBoolean(EXTRA_HAS_MORE, true);
+                    break;
+                }
+                sequence = cursor.getLong(0);
+                types[count] = cursor.getInt(1);
+                rowIds[count] = cursor.getLong(2);
+                deleted[count] = cursor.getInt(3) != 0;
+                count++;
+            }
+        }
+        // Read after the changes, so that a truncation that removed some of them is noticed.
+        long truncatedSequence = getTruncatedChangeLogSequence(db);
+        if (sinceSequence < truncatedSequence) {
+            // The client must start over from the latest sequence number.
+            result.clear();
+            result.putBoolean(EXTRA_RESET, true);
+            result.putLong(EXTRA_SEQUENCE, getChangeLogSequence(db));
+            return result;
+        }
+        result.putLong(EXTRA_SEQUENCE, sequence);
+        result.putIntArray(EXTRA_CHANGE_TYPES, Arrays.copyOf(types, count));
+        result.putLongArray(EXTRA_CHANGE_ROW_IDS, Arrays.copyOf(rowIds, count));
+        result.putBooleanArray(EXTRA_CHANGE_DELETED, Arrays.copyOf(deleted, count));
+        return result;
+    }
+
+    // Returns the sequence number of the latest entry ever added to the change log.
+    private static long getChangeLogSequence(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(MAX(seq),0) FROM sqlite_sequence WHERE name=?",
+                new String[] { CHANGE_LOG_TABLE });
+    }
+
+    private static long getTruncatedChangeLogSequence(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT "
+                + CHANGE_LOG_STATE_COLUMN_TRUNCATED_SEQUENCE + " FROM " + CHANGE_LOG_STATE_TABLE,
+                null);
+    }
+
+    private void truncateChanges(int maxEntryCount) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            // The newest entry that is not kept.
+            long truncatedSequence = DatabaseUtils.longForQuery(db, "SELECT IFNULL((SELECT "
+                    + CHANGE_LOG_COLUMN_SEQUENCE + " FROM " + CHANGE_LOG_TABLE + " ORDER BY "
+                    + CHANGE_LOG_COLUMN_SEQUENCE + " DESC LIMIT 1 OFFSET ?),0)",
+                    new String[] { String.valueOf(maxEntryCount) });
+            if (truncatedSequence > 0) {
+                db.execSQL("UPDATE " + CHANGE_LOG_STATE_TABLE + " SET "
+                        + CHANGE_LOG_STATE_COLUMN_TRUNCATED_SEQUENCE + "=?",
+                        new Object[] { truncatedSequence });
+                int count = db.delete(CHANGE_LOG_TABLE, CHANGE_LOG_COLUMN_SEQUENCE + "<=?",
+                        new String[] { String.valueOf(truncatedSequence) });
+                if (DEBUG) {
+                    Log.d(TAG, "Truncated " + count + " entries from the change log");
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Returns whether the columns of the current row after the first one have the given values,
+    // where missing values are NULL.
+    private static boolean hasValues(Cursor cursor, ContentValues values) {
+        for (int i = 1; i < cursor.getColumnCount(); i++) {
+            String column = cursor.getColumnName(i);
+            if (values.get(column) == null) {
+                if (!cursor.isNull(i)) {
+                    return false;
+                }
+                continue;
+            }
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    Long longValue = values.getAsLong(column);
+                    if (longValue == null || longValue != cursor.getLong(i)) {
+                        return false;
+                    }
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    Double doubleValue = values.getAsDouble(column);
+                    if (doubleValue == null || doubleValue != cursor.getDouble(i)) {
+                        return false;
+                    }
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    if (!cursor.getString(i).equals(values.getAsString(column))) {
+                        return false;
+                    }
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    if (!Arrays.equals(cursor.getBlob(i), values.getAsByteArray(column))) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private final DurationStats mBatchTransactionStats = new DurationStats("batch transaction");
+    private final AtomicInteger mBatchYieldCount = new AtomicInteger();
+
+    // The transaction of applyBatch() or bulkInsert(), which is yielded at a boundary where the
+    // caller allows it after mBatchYieldOperations operations or mBatchYieldIntervalNanos, if
+    // another thread waits for the database. The operations before a yield are committed, so a
+    // failure then only rolls back the operations since the last yield. Both limits are off by
+    // default, and the transaction is then committed as a whole or not at all.
+    private final class BatchTransaction {
+        private final SQLiteDatabase mDb;
+        private final int mYieldOperations = getBatchYieldOperations();
+        private final long mYieldIntervalNanos = getBatchYieldIntervalNanos();
+        // When the current transaction began, for the time it holds the database.
+        private long mStartNanos;
+        // When the yield was last considered, and how many operations have run since.
+        private long mCheckNanos;
+        private int mOperationCount;
+
+        BatchTransaction(SQLiteDatabase db) {
+            mDb = db;
+            mDb.beginTransaction();
+            mStartNanos = SystemClock.elapsedRealtimeNanos();
+            mCheckNanos = mStartNanos;
+        }
+
+        void onOperationBoundary(boolean yieldAllowed) {
+            mOperationCount++;
+            if (!yieldAllowed) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtimeNanos();
+            boolean chunkDone = (mYieldOperations > 0 && mOperationCount >= mYieldOperations)
+                    || (mYieldIntervalNanos > 0 && now - mCheckNanos >= mYieldIntervalNanos);
+            if (!chunkDone) {
+                return;
+            }
+            mOperationCount = 0;
+            mCheckNanos = now;
+            if (mDb.yieldIfContendedSafely()) {
+                mBatchTransactionStats.add(now - mStartNanos);
+                mBatchYieldCount.incrementAndGet();
+                mStartNanos = SystemClock.elapsedRealtimeNanos();
+                mCheckNanos = mStartNanos;
+            }
+        }
+
+        void setSuccessful() {
+            mDb.setTransactionSuccessful();
+        }
+
+        void end() {
+            mDb.endTransaction();
+            mBatchTransactionStats.add(SystemClock.elapsedRealtimeNanos() - mStartNanos);
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        final Set<Uri> batchNotifications = getBatchNotificationsSet();
+        if (batchNotifications != null) {
+            batchNotifications.add(uri);
+        } else {
+            mNotificationDispatcher.notifyChange(uri);
+        }
+    }
+
+    // An import of METHOD_IMPORT_XMLTV. The channels and programs are buffered as they are parsed,
+    // and written a chunk at a time, each in its own transaction, so that the database is never
+    // held while waiting for the writer of the document. Programs needn't come in order of start
+    // time, so each chunk deletes the previous programs of its channels over all the time range
+    // imported so far. The counts are read by dump() while the import runs.
+    private final class XmltvImport implements XmltvParser.Callback {
+        private final String mInputId;
+        private final String mPackageName;
+        private final XmltvParser mParser = new XmltvParser();
+        private final SQLiteDatabase mDb = mOpenHelper.getWritableDatabase();
+        private final long mStartNanos = SystemClock.elapsedRealtimeNanos();
+        // The row IDs of the written channels of the input by their XMLTV IDs.
+        private final Map<String, Long> mChannelIds = new HashMap<String, Long>();
+        // The earliest start time and the latest end time of the imported programs of each
+        // channel, between which its previous programs are replaced.
+        private final Map<Long, long[]> mImportedRanges = new HashMap<Long, long[]>();
+        // The channels and programs of the current chunk, with the XMLTV ID of the channel of
+        // each program, as the channel may not be written yet.
+        private final Map<String, ContentValues> mChannels =
+                new LinkedHashMap<String, ContentValues>();
+        private final List<ContentValues> mPrograms =
+                new ArrayList<ContentValues>(IMPORT_CHUNK_SIZE);
+        private final List<String> mProgramChannelIds = new ArrayList<String>(IMPORT_CHUNK_SIZE);
+        // The highest program row ID before the import. Programs are AUTOINCREMENT, so the
+        // imported ones are above it.
+        private long mLastPreviousProgramId;
+        private volatile int mChannelCount;
+        private volatile int mProgramCount;
+        private volatile int mSkippedCount;
+
+        XmltvImport(String inputId, String packageName) {
+            mInputId = inputId;
+            mPackageName = packageName;
+        }
+
+        Bundle run(InputStream in) throws IOException, XmlPullParserException {
+            mLastPreviousProgramId = DatabaseUtils.longForQuery(mDb,
+                    "SELECT IFNULL(MAX(" + Programs._ID + "),0) FROM " + PROGRAMS_TABLE, null);
+            loadChannelIds();
+            mParser.parse(in, this);
+            flush();
+
+            long elapsedNanos = SystemClock.elapsedRealtimeNanos() - mStartNanos;
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+            int skippedCount = mSkippedCount + mParser.getInvalidProgramCount();
+            mXmltvImportStats.add(elapsedNanos);
+            Log.i(TAG, "Imported XMLTV for " + mInputId + ": channels=" + mChannelCount
+                    + " programs=" + mProgramCount + " skipped=" + skippedCount + " bytes="
+                    + mParser.getByteCount() + " in " + elapsedMillis + "ms ("
+                    + mProgramCount * 1000L / Math.max(elapsedMillis, 1) + " programs/s)");
+
+            Bundle result = new Bundle();
+            result.putInt(EXTRA_CHANNEL_COUNT, mChannelCount);
+            result.putInt(EXTRA_PROGRAM_COUNT, mProgramCount);
+            result.putInt(EXTRA_SKIPPED_COUNT, skippedCount);
+            result.putLong(EXTRA_BYTE_COUNT, mParser.getByteCount());
+            result.putLong(EXTRA_ELAPSED_MILLIS, elapsedMillis);
+            return result;
+        }
+
+        private void loadChannelIds() {
+            try (Cursor cursor = mDb.query(CHANNELS_TABLE,
+                    new String[] { Channels._ID, CHANNELS_COLUMN_XMLTV_ID },
+                    Channels.COLUMN_PACKAGE_NAME + "=? AND " + Channels.COLUMN_INPUT_ID + "=? AND "
+                            + CHANNELS_COLUMN_XMLTV_ID + " IS NOT NULL",
+                    new String[] { mPackageName, mInputId }, null, null, null)) {
+                while (cursor.moveToNext()) {
+                    mChannelIds.put(cursor.getString(1), cursor.getLong(0));
+                }
+            }
+        }
+
+        @Override
+        public void onChannel(String channelId, String displayName, String displayNumber) {
+            // XMLTV rarely has a display number, so a missing value keeps the one already set.
+            ContentValues values = new ContentValues();
+            if (displayName != null) {
+                values.put(Channels.COLUMN_DISPLAY_NAME, displayName);
+            }
+            if (displayNumber != null) {
+                values.put(Channels.COLUMN_DISPLAY_NUMBER, displayNumber);
+            }
+            mChannels.put(channelId, values);
+            mChannelCount++;
+            if (mChannels.size() >= IMPORT_CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void onProgram(String channelId, ContentValues program) {
+            if (!mChannelIds.containsKey(channelId) && !mChannels.containsKey(channelId)) {
+                mSkippedCount++;
+                return;
+            }
+            mPrograms.add(program);
+            mProgramChannelIds.add(channelId);
+            if (mPrograms.size() >= IMPORT_CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        // Writes the current chunk in a transaction, and commits it.
+        private void flush() {
+            if (mChannels.isEmpty() && mPrograms.isEmpty()) {
+                return;
+            }
+            BatchTransaction transaction = new BatchTransaction(mDb);
+            try {
+                writeChannels();
+                if (!mPrograms.isEmpty()) {
+                    deleteReplacedPrograms(addImportedRanges());
+                    bulkInsertRows(mDb, transaction, MATCH_PROGRAM,
+                            mPrograms.toArray(new ContentValues[mPrograms.size()]), mPackageName);
+                }
+                transaction.setSuccessful();
+            } finally {
+                transaction.end();
+                onTransactionEnded();
+            }
+            if (!mChannels.isEmpty()) {
+                notifyChange(Channels.CONTENT_URI);
+            }
+            mProgramCount += mPrograms.size();
+            mChannels.clear();
+            mPrograms.clear();
+            mProgramChannelIds.clear();
+        }
+
+        private void writeChannels() {
+            if (!mChannels.isEmpty()) {
+                onChannelsChanged();
+            }
+            for (Map.Entry<String, ContentValues> entry : mChannels.entrySet()) {
+                ContentValues values = entry.getValue();
+                Long rowId = mChannelIds.get(entry.getKey());
+                if (rowId != null) {
+                    if (values.size() > 0) {
+                        mDb.update(CHANNELS_TABLE, values, Channels._ID + "=?",
+                                new String[] { String.valueOf(rowId) });
+                    }
+                    continue;
+                }
+                values.put(Channels.COLUMN_INPUT_ID, mInputId);
+                values.put(Channels.COLUMN_PACKAGE_NAME, mPackageName);
+                values.put(CHANNELS_COLUMN_XMLTV_ID, entry.getKey());
+                rowId = mDb.insert(CHANNELS_TABLE, null, values);
+                if (rowId <= 0) {
+                    throw new SQLException("Failed to insert row into " + CHANNELS_TABLE);
+                }
+                mChannelIds.put(entry.getKey(), rowId);
+            }
+        }
+
+        // Sets the channel of the programs of the chunk, and adds their times to the imported
+        // ranges. Returns the channels of the chunk.
+        private Set<Long> addImportedRanges() {
+            Set<Long> channelIds = new HashSet<Long>();
+            for (int i = 0; i < mPrograms.size(); i++) {
+                ContentValues program = mPrograms.get(i);
+                long channelId = mChannelIds.get(mProgramChannelIds.get(i));
+                program.put(Programs.COLUMN_CHANNEL_ID, channelId);
+                channelIds.add(channelId);
+                long startTime = program.getAsLong(Programs.COLUMN_START_TIME_UTC_MILLIS);
+                Long endTime = program.getAsLong(Programs.COLUMN_END_TIME_UTC_MILLIS);
+                // A program without an end still replaces the one which starts at the same time.
+                long rangeEnd = endTime != null && endTime > startTime ? endTime : startTime + 1;
+                long[] range = mImportedRanges.get(channelId);
+                if (range == null) {
+                    mImportedRanges.put(channelId, new long[] { startTime, rangeEnd });
+                } else {
+                    range[0] = Math.min(range[0], startTime);
+                    range[1] = Math.max(range[1], rangeEnd);
+                }
+            }
+            return channelIds;
+        }
+
+        private void deleteReplacedPrograms(Set<Long> channelIds) {
+            for (long channelId : channelIds) {
+                long[] range = mImportedRanges.get(channelId);
+                mDb.delete(PROGRAMS_TABLE, Programs.COLUMN_CHANNEL_ID + "=? AND "
+                        + Programs.COLUMN_START_TIME_UTC_MILLIS + ">=? AND "
+                        + Programs.COLUMN_START_TIME_UTC_MILLIS + "<? AND "
+                        + Programs._ID + "<=? AND " + Programs.COLUMN_PACKAGE_NAME + "=?",
+                        new String[] { String.valueOf(channelId), String.valueOf(range[0]),
+                                String.valueOf(range[1]), String.valueOf(mLastPreviousProgramId),
+                                mPackageName });
+            }
+        }
+
+        void dump(PrintWriter writer) {
+            writer.println("  " + mPackageName + " input=" + mInputId + " bytes="
+                    + mParser.getByteCount() + " channels=" + mChannelCount + " programs="
+                    + mProgramCount + " skipped=" + mSkippedCount + " elapsed="
+                    + TimeUnit.NANOSECONDS.toMillis(SystemClock.elapsedRealtimeNanos()
+                            - mStartNanos) + "ms");
+        }
+    }
+
+    // Inserts the rows of METHOD_INSERT_RECORDS. The values are bound straight from the reader to
+    // a statement compiled for each table record, so no ContentValues is built for a row. A chunk
+    // only goes on with records that have fully arrived, so its transaction is never held while
+    // the writer is waited for.
+    private final class RecordInserter {
+        private final String mPackageName;
+        private final SQLiteDatabase mDb = mOpenHelper.getWritableDatabase();
+        // The row IDs of the inserted channels, for the channel references of programs.
+        private long[] mChannelIds = new long[16];
+        private int mChannelCount;
+        private int mProgramCount;
+
+        // The current table, as in EpgRecordFormat, and its name.
+        private int mTable;
+        private String mTableName;
+        private SQLiteStatement mStatement;
+        // The statement parameter of each column of the current table, or 0 if it isn't bound as
+        // it is.
+        private int[] mParameterIndexes;
+        private int mPackageNameIndex;
+        // For programs, the columns of the channel ID and of the genres, or -1, and the parameter
+        // of the converted canonical genres, which is followed by the one of their mask.
+        private int mChannelIdColumn;
+        private int mCanonicalGenreColumn;
+        private int mBroadcastGenreColumn;
+        private int mCanonicalGenreIndex;
+
+        RecordInserter(String packageName) {
+            mPackageName = packageName;
+        }
+
+        Bundle run(EpgRecordReader reader) throws IOException {
+            BatchTransaction transaction = null;
+            int chunkRowCount = 0;
+            long chunkStartNanos = 0;
+            try {
+                int record;
+                while ((record = reader.next()) != EpgRecordFormat.RECORD_END) {
+                    if (transaction == null) {
+                        transaction = new BatchTransaction(mDb);
+                        chunkStartNanos = SystemClock.elapsedRealtimeNanos();
+                    } else {
+                        transaction.onOperationBoundary(false);
+                    }
+                    if (record == EpgRecordFormat.RECORD_TABLE) {
+                        compileStatement(reader);
+                    } else if (record == EpgRecordFormat.RECORD_ROW) {
+                        insertRow(reader);
+                        chunkRowCount++;
+                    } else {
+                        throw new IllegalArgumentException("Unsupported record " + record);
+                    }
+                    if (chunkRowCount >= IMPORT_CHUNK_SIZE
+                            || SystemClock.elapsedRealtimeNanos() - chunkStartNanos
+                                    >= IMPORT_CHUNK_MAX_NANOS
+                            || !reader.awaitBufferedData(IMPORT_COMMIT_DELAY_MILLIS)) {
+                        transaction.setSuccessful();
+                        transaction.end();
+                        transaction = null;
+                        chunkRowCount = 0;
+                        onTransactionEnded();
+                    }
+                }
+                if (transaction != null) {
+                    transaction.setSuccessful();
+                }
+            } finally {
+                if (transaction != null) {
+                    transaction.end();
+                }
+                if (mStatement != null) {
+                    mStatement.close();
+                }
+                onTransactionEnded();
+                if (mChannelCount > 0) {
+                    notifyChange(Channels.CONTENT_URI);
+                }
+                if (mProgramCount > 0) {
+                    notifyChange(Programs.CONTENT_URI);
+                }
+            }
+
+            Bundle result = new Bundle();
+            result.putInt(EXTRA_CHANNEL_COUNT, mChannelCount);
+            result.putInt(EXTRA_PROGRAM_COUNT, mProgramCount);
+            result.putLongArray(EXTRA_CHANNEL_IDS, Arrays.copyOf(mChannelIds, mChannelCount));
+            return result;
+        }
+
+        private void compileStatement(EpgRecordReader reader) {
+            if (mStatement != null) {
+                mStatement.close();
+                mStatement = null;
+            }
+            Set<String> insertableColumns;
+            switch (reader.getTable()) {
+                case EpgRecordFormat.TABLE_CHANNELS:
+                    mTableName = CHANNELS_TABLE;
+                    insertableColumns = sInsertableChannelColumns;
+                    break;
+                case EpgRecordFormat.TABLE_PROGRAMS:
+                    mTableName = PROGRAMS_TABLE;
+                    insertableColumns = sInsertableProgramColumns;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown table " + reader.getTable());
+            }
+            mTable = reader.getTable();
+            String[] columns = reader.getColumnNames();
+            mParameterIndexes = new int[columns.length];
+            mChannelIdColumn = -1;
+            mCanonicalGenreColumn = -1;
+            mBroadcastGenreColumn = -1;
+            List<String> boundColumns = new ArrayList<String>();
+            for (int i = 0; i < columns.length; i++) {
+                if (!insertableColumns.contains(columns[i])) {
+                    throw new IllegalArgumentException("Invalid column " + columns[i]);
+                }
+                if (mTable == EpgRecordFormat.TABLE_PROGRAMS) {
+                    if (columns[i].equals(Programs.COLUMN_CHANNEL_ID)) {
+                        mChannelIdColumn = i;
+                    } else if (columns[i].equals(Programs.COLUMN_CANONICAL_GENRE)) {
+                        // Bound after conversion, with the mask.
+                        mCanonicalGenreColumn = i;
+                        continue;
+                    } else if (columns[i].equals(Programs.COLUMN_BROADCAST_GENRE)) {
+                        mBroadcastGenreColumn = i;
+                    }
+                }
+                boundColumns.add(columns[i]);
+                mParameterIndexes[i] = boundColumns.size();
+            }
+            boundColumns.add(BaseTvColumns.COLUMN_PACKAGE_NAME);
+            mPackageNameIndex = boundColumns.size();
+            if (mTable == EpgRecordFormat.TABLE_PROGRAMS) {
+                boundColumns.add(Programs.COLUMN_CANONICAL_GENRE);
+                mCanonicalGenreIndex = boundColumns.size();
+                boundColumns.add(PROGRAMS_COLUMN_CANONICAL_GENRE_MASK);
+            }
+            mStatement = mDb.compileStatement(buildInsertSql(mTableName,
+                    boundColumns.toArray(new String[boundColumns.size()])));
+        }
+
+        private void insertRow(EpgRecordReader reader) {
+            if (mStatement == null) {
+                throw new IllegalArgumentException("Row before any table");
+            }
+            for (int i = 0; i < mParameterIndexes.length; i++) {
+                int index = mParameterIndexes[i];
+                if (index == 0) {
+                    continue;
+                }
+                if (reader.getType(i) == EpgRecordFormat.VALUE_CHANNEL_REFERENCE) {
+                    long channel = reader.getLong(i);
+                    if (i != mChannelIdColumn || channel < 0 || channel >= mChannelCount) {
+                        throw new IllegalArgumentException("Invalid channel reference " + channel);
+                    }
+                    mStatement.bindLong(index, mChannelIds[(int) channel]);
+                } else {
+                    bindRecordValue(mStatement, index, reader, i);
+                }
+            }
+            mStatement.bindString(mPackageNameIndex, mPackageName);
+            if (mTable == EpgRecordFormat.TABLE_PROGRAMS) {
+                String canonicalGenres = convertGenres(getString(reader, mCanonicalGenreColumn),
+                        getString(reader, mBroadcastGenreColumn));
+                if (canonicalGenres != null) {
+                    mStatement.bindString(mCanonicalGenreIndex, canonicalGenres);
+                } else {
+                    mStatement.bindNull(mCanonicalGenreIndex);
+                }
+                mStatement.bindLong(mCanonicalGenreIndex + 1,
+                        getCanonicalGenreMask(canonicalGenres));
+            }
+
+            long rowId = mStatement.executeInsert();
+            if (rowId <= 0) {
+                throw new SQLException("Failed to insert row into " + mTableName);
+            }
+            if (mTable == EpgRecordFormat.TABLE_CHANNELS) {
+                if (mTLChannelsChanged.get() == null) {
+                    // The first channel of the chunk.
+                    onChannelsChanged();
+                }
+                if (mChannelCount == mChannelIds.length) {
+                    mChannelIds = Arrays.copyOf(mChannelIds, mChannelCount * 2);
+                }
+                mChannelIds[mChannelCount++] = rowId;
+            } else {
+                mProgramCount++;
+            }
+        }
+
+        private String getString(EpgRecordReader reader, int column) {
+            return column >= 0 && reader.getType(column) == EpgRecordFormat.VALUE_STRING
+                    ? reader.getString(column) : null;
+        }
+    }
+
+    // Binds a value of the current row of {@code reader}, which must not be a channel reference.
+    private static void bindRecordValue(SQLiteStatement statement, int index,
+            EpgRecordReader reader, int column) {
+        switch (reader.getType(column)) {
+            case EpgRecordFormat.VALUE_NULL:
+                statement.bindNull(index);
+                break;
+            case EpgRecordFormat.VALUE_INTEGER:
+                statement.bindLong(index, reader.getLong(column));
+                break;
+            case EpgRecordFormat.VALUE_DOUBLE:
+                statement.bindDouble(index, reader.getDouble(column));
+                break;
+            case EpgRecordFormat.VALUE_STRING:
+                statement.bindString(index, reader.getString(column));
+                break;
+            case EpgRecordFormat.VALUE_BLOB:
+                statement.bindBlob(index, reader.getBlob(column));
+                break;
+            default:
+                throw new IllegalArgumentException("Unexpected channel reference");
+        }
+    }
+
+    // Writes the snapshot of METHOD_EXPORT_SNAPSHOT. The tables are read in pages of row IDs
+    // outside of any transaction, so that writers are never blocked, and they may change
+    // meanwhile. The rows that did are then read from the change log, in pages as well, and
+    // written after the tables, as rows to update and rows to delete. This is repeated for the
+    // rows that change meanwhile, until a round reads them without any change committed during
+    // it. Restoring the stream in order gives the database as of the start of that round.
+    private final class SnapshotExporter {
+        private final SQLiteDatabase mDb = mOpenHelper.getReadableDatabase();
+        private final EpgRecordWriter mWriter;
+        // The number of rows read from each table, indexed by its ID in EpgRecordFormat. The
+        // changed rows written after the tables aren't counted, so that no row is counted twice.
+        private final int[] mRowCounts = new int[EpgRecordFormat.TABLE_CHANNEL_LOGOS + 1];
+        private int mChangedRowCount;
+
+        SnapshotExporter(EpgRecordWriter writer) {
+            mWriter = writer;
+        }
+
+        Bundle run(boolean includeLogos) throws IOException {
+            long sequence = getChangeLogSequence(mDb);
+            exportTable(EpgRecordFormat.TABLE_CHANNELS, CHANNELS_TABLE);
+            exportTable(EpgRecordFormat.TABLE_PROGRAMS, PROGRAMS_TABLE);
+            exportTable(EpgRecordFormat.TABLE_WATCHED_PROGRAMS, WATCHED_PROGRAMS_TABLE);
+            if (includeLogos) {
+                exportLogos();
+            }
+
+            for (int round = 0; ; round++) {
+                // The change log entries of the rows read in the round before must all be kept.
+                if (getTruncatedChangeLogSequence(mDb) > sequence) {
+                    throw new IllegalStateException("Change log truncated during the export");
+                }
+                long roundSequence = getChangeLogSequence(mDb);
+                if (roundSequence == sequence) {
+                    break;
+                }
+                if (round == MAX_EXPORT_CHANGE_ROUNDS
+                        || mChangedRowCount > MAX_EXPORT_CHANGED_ROW_COUNT) {
+                    throw new IllegalStateException("Too many changes during the export");
+                }
+                // Channels go first, so that programs don't refer to channels not restored yet.
+                exportChanges(EpgRecordFormat.TABLE_CHANNELS, CHANNELS_TABLE, CHANGE_TYPE_CHANNEL,
+                        sequence);
+                exportChanges(EpgRecordFormat.TABLE_PROGRAMS, PROGRAMS_TABLE, CHANGE_TYPE_PROGRAM,
+                        sequence);
+                exportChanges(EpgRecordFormat.TABLE_WATCHED_PROGRAMS, WATCHED_PROGRAMS_TABLE,
+                        CHANGE_TYPE_WATCHED_PROGRAM, sequence);
+                sequence = roundSequence;
+            }
+            mWriter.finish();
+
+            Bundle result = new Bundle();
+            result.putInt(EXTRA_CHANNEL_COUNT, mRowCounts[EpgRecordFormat.TABLE_CHANNELS]);
+            result.putInt(EXTRA_PROGRAM_COUNT, mRowCounts[EpgRecordFormat.TABLE_PROGRAMS]);
+            result.putInt(EXTRA_WATCHED_PROGRAM_COUNT,
+                    mRowCounts[EpgRecordFormat.TABLE_WATCHED_PROGRAMS]);
+            result.putInt(EXTRA_LOGO_COUNT, mRowCounts[EpgRecordFormat.TABLE_CHANNEL_LOGOS]);
+            result.putLong(EXTRA_SEQUENCE, sequence);
+            return result;
+        }
+
+        // Writes all the columns of the rows of a table, in pages that continue after the last
+        // row ID of the previous one.
+        private void exportTable(int table, String tableName) throws IOException {
+            String[] selectionArgs = new String[] { String.valueOf(Long.MIN_VALUE) };
+            boolean started = false;
+            while (true) {
+                try (Cursor cursor = mDb.query(tableName, null, BaseTvColumns._ID + ">?",
+                        selectionArgs, null, null, BaseTvColumns._ID,
+                        String.valueOf(EXPORT_PAGE_SIZE))) {
+                    if (!started) {
+                        mWriter.startTable(table, cursor.getColumnNames());
+                        started = true;
+                    }
+                    writeRows(cursor);
+                    mRowCounts[table] += cursor.getCount();
+                    if (cursor.getCount() < EXPORT_PAGE_SIZE) {
+                        return;
+                    }
+                    cursor.moveToLast();
+                    selectionArgs[0] = cursor.getString(
+                            cursor.getColumnIndexOrThrow(BaseTvColumns._ID));
+                }
+            }
+        }
+
+        private void writeRows(Cursor cursor) throws IOException {
+            Object[] values = new Object[cursor.getColumnCount()];
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = CursorSnapshot.getValue(cursor, i);
+                }
+                mWriter.writeRow(values);
+            }
+        }
+
+        // Writes the logo of each channel that has one, read from its file. A channel has a
+        // single logo row, so they are only written once, with the other tables.
+        private void exportLogos() throws IOException {
+            mWriter.startTable(EpgRecordFormat.TABLE_CHANNEL_LOGOS,
+                    CHANNEL_LOGOS_COLUMN_CHANNEL_ID, CHANNEL_LOGOS_COLUMN_LOGO);
+            try (Cursor cursor = mDb.query(CHANNEL_LOGOS_TABLE, new String[] {
+                    CHANNEL_LOGOS_COLUMN_CHANNEL_ID, CHANNEL_LOGOS_COLUMN_LOGO_HASH }, null, null,
+                    null, null, null)) {
+                while (cursor.moveToNext()) {
+                    byte[] logo;
+                    try {
+                        logo = IoUtils.readFileAsByteArray(
+                                getLogoFile(cursor.getString(1)).getPath());
+                    } catch (IOException e) {
+                        // The channel was deleted since, and its logo file with it.
+                        continue;
+                    }
+                    mWriter.writeRow(cursor.getLong(0), logo);
+                    mRowCounts[EpgRecordFormat.TABLE_CHANNEL_LOGOS]++;
+                }
+            }
+        }
+
+        // Writes the rows of a table changed since a sequence number of the change log, then the
+        // IDs of the deleted ones. Both are read in pages of row IDs, which the change log has an
+        // index on, joined to the table for the changed rows.
+        private void exportChanges(int table, String tableName, int type, long sinceSequence)
+                throws IOException {
+            String changes = " WHERE c." + CHANGE_LOG_COLUMN_TYPE + "=" + type
+                    + (" AND c." + CHANGE_LOG_COLUMN_SEQUENCE + ">?")
+                    + (" AND c." + CHANGE_LOG_COLUMN_ROW_ID + ">?")
+                    + (" AND c." + CHANGE_LOG_COLUMN_DELETED + "=");
+            String order = " ORDER BY c." + CHANGE_LOG_COLUMN_ROW_ID + " LIMIT " + EXPORT_PAGE_SIZE;
+            String[] selectionArgs = new String[] { String.valueOf(sinceSequence),
+                    String.valueOf(Long.MIN_VALUE) };
+            boolean started = false;
+            while (true) {
+                try (Cursor cursor = mDb.rawQuery("SELECT t.* FROM " + CHANGE_LOG_TABLE + " c, "
+                        + tableName + " t" + changes + "0 AND t."
+                        + BaseTvColumns._ID + "=c." + CHANGE_LOG_COLUMN_ROW_ID + order,
+                        selectionArgs)) {
+                    if (cursor.getCount() > 0 && !started) {
+                        mWriter.startTable(table, cursor.getColumnNames());
+                        started = true;
+                    }
+                    writeRows(cursor);
+                    mChangedRowCount += cursor.getCount();
+                    if (cursor.getCount() < EXPORT_PAGE_SIZE) {
+                        break;
+                    }
+                    cursor.moveToLast();
+                    selectionArgs[1] = cursor.getString(
+                            cursor.getColumnIndexOrThrow(BaseTvColumns._ID));
+                }
+            }
+
+            selectionArgs[1] = String.valueOf(Long.MIN_VALUE);
+            while (true) {
+                try (Cursor cursor = mDb.rawQuery("SELECT c." + CHANGE_LOG_COLUMN_ROW_ID
+                        + " FROM " + CHANGE_LOG_TABLE + " c" + changes + "1" + order,
+                        selectionArgs)) {
+                    if (cursor.getCount() > 0 && !started) {
+                        try (Cursor columns = mDb.query(tableName, null, "0", null, null, null,
+                                null)) {
+                            mWriter.startTable(table, columns.getColumnNames());
+                        }
+                        started = true;
+                    }
+                    while (cursor.moveToNext()) {
+                        mWriter.writeDelete(cursor.getLong(0));
+                    }
+                    mChangedRowCount += cursor.getCount();
+                    if (cursor.getCount() < EXPORT_PAGE_SIZE) {
+                        break;
+                    }
+                    cursor.moveToLast();
+                    selectionArgs[1] = cursor.getString(0);
+                }
+            }
+        }
+    }
+
+    // Restores the snapshot of METHOD_RESTORE_SNAPSHOT in a single transaction, so that the
+    // database is left as it was if the stream is invalid or truncated. The stream is read from a
+    // local copy, as the transaction holds the database and the logo files. The rows are bulk
+    // loaded: the triggers and the secondary indexes are dropped first, and rebuilt once at the
+    // end.
+    // Tables that appear again in the stream hold the rows that changed while the snapshot was
+    // taken, which are updated if they were already restored.
+    private final class SnapshotRestorer {
+        private final SQLiteDatabase mDb = mOpenHelper.getWritableDatabase();
+        // The number of rows restored for each table, and whether its rows have started, indexed
+        // by its ID in EpgRecordFormat.
+        private final int[] mRowCounts = new int[EpgRecordFormat.TABLE_CHANNEL_LOGOS + 1];
+        private final boolean[] mStartedTables = new boolean[mRowCounts.length];
+
+        private int mTable;
+        private String mTableName;
+        private SQLiteStatement mInsertStatement;
+        // Only set for a table that appears again, whose rows may already exist.
+        private SQLiteStatement mUpdateStatement;
+        private SQLiteStatement mDeleteStatement;
+
+        Bundle run(EpgRecordReader reader) throws IOException {
+            long sequence;
+            // Keeps the restored logo files from being deleted as orphans until the rows that
+            // refer to them are committed. The lock is taken before the database, as elsewhere.
+            synchronized (mLogoFilesLock) {
+                mDb.beginTransaction();
+                try {
+                    // Rows may refer to channels that come later in the stream.
+                    mDb.execSQL("PRAGMA defer_foreign_keys=ON;");
+                    DatabaseHelper.dropBulkLoadSchema(mDb);
+                    // Children first, so that deleting the channels doesn't cascade.
+                    mDb.delete(PROGRAMS_TABLE, null, null);
+                    mDb.delete(WATCHED_PROGRAMS_TABLE, null, null);
+                    mDb.delete(CHANNEL_LOGOS_TABLE, null, null);
+                    mDb.delete(CHANNELS_TABLE, null, null);
+                    int record;
+                    while ((record = reader.next()) != EpgRecordFormat.RECORD_END) {
+                        if (record == EpgRecordFormat.RECORD_TABLE) {
+                            startTable(reader);
+                        } else if (record == EpgRecordFormat.RECORD_ROW) {
+                            restoreRow(reader);
+                        } else {
+                            deleteRow(reader.getDeletedRowId());
+                        }
+                    }
+                    closeStatements();
+                    DatabaseHelper.createBulkLoadSchema(mDb);
+                    checkForeignKeys();
+                    sequence = resetChangeLog();
+                    mDb.setTransactionSuccessful();
+                } finally {
+                    mDb.endTransaction();
+                    closeStatements();
+                    mProgramIntervalCache.invalidateAll();
+                    invalidateChannelList();
+                    // The previous logos, or the restored ones if the restore failed.
+                    scheduleOrphanedLogoFilesDeletion();
+                }
+            }
+            notifyChange(Channels.CONTENT_URI);
+            notifyChange(Programs.CONTENT_URI);
+            notifyChange(WatchedPrograms.CONTENT_URI);
+
+            Bundle result = new Bundle();
+            result.putInt(EXTRA_CHANNEL_COUNT, mRowCounts[EpgRecordFormat.TABLE_CHANNELS]);
+            result.putInt(EXTRA_PROGRAM_COUNT, mRowCounts[EpgRecordFormat.TABLE_PROGRAMS]);
+            result.putInt(EXTRA_WATCHED_PROGRAM_COUNT,
+                    mRowCounts[EpgRecordFormat.TABLE_WATCHED_PROGRAMS]);
+            result.putInt(EXTRA_LOGO_COUNT, mRowCounts[EpgRecordFormat.TABLE_CHANNEL_LOGOS]);
+            result.putLong(EXTRA_SEQUENCE, sequence);
+            return result;
+        }
+
+        private void startTable(EpgRecordReader reader) {
+            closeStatements();
+            mTable = reader.getTable();
+            switch (mTable) {
+                case EpgRecordFormat.TABLE_CHANNELS:
+                    mTableName = CHANNELS_TABLE;
+                    break;
+                case EpgRecordFormat.TABLE_PROGRAMS:
+                    mTableName = PROGRAMS_TABLE;
+                    break;
+                case EpgRecordFormat.TABLE_WATCHED_PROGRAMS:
+                    mTableName = WATCHED_PROGRAMS_TABLE;
+                    break;
+                case EpgRecordFormat.TABLE_CHANNEL_LOGOS:
+                    mTableName = CHANNEL_LOGOS_TABLE;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown table " + mTable);
+            }
+            String[] columns = reader.getColumnNames();
+            boolean repeated = mStartedTables[mTable];
+            mStartedTables[mTable] = true;
+            if (mTable == EpgRecordFormat.TABLE_CHANNEL_LOGOS) {
+                if (repeated || !Arrays.equals(columns, new String[] {
+                        CHANNEL_LOGOS_COLUMN_CHANNEL_ID, CHANNEL_LOGOS_COLUMN_LOGO })) {
+                    throw new IllegalArgumentException("Invalid channel logos table");
+                }
+                return;
+            }
+
+            Set<String> tableColumns = getTableColumns(mTableName);
+            int idColumn = -1;
+            for (int i = 0; i < columns.length; i++) {
+                if (!tableColumns.contains(columns[i])) {
+                    throw new IllegalArgumentException("Invalid column " + columns[i]);
+                }
+                if (columns[i].equals(BaseTvColumns._ID)) {
+                    idColumn = i;
+                }
+            }
+            if (idColumn < 0) {
+                throw new IllegalArgumentException("Missing column " + BaseTvColumns._ID);
+            }
+            mInsertStatement = mDb.compileStatement(buildInsertSql(mTableName, columns));
+            if (repeated) {
+                // Numbered parameters, so that the values are bound as for the insertion.
+                StringBuilder sql = new StringBuilder("UPDATE ").append(mTableName)
+                        .append(" SET ");
+                for (int i = 0; i < columns.length; i++) {
+                    sql.append(i == 0 ? "" : ",").append(columns[i]).append("=?").append(i + 1);
+                }
+                sql.append(" WHERE ").append(BaseTvColumns._ID).append("=?").append(idColumn + 1);
+                mUpdateStatement = mDb.compileStatement(sql.toString());
+            }
+        }
+
+        private Set<String> getTableColumns(String table) {
+            Set<String> columns = new HashSet<String>();
+            try (Cursor cursor = mDb.rawQuery("PRAGMA table_info(" + table + ")", null)) {
+                int nameColumn = cursor.getColumnIndexOrThrow("name");
+                while (cursor.moveToNext()) {
+                    columns.add(cursor.getString(nameColumn));
+                }
+            }
+            return columns;
+        }
+
+        private void restoreRow(EpgRecordReader reader) throws IOException {
+            if (mTableName == null) {
+                throw new IllegalArgumentException("Row before any table");
+            }
+            if (mTable == EpgRecordFormat.TABLE_CHANNEL_LOGOS) {
+                restoreLogo(reader);
+                return;
+            }
+            if (mUpdateStatement != null) {
+                bindRow(mUpdateStatement, reader);
+                if (mUpdateStatement.executeUpdateDelete() > 0) {
+                    return;
+                }
+            }
+            bindRow(mInsertStatement, reader);
+            mInsertStatement.executeInsert();
+            mRowCounts[mTable]++;
+        }
+
+        private void bindRow(SQLiteStatement statement, EpgRecordReader reader) {
+            for (int i = 0; i < reader.getColumnNames().length; i++) {
+                bindRecordValue(statement, i + 1, reader, i);
+            }
+        }
+
+        // Stores the logo in the file named after its hash, unless another channel already has
+        // it, and links it to the channel.
+        private void restoreLogo(EpgRecordReader reader) throws IOException {
+            if (reader.getType(0) != EpgRecordFormat.VALUE_INTEGER
+                    || reader.getType(1) != EpgRecordFormat.VALUE_BLOB) {
+                throw new IllegalArgumentException("Invalid channel logo");
+            }
+            long channelId = reader.getLong(0);
+            byte[] logo = reader.getBlob(1);
+            // Logos are served as they are stored, so only images that could have been stored
+            // by openFile() are accepted.
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(logo, 0, logo.length, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0
+                    || Math.max(options.outWidth, options.outHeight) > MAX_LOGO_IMAGE_SIZE) {
+                throw new IllegalArgumentException("Invalid logo for channel ID " + channelId);
+            }
+            String hash = computeLogoHash(logo);
+            File logoFile = getLogoFile(hash);
+            if (!logoFile.exists()) {
+                File tempFile = File.createTempFile("logo", null, getContext().getCacheDir());
+                try {
+                    try (OutputStream os = new FileOutputStream(tempFile)) {
+                        os.write(logo);
+                    }
+                    if (!tempFile.renameTo(logoFile)) {
+                        throw new IOException("Failed to store logo for channel ID " + channelId);
+                    }
+                } finally {
+                    tempFile.delete();
+                }
+            }
+            ContentValues values = new ContentValues();
+            values.put(CHANNEL_LOGOS_COLUMN_CHANNEL_ID, channelId);
+            values.put(CHANNEL_LOGOS_COLUMN_LOGO_HASH, hash);
+            mDb.insertOrThrow(CHANNEL_LOGOS_TABLE, null, values);
+            mRowCounts[EpgRecordFormat.TABLE_CHANNEL_LOGOS]++;
+        }
+
+        private void deleteRow(long rowId) {
+            if (mTableName == null || mTable == EpgRecordFormat.TABLE_CHANNEL_LOGOS) {
+                throw new IllegalArgumentException("Delete without a table");
             }
+            if (mDeleteStatement == null) {
+                mDeleteStatement = mDb.compileStatement("DELETE FROM " + mTableName + " WHERE "
+                        + BaseTvColumns._ID + "=?");
+            }
+            mDeleteStatement.bindLong(1, rowId);
+            mDeleteStatement.executeUpdateDelete();
+        }
+
+        // A foreign key violation deferred to the commit would fail it after the transaction
+        // has been ended, so the rows that refer to missing channels are looked for here.
+        private void checkForeignKeys() {
+            try (Cursor cursor = mDb.rawQuery("PRAGMA foreign_key_check", null)) {
+                if (cursor.moveToFirst()) {
+                    throw new IllegalArgumentException("Row " + cursor.getLong(1) + " of "
+                            + cursor.getString(0) + " refers to a missing row of "
+                            + cursor.getString(2));
+                }
+            }
+        }
+
+        // Empties the change log, and marks it as truncated up to a new sequence number, so that
+        // every client of METHOD_GET_CHANGES starts over. Returns that sequence number.
+        private long resetChangeLog() {
+            // An entry that is deleted right away, to take the new sequence number.
+            mDb.execSQL("INSERT INTO " + CHANGE_LOG_TABLE + "(" + CHANGE_LOG_COLUMN_TYPE + ","
+                    + CHANGE_LOG_COLUMN_ROW_ID + "," + CHANGE_LOG_COLUMN_DELETED + ") VALUES("
+                    + CHANGE_TYPE_CHANNEL + ",0,1);");
+            mDb.delete(CHANGE_LOG_TABLE, null, null);
+            long sequence = getChangeLogSequence(mDb);
+            mDb.execSQL("UPDATE " + CHANGE_LOG_STATE_TABLE + " SET "
+                    + CHANGE_LOG_STATE_COLUMN_TRUNCATED_SEQUENCE + "=?", new Object[] { sequence });
+            return sequence;
+        }
+
+        private void closeStatements() {
+            for (SQLiteStatement statement : new SQLiteStatement[] { mInsertStatement,
+                    mUpdateStatement, mDeleteStatement }) {
+                if (statement != null) {
+                    statement.close();
+                }
+            }
+            mInsertStatement = null;
+            mUpdateStatement = null;
+            mDeleteStatement = null;
         }
     }
 
-    @Override
-    public int bulkInsert(Uri uri, ContentValues[] values) {
-        setBatchNotificationsSet(Sets.<Uri>newHashSet());
-        Context context = getContext();
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        db.beginTransaction();
-        try {
-            int result = super.bulkInsert(uri, values);
-            db.setTransactionSuccessful();
-            return result;
-        } finally {
-            db.endTransaction();
-            final Set<Uri> notifications = getBatchNotificationsSet();
-            setBatchNotificationsSet(null);
-            for (final Uri notificationUri : notifications) {
-                context.getContentResolver().notifyChange(notificationUri, null);
+    // Appends the condition for the rows after the one given by PARAM_AFTER_KEY and PARAM_AFTER_ID
+    // in the default sort order of {@code match}, and returns that sort order with the row ID
+    // added to make it total. Conditions on the sort key column can use its index.
+    private static String appendPageWhere(SqlParams params, Uri uri, int match) {
+        String keyColumn;
+        boolean descending;
+        switch (match) {
+            case MATCH_CHANNEL:
+                keyColumn = Channels.COLUMN_DISPLAY_NUMBER;
+                descending = false;
+                break;
+            case MATCH_PROGRAM:
+                keyColumn = Programs.COLUMN_START_TIME_UTC_MILLIS;
+                descending = false;
+                break;
+            case MATCH_WATCHED_PROGRAM:
+                keyColumn = WatchedPrograms.COLUMN_WATCH_START_TIME_UTC_MILLIS;
+                descending = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Paging not supported for " + uri);
+        }
+        String direction = descending ? " DESC" : " ASC";
+        String after = descending ? "<?" : ">?";
+
+        String paramAfterId = uri.getQueryParameter(PARAM_AFTER_ID);
+        if (paramAfterId != null) {
+            String afterId = String.valueOf(Long.parseLong(paramAfterId));
+            String afterKey = uri.getQueryParameter(PARAM_AFTER_KEY);
+            // SQLite sorts NULL before any other value.
+            if (afterKey != null) {
+                String where = keyColumn + after + " OR (" + keyColumn + "=? AND "
+                        + BaseTvColumns._ID + after + ")";
+                if (descending) {
+                    where += " OR " + keyColumn + " IS NULL";
+                }
+                params.appendWhere(where, afterKey, afterKey, afterId);
+            } else {
+                String where = keyColumn + " IS NULL AND " + BaseTvColumns._ID + after;
+                if (!descending) {
+                    where = "(" + where + ") OR " + keyColumn + " IS NOT NULL";
+                }
+                params.appendWhere(where, afterId);
             }
         }
+        return keyColumn + direction + "," + BaseTvColumns._ID + direction;
     }
 
-    private void notifyChange(Uri uri) {
-        final Set<Uri> batchNotifications = getBatchNotificationsSet();
-        if (batchNotifications != null) {
-            batchNotifications.add(uri);
-        } else {
-            getContext().getContentResolver().notifyChange(uri, null);
+    // Selects the program on the air and the next program of each channel at the time given by
+    // PARAM_START_TIME, or now. The channels can be filtered by PARAM_INPUT and
+    // PARAM_BROWSABLE_ONLY as in channel queries.
+    // For each channel, the current program is the one that started last, if it hasn't ended, and
+    // the next program is the one that starts first after that time. Both are found by a single
+    // seek on the channel ID and start time index.
+    private static void appendNowNextWhere(SqlParams params, Uri uri) {
+        String paramTime = uri.getQueryParameter(TvContract.PARAM_START_TIME);
+        String time = String.valueOf(paramTime != null ? Long.parseLong(paramTime)
+                : System.currentTimeMillis());
+
+        String channelWhere = null;
+        List<String> channelArgs = new ArrayList<String>();
+        String inputId = uri.getQueryParameter(TvContract.PARAM_INPUT);
+        if (inputId != null) {
+            channelWhere = DatabaseUtils.concatenateWhere(channelWhere,
+                    Channels.COLUMN_INPUT_ID + "=?");
+            channelArgs.add(inputId);
+        }
+        if (uri.getBooleanQueryParameter(TvContract.PARAM_BROWSABLE_ONLY, false)) {
+            channelWhere = DatabaseUtils.concatenateWhere(channelWhere,
+                    Channels.COLUMN_BROWSABLE + "=1");
         }
+        String channelQuery = " FROM " + CHANNELS_TABLE
+                + (channelWhere != null ? " WHERE " + channelWhere : "");
+        String programQuery = "SELECT " + Programs._ID + " FROM " + PROGRAMS_TABLE + " WHERE "
+                + Programs.COLUMN_CHANNEL_ID + "=" + CHANNELS_TABLE + "." + Channels._ID + " AND "
+                + Programs.COLUMN_START_TIME_UTC_MILLIS;
+
+        List<String> args = new ArrayList<String>();
+        args.add(time);
+        args.addAll(channelArgs);
+        args.add(time);
+        args.addAll(channelArgs);
+        args.add(time);
+        params.appendWhere(Programs._ID + " IN ("
+                + "SELECT (" + programQuery + "<=? ORDER BY "
+                        + Programs.COLUMN_START_TIME_UTC_MILLIS + " DESC LIMIT 1)" + channelQuery
+                + " UNION ALL "
+                + "SELECT (" + programQuery + ">? ORDER BY "
+                        + Programs.COLUMN_START_TIME_UTC_MILLIS + " ASC LIMIT 1)" + channelQuery
+                + ") AND " + Programs.COLUMN_END_TIME_UTC_MILLIS + ">?",
+                args.toArray(new String[args.size()]));
     }
 
     // When an application tries to create/read/update/delete channel or program data, we need to
@@ -805,8 +3422,7 @@ public class TvProvider extends ContentProvider {
     // access permission.
     // Note that the user's watch log is treated with more caution and we should block any access
     // from an application that doesn't have the proper permission.
-    private boolean needsToLimitPackage(Uri uri) {
-        int match = sUriMatcher.match(uri);
+    private boolean needsToLimitPackage(Uri uri, int match) {
         if (match == MATCH_WATCHED_PROGRAM || match == MATCH_WATCHED_PROGRAM_ID) {
             if (!callerHasAccessWatchedProgramsPermission()) {
                 throw new SecurityException("Access not allowed for " + uri);
@@ -816,19 +3432,60 @@ public class TvProvider extends ContentProvider {
     }
 
     private boolean callerHasAccessAllEpgDataPermission() {
-        return getContext().checkCallingOrSelfPermission(PERMISSION_ACCESS_ALL_EPG_DATA)
-                == PackageManager.PERMISSION_GRANTED;
+        return getCallerPermissions().mAccessAllEpgData;
     }
 
     private boolean callerHasAccessWatchedProgramsPermission() {
-        return getContext().checkCallingOrSelfPermission(PERMISSION_ACCESS_WATCHED_PROGRAMS)
-                == PackageManager.PERMISSION_GRANTED;
+        return getCallerPermissions().mAccessWatchedPrograms;
     }
 
     private boolean callerHasModifyParentalControlsPermission() {
-        return getContext().checkCallingOrSelfPermission(
-                android.Manifest.permission.MODIFY_PARENTAL_CONTROLS)
-                == PackageManager.PERMISSION_GRANTED;
+        return getCallerPermissions().mModifyParentalControls;
+    }
+
+    // The permissions checked by this provider, as granted to a calling UID.
+    private static final class CallerPermissions {
+        final boolean mAccessAllEpgData;
+        final boolean mAccessWatchedPrograms;
+        final boolean mModifyParentalControls;
+        final long mExpirationTime;
+
+        CallerPermissions(Context context, long expirationTime) {
+            mAccessAllEpgData = context.checkCallingOrSelfPermission(
+                    PERMISSION_ACCESS_ALL_EPG_DATA) == PackageManager.PERMISSION_GRANTED;
+            mAccessWatchedPrograms = context.checkCallingOrSelfPermission(
+                    PERMISSION_ACCESS_WATCHED_PROGRAMS) == PackageManager.PERMISSION_GRANTED;
+            mModifyParentalControls = context.checkCallingOrSelfPermission(
+                    android.Manifest.permission.MODIFY_PARENTAL_CONTROLS)
+                    == PackageManager.PERMISSION_GRANTED;
+            mExpirationTime = expirationTime;
+        }
+    }
+
+    private final LruCache<Integer, CallerPermissions> mCallerPermissionsCache =
+            new LruCache<Integer, CallerPermissions>(CALLER_PERMISSIONS_CACHE_SIZE);
+
+    private CallerPermissions getCallerPermissions() {
+        CallerPermissions permissions = mTLBatchCallerPermissions.get();
+        if (permissions != null) {
+            return permissions;
+        }
+        int uid = Binder.getCallingUid();
+        long now = SystemClock.elapsedRealtime();
+        permissions = mCallerPermissionsCache.get(uid);
+        if (permissions == null || now >= permissions.mExpirationTime) {
+            permissions = new CallerPermissions(getContext(),
+                    now + CALLER_PERMISSIONS_VALIDITY_MILLIS);
+            mCallerPermissionsCache.put(uid, permissions);
+        }
+        return permissions;
+    }
+
+    // Unlike the permissions, the package isn't cached across calls, since packages sharing a UID
+    // have the same permissions but own different rows.
+    private String getCallerPackage() {
+        String packageName = mTLBatchCallingPackage.get();
+        return packageName != null ? packageName : getCallingPackage_();
     }
 
     @Override
@@ -847,36 +3504,45 @@ public class TvProvider extends ContentProvider {
         SqlParams params = new SqlParams(CHANNELS_TABLE, Channels._ID + "=?",
                 String.valueOf(channelId));
         if (!callerHasAccessAllEpgDataPermission()) {
-            params.appendWhere(Channels.COLUMN_PACKAGE_NAME + "=?", getCallingPackage_());
+            params.appendWhere(Channels.COLUMN_PACKAGE_NAME + "=?", getCallerPackage());
         }
 
-        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
-        queryBuilder.setTables(params.getTables());
+        if (!channelExists(params)) {
+            // Fails early if corresponding channel does not exist.
+            // PipeMonitor may still fail to write the logo later.
+            throw new FileNotFoundException(uri.toString());
+        }
 
-        // We don't write the database here.
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
         if (mode.equals("r")) {
-            String sql = queryBuilder.buildQuery(new String[] { CHANNELS_COLUMN_LOGO },
-                    params.getSelection(), null, null, null, null);
-            ParcelFileDescriptor fd = DatabaseUtils.blobFileDescriptorForQuery(db, sql, params.getSelectionArgs());
-            if (fd == null) {
+            String hash = DatabaseUtils.stringForQuery(mOpenHelper.getReadableDatabase(),
+                    "SELECT IFNULL(MAX(" + CHANNEL_LOGOS_COLUMN_LOGO_HASH + "),'') FROM "
+                    + CHANNEL_LOGOS_TABLE + " WHERE " + CHANNEL_LOGOS_COLUMN_CHANNEL_ID + "=?",
+                    new String[] { String.valueOf(channelId) });
+            if (hash.isEmpty()) {
                 throw new FileNotFoundException(uri.toString());
             }
-            return fd;
+            // The logo is served directly from its file, so its bytes never go through SQLite.
+            return ParcelFileDescriptor.open(getLogoFile(hash),
+                    ParcelFileDescriptor.MODE_READ_ONLY);
         } else {
-            try (Cursor cursor = queryBuilder.query(db, new String[] { Channels._ID },
-                    params.getSelection(), params.getSelectionArgs(), null, null, null)) {
-                if (cursor.getCount() < 1) {
-                    // Fails early if corresponding channel does not exist.
-                    // PipeMonitor may still fail to update DB later.
-                    throw new FileNotFoundException(uri.toString());
-                }
-            }
-
             try {
                 ParcelFileDescriptor[] pipeFds = ParcelFileDescriptor.createPipe();
-                PipeMonitor pipeMonitor = new PipeMonitor(pipeFds[0], channelId, params);
-                pipeMonitor.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                try {
+                    mLogoExecutor.execute(new PipeMonitor(pipeFds[0], channelId, params));
+                } catch (RejectedExecutionException e) {
+                    IoUtils.closeQuietly(pipeFds[0]);
+                    IoUtils.closeQuietly(pipeFds[1]);
+                    throw new FileNotFoundException("Too many logos waiting to be written: "
+                            + uri);
+                }
+                int queueDepth = mLogoExecutor.getQueue().size();
+                while (true) {
+                    int maxQueueDepth = mMaxLogoQueueDepth.get();
+                    if (queueDepth <= maxQueueDepth
+                            || mMaxLogoQueueDepth.compareAndSet(maxQueueDepth, queueDepth)) {
+                        break;
+                    }
+                }
                 return pipeFds[1];
             } catch (IOException ioe) {
                 FileNotFoundException fne = new FileNotFoundException(uri.toString());
@@ -886,7 +3552,301 @@ public class TvProvider extends ContentProvider {
         }
     }
 
-    private class PipeMonitor extends AsyncTask<Void, Void, Void> {
+    private boolean channelExists(SqlParams params) {
+        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+        queryBuilder.setTables(params.getTables());
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        try (Cursor cursor = queryBuilder.query(db, new String[] { Channels._ID },
+                params.getSelection(), params.getSelectionArgs(), null, null, null)) {
+            return cursor.getCount() > 0;
+        }
+    }
+
+    // Returns the hash of the logo file that an identical upload was encoded into, or the upload
+    // hash itself if the upload is identical to a logo file, or null if it isn't stored yet.
+    private String findLogoHash(String uploadHash) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        try (Cursor cursor = db.query(CHANNEL_LOGOS_TABLE,
+                new String[] { CHANNEL_LOGOS_COLUMN_LOGO_HASH },
+                CHANNEL_LOGOS_COLUMN_UPLOAD_HASH + "=?", new String[] { uploadHash }, null, null,
+                null, "1")) {
+            if (cursor.moveToFirst()) {
+                return cursor.getString(0);
+            }
+        }
+        return getLogoFile(uploadHash).exists() ? uploadHash : null;
+    }
+
+    private static File getLogoDirectory(Context context) {
+        File logoDirectory = new File(context.getFilesDir(), LOGO_DIRECTORY);
+        if (!logoDirectory.isDirectory() && !logoDirectory.mkdirs()) {
+            Log.e(TAG, "Failed to create logo directory " + logoDirectory);
+        }
+        return logoDirectory;
+    }
+
+    private File getLogoFile(String hash) {
+        return new File(getLogoDirectory(getContext()), hash);
+    }
+
+    private static String computeLogoHash(byte[] data) {
+        return computeLogoHash(data, 0, data.length);
+    }
+
+    private static String computeLogoHash(byte[] data, int offset, int length) {
+        MessageDigest digest = createLogoDigest();
+        digest.update(data, offset, length);
+        return toLogoHash(digest);
+    }
+
+    private static MessageDigest createLogoDigest() {
+        try {
+            return MessageDigest.getInstance(LOGO_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toLogoHash(MessageDigest digest) {
+        byte[] hash = digest.digest();
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    // Guards the logo files against being deleted as orphans while they are being linked to
+    // a channel.
+    private final Object mLogoFilesLock = new Object();
+
+    // A logo to link to its channel, and the result once it is linked.
+    private static final class LogoLink {
+        final SqlParams mParams;
+        final long mChannelId;
+        final String mHash;
+        final String mUploadHash;
+        // The encoded logo to move to the logo file, or null if the logo file already exists.
+        final File mTempFile;
+        // Guarded by mLogoFilesLock.
+        boolean mDone;
+        boolean mLinked;
+
+        LogoLink(SqlParams params, long channelId, String hash, String uploadHash,
+                File tempFile) {
+            mParams = params;
+            mChannelId = channelId;
+            mHash = hash;
+            mUploadHash = uploadHash;
+            mTempFile = tempFile;
+        }
+    }
+
+    // The logos waiting for mLogoFilesLock to be linked. Guarded by itself. The logos that are
+    // ready while another one is being linked are then linked together, in one transaction.
+    private final List<LogoLink> mPendingLogoLinks = new ArrayList<LogoLink>();
+
+    // Links the channel of {@code link} to the logo file of its hash, moving its temporary file
+    // there if the logo file doesn't exist yet. Returns false if the logo file couldn't be stored
+    // or the channel doesn't exist anymore.
+    private boolean linkLogo(LogoLink link) {
+        synchronized (mPendingLogoLinks) {
+            mPendingLogoLinks.add(link);
+        }
+        synchronized (mLogoFilesLock) {
+            if (!link.mDone) {
+                List<LogoLink> links;
+                synchronized (mPendingLogoLinks) {
+                    links = new ArrayList<LogoLink>(mPendingLogoLinks);
+                    mPendingLogoLinks.clear();
+                }
+                linkLogos(links);
+            }
+            return link.mLinked;
+        }
+    }
+
+    // Called with mLogoFilesLock held, so that the files aren't deleted as orphans before the rows
+    // that refer to them are committed.
+    private void linkLogos(List<LogoLink> links) {
+        boolean[] linked = new boolean[links.size()];
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < links.size(); i++) {
+                LogoLink link = links.get(i);
+                File logoFile = getLogoFile(link.mHash);
+                // Another channel may have stored the same logo in the meantime.
+                if (!(logoFile.exists()
+                        || (link.mTempFile != null && link.mTempFile.renameTo(logoFile)))
+                        || !channelExists(link.mParams)) {
+                    continue;
+                }
+                String[] args = new String[] { String.valueOf(link.mChannelId) };
+                db.delete(CHANNEL_LOGOS_TABLE, CHANNEL_LOGOS_COLUMN_CHANNEL_ID + "=?", args);
+                ContentValues values = new ContentValues();
+                values.put(CHANNEL_LOGOS_COLUMN_CHANNEL_ID, link.mChannelId);
+                values.put(CHANNEL_LOGOS_COLUMN_LOGO_HASH, link.mHash);
+                values.put(CHANNEL_LOGOS_COLUMN_UPLOAD_HASH, link.mUploadHash);
+                db.insertOrThrow(CHANNEL_LOGOS_TABLE, null, values);
+                linked[i] = true;
+            }
+            db.setTransactionSuccessful();
+            for (int i = 0; i < links.size(); i++) {
+                links.get(i).mLinked = linked[i];
+            }
+        } finally {
+            db.endTransaction();
+            for (LogoLink link : links) {
+                link.mDone = true;
+            }
+            mLogoLinkTransactionCount.incrementAndGet();
+        }
+    }
+
+    private final AtomicBoolean mOrphanedLogoFilesDeletionPending = new AtomicBoolean();
+
+    // Channels can be deleted with any selection, so instead of tracking the deleted IDs, the
+    // logo files that no channel refers to anymore are deleted in the background.
+    private void scheduleOrphanedLogoFilesDeletion() {
+        if (!mOrphanedLogoFilesDeletionPending.compareAndSet(false, true)) {
+            return;
+        }
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                mOrphanedLogoFilesDeletionPending.set(false);
+                deleteOrphanedLogoFiles();
+            }
+        });
+    }
+
+    private void deleteOrphanedLogoFiles() {
+        synchronized (mLogoFilesLock) {
+            File[] logoFiles = getLogoDirectory(getContext()).listFiles();
+            if (logoFiles == null) {
+                return;
+            }
+
+            Set<String> referencedHashes = new HashSet<String>();
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            try (Cursor cursor = db.query(LOGOS_TABLE, new String[] { LOGOS_COLUMN_HASH },
+                    LOGOS_COLUMN_REF_COUNT + ">0", null, null, null, null)) {
+                while (cursor.moveToNext()) {
+                    referencedHashes.add(cursor.getString(0));
+                }
+            }
+
+            int deleteCount = 0;
+            for (File logoFile : logoFiles) {
+                if (!referencedHashes.contains(logoFile.getName()) && logoFile.delete()) {
+                    deleteCount++;
+                }
+            }
+            db.delete(LOGOS_TABLE, LOGOS_COLUMN_REF_COUNT + "<=0", null);
+            if (DEBUG && deleteCount > 0) {
+                Log.d(TAG, "Deleted " + deleteCount + " logos that no channel refers to");
+            }
+        }
+    }
+
+    private final ThreadPoolExecutor mLogoExecutor = createLogoExecutor();
+    private final AtomicInteger mMaxLogoQueueDepth = new AtomicInteger();
+    private final DurationStats mLogoReadStats = new DurationStats("read");
+    private final DurationStats mLogoDecodeStats = new DurationStats("decode");
+    private final DurationStats mLogoEncodeStats = new DurationStats("encode");
+    private final AtomicInteger mSharedLogoCount = new AtomicInteger();
+    private final AtomicInteger mLinkedLogoCount = new AtomicInteger();
+    private final AtomicInteger mLogoLinkTransactionCount = new AtomicInteger();
+    // The running imports of METHOD_IMPORT_XMLTV. Guarded by itself.
+    private final List<XmltvImport> mXmltvImports = new ArrayList<XmltvImport>();
+    private final DurationStats mXmltvImportStats = new DurationStats("import");
+    private final DurationStats mInsertRecordsStats = new DurationStats("insert records");
+    private final DurationStats mExportSnapshotStats = new DurationStats("export snapshot");
+    private final DurationStats mRestoreSnapshotStats = new DurationStats("restore snapshot");
+
+    private static ThreadPoolExecutor createLogoExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(LOGO_THREAD_COUNT, LOGO_THREAD_COUNT,
+                LOGO_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_LOGO_COUNT), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "TvProvider logo #" + mCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // Holds an encoded logo image read from a pipe. Each logo thread reuses its own buffer.
+    private static class LogoBuffer {
+        byte[] data = new byte[64 * 1024];
+        int length;
+
+        void readFrom(InputStream is) throws IOException {
+            length = 0;
+            while (true) {
+                if (length == data.length) {
+                    if (length >= MAX_LOGO_INPUT_SIZE) {
+                        throw new IOException("Logo image is larger than " + MAX_LOGO_INPUT_SIZE
+                                + " bytes");
+                    }
+                    data = Arrays.copyOf(data, Math.min(length * 2, MAX_LOGO_INPUT_SIZE));
+                }
+                int count = is.read(data, length, data.length - length);
+                if (count < 0) {
+                    return;
+                }
+                length += count;
+            }
+        }
+
+        // Drops a buffer grown for an unusually large image, so that it isn't kept alive.
+        void trim() {
+            if (data.length > MAX_REUSED_LOGO_BUFFER_SIZE) {
+                data = new byte[64 * 1024];
+            }
+            length = 0;
+        }
+
+        // Decodes the image subsampled by the largest power of two that keeps it at least
+        // MAX_LOGO_IMAGE_SIZE, so that large images are never decoded at full size.
+        Bitmap decode() {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, length, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            int maxDimension = Math.max(options.outWidth, options.outHeight);
+            int sampleSize = 1;
+            while (maxDimension / (sampleSize * 2) >= MAX_LOGO_IMAGE_SIZE) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            return BitmapFactory.decodeByteArray(data, 0, length, options);
+        }
+    }
+
+    private static final ThreadLocal<LogoBuffer> sLogoBuffer = new ThreadLocal<LogoBuffer>() {
+        @Override
+        protected LogoBuffer initialValue() {
+            return new LogoBuffer();
+        }
+    };
+
+    private class PipeMonitor implements Runnable {
         private final ParcelFileDescriptor mPfd;
         private final long mChannelId;
         private final SqlParams mParams;
@@ -898,63 +3858,331 @@ public class TvProvider extends ContentProvider {
         }
 
         @Override
-        protected Void doInBackground(Void... params) {
+        public void run() {
             AutoCloseInputStream is = new AutoCloseInputStream(mPfd);
-            ByteArrayOutputStream baos = null;
-            int count = 0;
+            LogoBuffer buffer = sLogoBuffer.get();
+            File tempFile = null;
+            OutputStream os = null;
+            boolean written = false;
             try {
-                Bitmap bitmap = BitmapFactory.decodeStream(is);
+                long startNanos = SystemClock.elapsedRealtimeNanos();
+                buffer.readFrom(is);
+                long readEndNanos = SystemClock.elapsedRealtimeNanos();
+                mLogoReadStats.add(readEndNanos - startNanos);
+
+                // Many channels share the same logo, so skip decoding if it's already stored.
+                String uploadHash = computeLogoHash(buffer.data, 0, buffer.length);
+                String storedHash = findLogoHash(uploadHash);
+                File logoFile = storedHash != null ? getLogoFile(storedHash) : null;
+                if (logoFile != null && logoFile.exists()) {
+                    if (linkLogo(new LogoLink(mParams, mChannelId, storedHash, uploadHash,
+                            null))) {
+                        written = true;
+                        mLinkedLogoCount.incrementAndGet();
+                        mSharedLogoCount.incrementAndGet();
+                        notifyChange(TvContract.buildChannelLogoUri(mChannelId));
+                        return;
+                    }
+                    if (logoFile.exists()) {
+                        // The channel was deleted.
+                        return;
+                    }
+                    // The logo file was deleted as an orphan in the meantime.
+                }
+
+                Bitmap bitmap = buffer.decode();
+                buffer.trim();
                 if (bitmap == null) {
                     Log.e(TAG, "Failed to decode logo image for channel ID " + mChannelId);
-                    return null;
+                    return;
                 }
 
                 float scaleFactor = Math.min(1f, ((float) MAX_LOGO_IMAGE_SIZE) /
                         Math.max(bitmap.getWidth(), bitmap.getHeight()));
                 if (scaleFactor < 1f) {
-                    bitmap = Bitmap.createScaledBitmap(bitmap,
+                    Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap,
                             (int) (bitmap.getWidth() * scaleFactor),
                             (int) (bitmap.getHeight() * scaleFactor), false);
+                    if (scaledBitmap != bitmap) {
+                        bitmap.recycle();
+                        bitmap = scaledBitmap;
+                    }
                 }
+                long decodeEndNanos = SystemClock.elapsedRealtimeNanos();
+                mLogoDecodeStats.add(decodeEndNanos - readEndNanos);
 
-                baos = new ByteArrayOutputStream();
-                bitmap.compress(Bitmap.CompressFormat.PNG, 100, baos);
-                byte[] bytes = baos.toByteArray();
-
-                ContentValues values = new ContentValues();
-                values.put(CHANNELS_COLUMN_LOGO, bytes);
+                // Write to a temporary file first so that readers never see a partial logo.
+                // The logo file is named after the hash of the encoded logo, like the ones that
+                // are restored or moved by an upgrade.
+                tempFile = File.createTempFile("logo", null, getContext().getCacheDir());
+                MessageDigest digest = createLogoDigest();
+                os = new DigestOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(tempFile)), digest);
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
+                bitmap.recycle();
+                os.close();
+                mLogoEncodeStats.add(SystemClock.elapsedRealtimeNanos() - decodeEndNanos);
 
-                SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-                count = db.update(mParams.getTables(), values, mParams.getSelection(),
-                        mParams.getSelectionArgs());
-                if (count > 0) {
-                    Uri uri = TvContract.buildChannelLogoUri(mChannelId);
-                    notifyChange(uri);
+                written = linkLogo(new LogoLink(mParams, mChannelId, toLogoHash(digest),
+                        uploadHash, tempFile));
+                if (written) {
+                    mLinkedLogoCount.incrementAndGet();
+                    notifyChange(TvContract.buildChannelLogoUri(mChannelId));
+                } else {
+                    // The channel was deleted while the logo was being decoded.
+                    scheduleOrphanedLogoFilesDeletion();
                 }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write logo for channel ID " + mChannelId, e);
             } finally {
-                if (count == 0) {
+                if (!written) {
                     try {
                         mPfd.closeWithError("Failed to write logo for channel ID " + mChannelId);
                     } catch (IOException ioe) {
                         Log.e(TAG, "Failed to close pipe", ioe);
                     }
                 }
-                IoUtils.closeQuietly(baos);
+                if (tempFile != null) {
+                    // It's left over if the logo was stored by another channel in the meantime.
+                    tempFile.delete();
+                }
+                buffer.trim();
+                IoUtils.closeQuietly(os);
                 IoUtils.closeQuietly(is);
             }
-            return null;
         }
     }
 
+    @Override
+    public void shutdown() {
+        mNotificationDispatcher.quit();
+        super.shutdown();
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Logo pipeline:");
+        writer.println("  active=" + mLogoExecutor.getActiveCount() + " queued="
+                + mLogoExecutor.getQueue().size() + " max queued=" + mMaxLogoQueueDepth.get()
+                + " completed=" + mLogoExecutor.getCompletedTaskCount()
+                + " shared=" + mSharedLogoCount.get() + " linked=" + mLinkedLogoCount.get()
+                + " in " + mLogoLinkTransactionCount.get() + " transactions");
+        writer.print("  ");
+        mLogoReadStats.dump(writer);
+        writer.print("  ");
+        mLogoDecodeStats.dump(writer);
+        writer.print("  ");
+        mLogoEncodeStats.dump(writer);
+        writer.println("Query SQL cache: hits=" + mQuerySqlCache.hitCount() + " misses="
+                + mQuerySqlCache.missCount() + " evictions=" + mQuerySqlCache.evictionCount());
+        writer.print("  ");
+        mQueryStats.dump(writer);
+        mProgramIntervalCache.dump(writer);
+        writer.println("Channel list cache: hits=" + mChannelListCache.hitCount() + " misses="
+                + mChannelListCache.missCount() + " snapshots=" + mChannelListCache.size());
+        writer.println("Batch transaction yields: " + mBatchYieldCount.get());
+        writer.print("  ");
+        mBatchTransactionStats.dump(writer);
+        mNotificationDispatcher.dump(writer);
+        synchronized (mXmltvImports) {
+            writer.println("XMLTV imports: running=" + mXmltvImports.size());
+            for (XmltvImport xmltvImport : mXmltvImports) {
+                xmltvImport.dump(writer);
+            }
+        }
+        writer.print("  ");
+        mXmltvImportStats.dump(writer);
+        mInsertRecordsStats.dump(writer);
+        mExportSnapshotStats.dump(writer);
+        mRestoreSnapshotStats.dump(writer);
+        sGenreMapper.dump(writer);
+        writer.println("Caller permissions cache: hits=" + mCallerPermissionsCache.hitCount()
+                + " misses=" + mCallerPermissionsCache.missCount());
+        writer.println("Compiled statements:");
+        mOpenHelper.dumpStatements(writer);
+    }
+
+    @VisibleForTesting
+    void tryConsolidateAllWatchedPrograms() {
+        ((WatchLogHandler) mLogHandler).onTryConsolidateAll();
+    }
+
     private final void deleteUnconsolidatedWatchedProgramsRows() {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         db.delete(WATCHED_PROGRAMS_TABLE, WATCHED_PROGRAMS_COLUMN_CONSOLIDATED + "=0", null);
     }
 
+    // The ID and the time interval of a program.
+    private static final class ProgramInterval {
+        long id;
+        long startTime;
+        long endTime;
+    }
+
+    // Caches the time intervals of the programs of each channel around the times looked up, which
+    // are mostly now. The watch log consolidation finds the program watched on a channel at a time
+    // here, instead of querying the database for every log entry.
+    // The cached intervals of a channel are invalidated whenever its programs change. Since
+    // transactions aren't visible until they end, everything is invalidated at the end of every
+    // batch as well.
+    private static final class ProgramIntervalCache {
+        // The time window loaded around the time looked up.
+        private static final long WINDOW_BEFORE_MILLIS = 6 * DateUtils.HOUR_IN_MILLIS;
+        private static final long WINDOW_AFTER_MILLIS = 18 * DateUtils.HOUR_IN_MILLIS;
+
+        private static final String LOAD_SQL = "SELECT " + Programs._ID + ","
+                + Programs.COLUMN_START_TIME_UTC_MILLIS + "," + Programs.COLUMN_END_TIME_UTC_MILLIS
+                + " FROM " + PROGRAMS_TABLE + " WHERE " + Programs.COLUMN_CHANNEL_ID + "=? AND "
+                + Programs.COLUMN_START_TIME_UTC_MILLIS + "<? AND "
+                + Programs.COLUMN_END_TIME_UTC_MILLIS + ">? ORDER BY "
+                + Programs.COLUMN_START_TIME_UTC_MILLIS + " ASC," + Programs._ID + " ASC";
+
+        // The programs of a channel that are on the air at any time in [mWindowStart, mWindowEnd),
+        // in the order of start time.
+        private static final class Intervals {
+            final long mWindowStart;
+            final long mWindowEnd;
+            final long[] mIds;
+            final long[] mStartTimes;
+            final long[] mEndTimes;
+
+            Intervals(long windowStart, long windowEnd, int count) {
+                mWindowStart = windowStart;
+                mWindowEnd = windowEnd;
+                mIds = new long[count];
+                mStartTimes = new long[count];
+                mEndTimes = new long[count];
+            }
+        }
+
+        private final DatabaseHelper mOpenHelper;
+        private final LongSparseArray<Intervals> mIntervals = new LongSparseArray<Intervals>();
+        // Incremented by every invalidation, so that intervals loaded before it aren't cached.
+        private long mGeneration;
+        private int mHitCount;
+        private int mLoadCount;
+
+        ProgramIntervalCache(DatabaseHelper openHelper) {
+            mOpenHelper = openHelper;
+        }
+
+        // Finds the program on the air on the channel at the time, and returns false if there's
+        // none. If several programs are, the one that started first is found.
+        boolean find(long channelId, long time, ProgramInterval outProgram) {
+            Intervals intervals;
+            long generation;
+            synchronized (this) {
+                intervals = mIntervals.get(channelId);
+                generation = mGeneration;
+                if (intervals != null && time >= intervals.mWindowStart
+                        && time < intervals.mWindowEnd) {
+                    mHitCount++;
+                } else {
+                    intervals = null;
+                }
+            }
+            if (intervals == null) {
+                intervals = load(channelId, time);
+                synchronized (this) {
+                    mLoadCount++;
+                    if (generation == mGeneration) {
+                        mIntervals.put(channelId, intervals);
+                    }
+                }
+            }
+
+            for (int i = 0; i < intervals.mIds.length && intervals.mStartTimes[i] <= time; i++) {
+                if (intervals.mEndTimes[i] > time) {
+                    outProgram.id = intervals.mIds[i];
+                    outProgram.startTime = intervals.mStartTimes[i];
+                    outProgram.endTime = intervals.mEndTimes[i];
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized void invalidate(long channelId) {
+            mGeneration++;
+            mIntervals.remove(channelId);
+        }
+
+        synchronized void invalidateAll() {
+            mGeneration++;
+            mIntervals.clear();
+        }
+
+        synchronized void dump(PrintWriter writer) {
+            writer.println("Program interval cache: channels=" + mIntervals.size() + " hits="
+                    + mHitCount + " loads=" + mLoadCount);
+        }
+
+        private Intervals load(long channelId, long time) {
+            long windowStart = time - WINDOW_BEFORE_MILLIS;
+            long windowEnd = time + WINDOW_AFTER_MILLIS;
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            try (Cursor cursor = db.rawQuery(LOAD_SQL, new String[] { String.valueOf(channelId),
+                    String.valueOf(windowEnd), String.valueOf(windowStart) })) {
+                Intervals intervals = new Intervals(windowStart, windowEnd, cursor.getCount());
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    intervals.mIds[i] = cursor.getLong(0);
+                    intervals.mStartTimes[i] = cursor.getLong(1);
+                    intervals.mEndTimes[i] = cursor.getLong(2);
+                }
+                return intervals;
+            }
+        }
+    }
+
     private final class WatchLogHandler extends Handler {
         private static final int MSG_CONSOLIDATE = 1;
         private static final int MSG_TRY_CONSOLIDATE_ALL = 2;
 
+        // The program that the user watched, reused by every lookup.
+        private final ProgramInterval mProgram = new ProgramInterval();
+
+        // The fixed queries of the consolidation, compiled once by DatabaseHelper.getStatement().
+        // They are only executed on this handler's thread, since statements keep their bound
+        // arguments.
+        // Sets the watch start time of a row and copies the data of the program with ID ?4, if
+        // it isn't -1. If ?3 is 1, also sets the watch end time and consolidates the row.
+        private static final String CONSOLIDATE_ROW_SQL = "UPDATE " + WATCHED_PROGRAMS_TABLE
+                + " SET " + WatchedPrograms.COLUMN_WATCH_START_TIME_UTC_MILLIS + "=?1,"
+                + WatchedPrograms.COLUMN_WATCH_END_TIME_UTC_MILLIS + "=CASE WHEN ?3 THEN ?2 ELSE "
+                        + WatchedPrograms.COLUMN_WATCH_END_TIME_UTC_MILLIS + " END,"
+                + WATCHED_PROGRAMS_COLUMN_CONSOLIDATED + "=CASE WHEN ?3 THEN 1 ELSE "
+                        + WATCHED_PROGRAMS_COLUMN_CONSOLIDATED + " END,"
+                + WatchedPrograms.COLUMN_TITLE + "=CASE WHEN ?4=-1 THEN "
+                        + WatchedPrograms.COLUMN_TITLE + " ELSE (SELECT " + Programs.COLUMN_TITLE
+                        + " FROM " + PROGRAMS_TABLE + " WHERE " + Programs._ID + "=?4) END,"
+                + WatchedPrograms.COLUMN_START_TIME_UTC_MILLIS + "=CASE WHEN ?4=-1 THEN "
+                        + WatchedPrograms.COLUMN_START_TIME_UTC_MILLIS + " ELSE (SELECT "
+                        + Programs.COLUMN_START_TIME_UTC_MILLIS + " FROM " + PROGRAMS_TABLE
+                        + " WHERE " + Programs._ID + "=?4) END,"
+                + WatchedPrograms.COLUMN_END_TIME_UTC_MILLIS + "=CASE WHEN ?4=-1 THEN "
+                        + WatchedPrograms.COLUMN_END_TIME_UTC_MILLIS + " ELSE (SELECT "
+                        + Programs.COLUMN_END_TIME_UTC_MILLIS + " FROM " + PROGRAMS_TABLE
+                        + " WHERE " + Programs._ID + "=?4) END,"
+                + WatchedPrograms.COLUMN_DESCRIPTION + "=CASE WHEN ?4=-1 THEN "
+                        + WatchedPrograms.COLUMN_DESCRIPTION + " ELSE (SELECT "
+                        + Programs.COLUMN_SHORT_DESCRIPTION + " FROM " + PROGRAMS_TABLE
+                        + " WHERE " + Programs._ID + "=?4) END"
+                + " WHERE " + WatchedPrograms._ID + "=?5";
+        private static final String DELETE_ROW_SQL = "DELETE FROM " + WATCHED_PROGRAMS_TABLE
+                + " WHERE " + WatchedPrograms._ID + "=?";
+        private static final String DUPLICATE_ROW_SQL = "INSERT INTO " + WATCHED_PROGRAMS_TABLE
+                + "(" + WatchedPrograms.COLUMN_PACKAGE_NAME + ","
+                + WatchedPrograms.COLUMN_CHANNEL_ID + ","
+                + WatchedPrograms.COLUMN_INTERNAL_SESSION_TOKEN + ") SELECT "
+                + WatchedPrograms.COLUMN_PACKAGE_NAME + "," + WatchedPrograms.COLUMN_CHANNEL_ID
+                + "," + WatchedPrograms.COLUMN_INTERNAL_SESSION_TOKEN + " FROM "
+                + WATCHED_PROGRAMS_TABLE + " WHERE " + WatchedPrograms._ID + "=?";
+        // Only consolidated log entries are safe to delete.
+        private static final String DELETE_UNSEARCHABLE_SQL = "DELETE FROM "
+                + WATCHED_PROGRAMS_TABLE + " WHERE " + WATCHED_PROGRAMS_COLUMN_CONSOLIDATED
+                + "=1 AND " + WatchedPrograms.COLUMN_CHANNEL_ID + " IN (SELECT " + Channels._ID
+                + " FROM " + CHANNELS_TABLE + " WHERE " + Channels.COLUMN_SEARCHABLE + "=0)";
+
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
@@ -996,10 +4224,10 @@ public class TvProvider extends ContentProvider {
                     WatchedPrograms.COLUMN_WATCH_START_TIME_UTC_MILLIS,
                     WatchedPrograms.COLUMN_CHANNEL_ID
             };
-            String selection = WATCHED_PROGRAMS_COLUMN_CONSOLIDATED + "=? AND "
+            // Not a bound parameter, so that the partial index of unconsolidated rows is used.
+            String selection = WATCHED_PROGRAMS_COLUMN_CONSOLIDATED + "=0 AND "
                     + WatchedPrograms.COLUMN_INTERNAL_SESSION_TOKEN + "=?";
             String[] selectionArgs = {
-                    "0",
                     sessionToken
             };
             String sortOrder = WatchedPrograms.COLUMN_WATCH_START_TIME_UTC_MILLIS + " DESC";
@@ -1104,33 +4332,32 @@ public class TvProvider extends ContentProvider {
                         + ", dryRun=" + dryRun + ")");
             }
 
-            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-
             if (watchStartTime > watchEndTime) {
                 Log.e(TAG, "watchEndTime cannot be less than watchStartTime");
-                db.delete(WATCHED_PROGRAMS_TABLE, WatchedPrograms._ID + "=" + String.valueOf(id),
-                        null);
+                TimedStatement statement = mOpenHelper.getStatement("delete row", DELETE_ROW_SQL);
+                statement.bindLong(1, id);
+                statement.executeUpdateDelete();
                 return 0;
             }
 
-            ContentValues values = getProgramValues(channelId, watchStartTime);
-            Long endTime = values.getAsLong(WatchedPrograms.COLUMN_END_TIME_UTC_MILLIS);
-            boolean needsToSplit = endTime != null && endTime < watchEndTime;
+            boolean hasProgram = mProgramIntervalCache.find(channelId, watchStartTime, mProgram);
+            long programId = hasProgram ? mProgram.id : -1;
+            long endTime = mProgram.endTime;
+            boolean needsToSplit = hasProgram && endTime < watchEndTime;
 
-            values.put(WatchedPrograms.COLUMN_WATCH_START_TIME_UTC_MILLIS,
-                    String.valueOf(watchStartTime));
-            if (!dryRun || needsToSplit) {
-                values.put(WatchedPrograms.COLUMN_WATCH_END_TIME_UTC_MILLIS,
-                        String.valueOf(needsToSplit ? endTime : watchEndTime));
-                values.put(WATCHED_PROGRAMS_COLUMN_CONSOLIDATED, "1");
-                db.update(WATCHED_PROGRAMS_TABLE, values,
-                        WatchedPrograms._ID + "=" + String.valueOf(id), null);
+            boolean consolidate = !dryRun || needsToSplit;
+            TimedStatement statement = mOpenHelper.getStatement("consolidate row",
+                    CONSOLIDATE_ROW_SQL);
+            statement.bindLong(1, watchStartTime);
+            statement.bindLong(2, needsToSplit ? endTime : watchEndTime);
+            statement.bindLong(3, consolidate ? 1 : 0);
+            statement.bindLong(4, programId);
+            statement.bindLong(5, id);
+            statement.executeUpdateDelete();
+            if (consolidate) {
                 // Treat the watched program is inserted when WATCHED_PROGRAMS_COLUMN_CONSOLIDATED
                 // becomes 1.
                 notifyChange(TvContract.buildWatchedProgramUri(id));
-            } else {
-                db.update(WATCHED_PROGRAMS_TABLE, values,
-                        WatchedPrograms._ID + "=" + String.valueOf(id), null);
             }
             int count = dryRun ? 0 : 1;
             if (needsToSplit) {
@@ -1146,14 +4373,10 @@ public class TvProvider extends ContentProvider {
             return count;
         }
 
-        // Deletes the log entries from unsearchable channels. Note that only consolidated log
-        // entries are safe to delete.
+        // Deletes the log entries from unsearchable channels.
         private final void deleteUnsearchable() {
-            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-            String deleteWhere = WATCHED_PROGRAMS_COLUMN_CONSOLIDATED + "=1 AND "
-                    + WatchedPrograms.COLUMN_CHANNEL_ID + " IN (SELECT " + Channels._ID
-                    + " FROM " + CHANNELS_TABLE + " WHERE " + Channels.COLUMN_SEARCHABLE + "=0)";
-            db.delete(WATCHED_PROGRAMS_TABLE, deleteWhere, null);
+            mOpenHelper.getStatement("delete unsearchable", DELETE_UNSEARCHABLE_SQL)
+                    .executeUpdateDelete();
         }
 
         private final void scheduleConsolidationIfNeeded() {
@@ -1179,10 +4402,12 @@ public class TvProvider extends ContentProvider {
                 while (cursor != null && cursor.moveToNext()) {
                     long watchStartTime = cursor.getLong(0);
                     long channelId = cursor.getLong(1);
-                    ContentValues values = getProgramValues(channelId, watchStartTime);
-                    Long endTime = values.getAsLong(WatchedPrograms.COLUMN_END_TIME_UTC_MILLIS);
+                    if (!mProgramIntervalCache.find(channelId, watchStartTime, mProgram)) {
+                        continue;
+                    }
+                    long endTime = mProgram.endTime;
 
-                    if (endTime != null && endTime < minEndTime
+                    if (endTime < minEndTime
                             && endTime > System.currentTimeMillis()) {
                         minEndTime = endTime;
                     }
@@ -1198,42 +4423,6 @@ public class TvProvider extends ContentProvider {
             }
         }
 
-        // Returns non-null ContentValues of the program data that the user watched on the channel
-        // {@code channelId} at the time {@code time}.
-        private final ContentValues getProgramValues(long channelId, long time) {
-            SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
-            queryBuilder.setTables(PROGRAMS_TABLE);
-            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-
-            String[] projection = {
-                    Programs.COLUMN_TITLE,
-                    Programs.COLUMN_START_TIME_UTC_MILLIS,
-                    Programs.COLUMN_END_TIME_UTC_MILLIS,
-                    Programs.COLUMN_SHORT_DESCRIPTION
-            };
-            String selection = Programs.COLUMN_CHANNEL_ID + "=? AND "
-                    + Programs.COLUMN_START_TIME_UTC_MILLIS + "<=? AND "
-                    + Programs.COLUMN_END_TIME_UTC_MILLIS + ">?";
-            String[] selectionArgs = {
-                    String.valueOf(channelId),
-                    String.valueOf(time),
-                    String.valueOf(time)
-            };
-            String sortOrder = Programs.COLUMN_START_TIME_UTC_MILLIS + " ASC";
-
-            try (Cursor cursor = queryBuilder.query(db, projection, selection, selectionArgs, null,
-                    null, sortOrder)) {
-                ContentValues values = new ContentValues();
-                if (cursor != null && cursor.moveToNext()) {
-                    values.put(WatchedPrograms.COLUMN_TITLE, cursor.getString(0));
-                    values.put(WatchedPrograms.COLUMN_START_TIME_UTC_MILLIS, cursor.getLong(1));
-                    values.put(WatchedPrograms.COLUMN_END_TIME_UTC_MILLIS, cursor.getLong(2));
-                    values.put(WatchedPrograms.COLUMN_DESCRIPTION, cursor.getString(3));
-                }
-                return values;
-            }
-        }
-
         // Duplicates the WatchedPrograms row with a given ID and returns the ID of the duplicated
         // row. Returns -1 if failed.
         private final long duplicateRow(long id) {
@@ -1241,29 +4430,10 @@ public class TvProvider extends ContentProvider {
                 Log.d(TAG, "duplicateRow(" + id + ")");
             }
 
-            SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
-            queryBuilder.setTables(WATCHED_PROGRAMS_TABLE);
-            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-
-            String[] projection = {
-                    WatchedPrograms.COLUMN_PACKAGE_NAME,
-                    WatchedPrograms.COLUMN_CHANNEL_ID,
-                    WatchedPrograms.COLUMN_INTERNAL_SESSION_TOKEN
-            };
-            String selection = WatchedPrograms._ID + "=" + String.valueOf(id);
-
-            try (Cursor cursor = queryBuilder.query(db, projection, selection, null, null, null,
-                    null)) {
-                long rowId = -1;
-                if (cursor != null && cursor.moveToNext()) {
-                    ContentValues values = new ContentValues();
-                    values.put(WatchedPrograms.COLUMN_PACKAGE_NAME, cursor.getString(0));
-                    values.put(WatchedPrograms.COLUMN_CHANNEL_ID, cursor.getLong(1));
-                    values.put(WatchedPrograms.COLUMN_INTERNAL_SESSION_TOKEN, cursor.getString(2));
-                    rowId = db.insert(WATCHED_PROGRAMS_TABLE, null, values);
-                }
-                return rowId;
-            }
+            TimedStatement statement = mOpenHelper.getStatement("duplicate row",
+                    DUPLICATE_ROW_SQL);
+            statement.bindLong(1, id);
+            return statement.executeInsert();
         }
     }
 }
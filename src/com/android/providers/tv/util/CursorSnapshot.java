@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.tv.util;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+/**
+ * An immutable copy of the rows of a cursor, which serves queries for any of its columns from
+ * memory.
+ */
+public class CursorSnapshot {
+    private final String[] mColumnNames;
+    private final Object[][] mRows;
+
+    /**
+     * Copies the remaining rows of {@code cursor}. The cursor is not closed.
+     */
+    public CursorSnapshot(Cursor cursor) {
+        mColumnNames = cursor.getColumnNames();
+        mRows = new Object[cursor.getCount()][];
+        int columnCount = mColumnNames.length;
+        int rowCount = 0;
+        while (cursor.moveToNext()) {
+            Object[] row = new Object[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                row[i] = getValue(cursor, i);
+            }
+            mRows[rowCount++] = row;
+        }
+    }
+
+    /**
+     * Returns the value of a column of the current row of {@code cursor} as a {@link Long}, a
+     * {@link Double}, a {@link String}, a {@code byte[]} or null, as stored.
+     */
+    public static Object getValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return null;
+        }
+    }
+
+    public int getCount() {
+        return mRows.length;
+    }
+
+    /**
+     * Returns a new cursor over the given columns of the rows, or all the columns if
+     * {@code projection} is null. Returns null if the snapshot doesn't have some of the columns.
+     */
+    public Cursor newCursor(String[] projection) {
+        String[] columnNames = projection != null ? projection : mColumnNames;
+        int[] columnIndexes = new int[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            columnIndexes[i] = indexOf(columnNames[i]);
+            if (columnIndexes[i] < 0) {
+                return null;
+            }
+        }
+
+        MatrixCursor cursor = new MatrixCursor(columnNames, mRows.length);
+        // MatrixCursor copies the values, so the same array can be used for every row.
+        Object[] values = new Object[columnNames.length];
+        for (Object[] row : mRows) {
+            for (int i = 0; i < columnIndexes.length; i++) {
+                values[i] = row[columnIndexes[i]];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    private int indexOf(String columnName) {
+        for (int i = 0; i < mColumnNames.length; i++) {
+            if (mColumnNames[i].equals(columnName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.tv.util;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the count, total and maximum of a repeatedly measured duration, for dumpsys.
+ * This class is thread-safe.
+ */
+public class DurationStats {
+    private final String mName;
+    private long mCount;
+    private long mTotalNanos;
+    private long mMaxNanos;
+
+    public DurationStats(String name) {
+        mName = name;
+    }
+
+    public synchronized void add(long durationNanos) {
+        mCount++;
+        mTotalNanos += durationNanos;
+        mMaxNanos = Math.max(mMaxNanos, durationNanos);
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        long averageMicros = mCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(mTotalNanos / mCount);
+        writer.println(mName + ": count=" + mCount + " avg=" + averageMicros + "us max="
+                + TimeUnit.NANOSECONDS.toMicros(mMaxNanos) + "us");
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.tv.util;
+
+/**
+ * The constants of a compact binary format for streaming rows of the TV provider tables, written
+ * by {@link EpgRecordWriter} and read by {@link EpgRecordReader}.
+ * <p>
+ * A stream is the 4 byte {@link #MAGIC}, the {@link #VERSION} as a varint, and a sequence of
+ * records, each made of its type as a byte, the length of its payload as a varint, and the
+ * payload. The last record is a {@link #RECORD_END}, so that a truncated stream is detected.
+ * <ul>
+ * <li>{@link #RECORD_TABLE} starts the rows of a table. Its payload is the table ID as a varint,
+ * the number of columns as a varint and the name of each column as a string.
+ * <li>{@link #RECORD_ROW} is a row of the current table. Its payload is a value for each column,
+ * made of a value type as a byte followed by the value.
+ * <li>{@link #RECORD_DELETE} deletes a row of the current table. Its payload is the row ID as a
+ * varint. It only appears in snapshots, whose tables may appear again after their first rows,
+ * with the rows that changed while the snapshot was taken.
+ * </ul>
+ * Integers are zigzag encoded varints, doubles are 8 bytes big-endian, and strings and blobs are
+ * their length in bytes as a varint followed by their bytes, UTF-8 for strings. Repeated strings,
+ * like genres and ratings, are dictionary encoded: a string defined with
+ * {@link #VALUE_STRING_DEFINITION} is appended to the dictionary of the stream, and later values
+ * can refer to it by its index with {@link #VALUE_STRING_REFERENCE}.
+ */
+public final class EpgRecordFormat {
+    public static final int MAGIC = 0x54564542;
+    public static final int VERSION = 1;
+
+    public static final int RECORD_END = 0;
+    public static final int RECORD_TABLE = 1;
+    public static final int RECORD_ROW = 2;
+    public static final int RECORD_DELETE = 3;
+
+    public static final int TABLE_CHANNELS = 1;
+    public static final int TABLE_PROGRAMS = 2;
+    public static final int TABLE_WATCHED_PROGRAMS = 3;
+    // The logos of channels, as a channel ID and the image in a blob.
+    public static final int TABLE_CHANNEL_LOGOS = 4;
+
+    public static final int VALUE_NULL = 0;
+    public static final int VALUE_INTEGER = 1;
+    public static final int VALUE_DOUBLE = 2;
+    public static final int VALUE_STRING = 3;
+    public static final int VALUE_STRING_DEFINITION = 4;
+    public static final int VALUE_STRING_REFERENCE = 5;
+    public static final int VALUE_BLOB = 6;
+    // The index of a row of TABLE_CHANNELS earlier in the same stream, for the channel ID of
+    // programs whose channel is inserted by the stream too.
+    public static final int VALUE_CHANNEL_REFERENCE = 7;
+
+    // Bounds the memory a reader needs for a stream.
+    public static final int MAX_RECORD_LENGTH = 1024 * 1024;
+    public static final int MAX_DICTIONARY_SIZE = 4096;
+    // Longer strings, like descriptions, rarely repeat, so they aren't worth a dictionary entry.
+    public static final int MAX_DICTIONARY_STRING_LENGTH = 64;
+
+    private EpgRecordFormat() {}
+}
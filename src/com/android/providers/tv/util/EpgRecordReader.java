@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.tv.util;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads rows in the format of {@link EpgRecordFormat}, one record at a time. The values of the
+ * current row are kept in arrays reused for every row, so that they can be bound to a statement
+ * without allocating anything but their strings and blobs. Records of unknown types are skipped,
+ * so that later versions of the format can add records. This class is not thread-safe.
+ */
+public class EpgRecordReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // A record with its type and the longest varint of its length.
+    private static final int MAX_BUFFER_SIZE = EpgRecordFormat.MAX_RECORD_LENGTH + 11;
+
+    private final InputStream mIn;
+    // The descriptor of the stream if it is a file, whose data can be waited for.
+    private final FileDescriptor mFd;
+    private byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mBufferPosition;
+    private int mBufferLimit;
+    private final List<String> mDictionary = new ArrayList<String>();
+    private byte[] mRecord = new byte[256];
+    private int mLength;
+    private int mPosition;
+
+    private int mTable;
+    private long mDeletedRowId;
+    private String[] mColumnNames;
+    private int[] mTypes;
+    private long[] mLongs;
+    private double[] mDoubles;
+    private Object[] mObjects;
+
+    /**
+     * @param in the stream to read, which is buffered by the reader. If it is a
+     *     {@link FileInputStream}, like the one of a pipe, {@link #awaitBufferedData(long)} can
+     *     wait for its data.
+     * @throws IOException if the stream doesn't start with the header of a supported version.
+     */
+    public EpgRecordReader(InputStream in) throws IOException {
+        mIn = in;
+        mFd = in instanceof FileInputStream ? ((FileInputStream) in).getFD() : null;
+        int magic = 0;
+        for (int i = 0; i < 4; i++) {
+            magic = (magic << 8) | readByte();
+        }
+        if (magic != EpgRecordFormat.MAGIC) {
+            throw new IOException("Not an EPG record stream");
+        }
+        long version = readVarint();
+        if (version != EpgRecordFormat.VERSION) {
+            throw new IOException("Unsupported EPG record version: " + version);
+        }
+    }
+
+    /**
+     * Reads the next record, and returns its type, {@link EpgRecordFormat#RECORD_TABLE},
+     * {@link EpgRecordFormat#RECORD_ROW}, {@link EpgRecordFormat#RECORD_DELETE} or
+     * {@link EpgRecordFormat#RECORD_END}. Nothing can be read after the end record.
+     *
+     * @throws IOException if the stream is malformed or truncated.
+     */
+    public int next() throws IOException {
+        while (true) {
+            int type = readByte();
+            long length = readVarint();
+            if (length > EpgRecordFormat.MAX_RECORD_LENGTH) {
+                throw new IOException("Record too long: " + length + " bytes");
+            }
+            mLength = (int) length;
+            if (mRecord.length < mLength) {
+                mRecord = new byte[Math.max(mLength, mRecord.length * 2)];
+            }
+            for (int read = 0; read < mLength; ) {
+                if (mBufferPosition == mBufferLimit && !fillBuffer()) {
+                    throw new EOFException("Truncated record");
+                }
+                int count = Math.min(mLength - read, mBufferLimit - mBufferPosition);
+                System.arraycopy(mBuffer, mBufferPosition, mRecord, read, count);
+                mBufferPosition += count;
+                read += count;
+            }
+            mPosition = 0;
+            switch (type) {
+                case EpgRecordFormat.RECORD_END:
+                    return type;
+                case EpgRecordFormat.RECORD_TABLE:
+                    parseTable();
+                    return type;
+                case EpgRecordFormat.RECORD_ROW:
+                    parseRow();
+                    return type;
+                case EpgRecordFormat.RECORD_DELETE:
+                    if (mColumnNames == null) {
+                        throw new IOException("Delete before any table record");
+                    }
+                    mDeletedRowId = readRecordVarint();
+                    checkRecordEnd();
+                    return type;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the whole next record has arrived, so that {@link #next()} can read it
+     * without waiting for the writer. The bytes that can be read from the stream without
+     * blocking are buffered first.
+     */
+    public boolean hasBufferedData() {
+        try {
+            bufferAvailableBytes();
+        } catch (IOException e) {
+            return false;
+        }
+        // Skips the type of the record, and reads the length of its payload.
+        int position = mBufferPosition + 1;
+        long length = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= mBufferLimit) {
+                return false;
+            }
+            int b = mBuffer[position++];
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                // A record too long is rejected by next() without reading it.
+                return length > EpgRecordFormat.MAX_RECORD_LENGTH
+                        || length <= mBufferLimit - position;
+            }
+        }
+        // A malformed varint is rejected by next() as well.
+        return true;
+    }
+
+    /**
+     * Waits up to {@code timeoutMillis} for the whole next record to arrive, and returns whether
+     * it has, as {@link #hasBufferedData()}. Only a stream of a file descriptor is waited for;
+     * the others are only checked.
+     */
+    public boolean awaitBufferedData(long timeoutMillis) {
+        long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        while (!hasBufferedData()) {
+            long remainingMillis = deadline - SystemClock.uptimeMillis();
+            if (mFd == null || remainingMillis <= 0) {
+                return false;
+            }
+            // All the bytes that had arrived are buffered, so the descriptor only becomes
+            // readable once more arrive, or once the writer closes it.
+            StructPollfd pollfd = new StructPollfd();
+            pollfd.fd = mFd;
+            pollfd.events = (short) OsConstants.POLLIN;
+            try {
+                if (Os.poll(new StructPollfd[] { pollfd }, (int) remainingMillis) == 0) {
+                    return false;
+                }
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EINTR) {
+                    continue;
+                }
+                return false;
+            }
+            if ((pollfd.revents & OsConstants.POLLIN) == 0) {
+                // The writer closed the stream, or it failed.
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Moves the bytes that can be read from the stream without blocking to the buffer. The buffer
+    // grows up to the size of the longest record, so that a whole record can be seen to have
+    // arrived.
+    private void bufferAvailableBytes() throws IOException {
+        int available;
+        while ((available = mIn.available()) > 0) {
+            if (mBufferLimit == mBuffer.length) {
+                if (mBufferPosition > 0) {
+                    System.arraycopy(mBuffer, mBufferPosition, mBuffer, 0,
+                            mBufferLimit - mBufferPosition);
+                    mBufferLimit -= mBufferPosition;
+                    mBufferPosition = 0;
+                } else if (mBuffer.length < MAX_BUFFER_SIZE) {
+                    mBuffer = Arrays.copyOf(mBuffer,
+                            Math.min(mBuffer.length * 2, MAX_BUFFER_SIZE));
+                } else {
+                    return;
+                }
+            }
+            int count = mIn.read(mBuffer, mBufferLimit,
+                    Math.min(available, mBuffer.length - mBufferLimit));
+            if (count <= 0) {
+                return;
+            }
+            mBufferLimit += count;
+        }
+    }
+
+    // Reads into the empty buffer, blocking until some bytes arrive. Returns false at the end of
+    // the stream.
+    private boolean fillBuffer() throws IOException {
+        mBufferPosition = 0;
+        mBufferLimit = 0;
+        int count = mIn.read(mBuffer, 0, mBuffer.length);
+        if (count < 0) {
+            return false;
+        }
+        mBufferLimit = count;
+        return true;
+    }
+
+    private void parseTable() throws IOException {
+        mTable = readRecordInt();
+        int columnCount = readRecordInt();
+        // Each column takes at least a byte, which bounds the arrays by the record length.
+        if (columnCount > mLength) {
+            throw new IOException("Malformed table record");
+        }
+        mColumnNames = new String[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            mColumnNames[i] = readRecordString();
+        }
+        mTypes = new int[columnCount];
+        mLongs = new long[columnCount];
+        mDoubles = new double[columnCount];
+        mObjects = new Object[columnCount];
+        checkRecordEnd();
+    }
+
+    private void parseRow() throws IOException {
+        if (mColumnNames == null) {
+            throw new IOException("Row before any table record");
+        }
+        for (int i = 0; i < mColumnNames.length; i++) {
+            mObjects[i] = null;
+            int type = readRecordByte();
+            switch (type) {
+                case EpgRecordFormat.VALUE_NULL:
+                    break;
+                case EpgRecordFormat.VALUE_INTEGER:
+                    long zigzag = readRecordVarint();
+                    mLongs[i] = (zigzag >>> 1) ^ -(zigzag & 1);
+                    break;
+                case EpgRecordFormat.VALUE_DOUBLE:
+                    long bits = 0;
+                    for (int b = 0; b < 8; b++) {
+                        bits = (bits << 8) | readRecordByte();
+                    }
+                    mDoubles[i] = Double.longBitsToDouble(bits);
+                    break;
+                case EpgRecordFormat.VALUE_STRING:
+                    mObjects[i] = readRecordString();
+                    break;
+                case EpgRecordFormat.VALUE_STRING_DEFINITION:
+                    if (mDictionary.size() >= EpgRecordFormat.MAX_DICTIONARY_SIZE) {
+                        throw new IOException("Too many dictionary strings");
+                    }
+                    String string = readRecordString();
+                    mDictionary.add(string);
+                    mObjects[i] = string;
+                    type = EpgRecordFormat.VALUE_STRING;
+                    break;
+                case EpgRecordFormat.VALUE_STRING_REFERENCE:
+                    int index = readRecordInt();
+                    if (index >= mDictionary.size()) {
+                        throw new IOException("Undefined dictionary string: " + index);
+                    }
+                    mObjects[i] = mDictionary.get(index);
+                    type = EpgRecordFormat.VALUE_STRING;
+                    break;
+                case EpgRecordFormat.VALUE_BLOB:
+                    int length = readRecordLength();
+                    byte[] blob = new byte[length];
+                    System.arraycopy(mRecord, mPosition, blob, 0, length);
+                    mPosition += length;
+                    mObjects[i] = blob;
+                    break;
+                case EpgRecordFormat.VALUE_CHANNEL_REFERENCE:
+                    mLongs[i] = readRecordInt();
+                    break;
+                default:
+                    throw new IOException("Unknown value type: " + type);
+            }
+            mTypes[i] = type;
+        }
+        checkRecordEnd();
+    }
+
+    /**
+     * Returns the table of the current rows, one of the {@code EpgRecordFormat.TABLE_*}
+     * constants.
+     */
+    public int getTable() {
+        return mTable;
+    }
+
+    /**
+     * Returns the row ID of the current delete record.
+     */
+    public long getDeletedRowId() {
+        return mDeletedRowId;
+    }
+
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    /**
+     * Returns the type of a value of the current row, {@link EpgRecordFormat#VALUE_NULL},
+     * {@link EpgRecordFormat#VALUE_INTEGER}, {@link EpgRecordFormat#VALUE_DOUBLE},
+     * {@link EpgRecordFormat#VALUE_STRING}, {@link EpgRecordFormat#VALUE_BLOB} or
+     * {@link EpgRecordFormat#VALUE_CHANNEL_REFERENCE}.
+     */
+    public int getType(int column) {
+        return mTypes[column];
+    }
+
+    /**
+     * Returns an integer value, or the index of the channel of a channel reference.
+     */
+    public long getLong(int column) {
+        return mLongs[column];
+    }
+
+    public double getDouble(int column) {
+        return mDoubles[column];
+    }
+
+    public String getString(int column) {
+        return (String) mObjects[column];
+    }
+
+    public byte[] getBlob(int column) {
+        return (byte[]) mObjects[column];
+    }
+
+    private int readByte() throws IOException {
+        if (mBufferPosition == mBufferLimit && !fillBuffer()) {
+            throw new EOFException("Missing end record");
+        }
+        return mBuffer[mBufferPosition++] & 0xFF;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private int readRecordByte() throws IOException {
+        if (mPosition >= mLength) {
+            throw new IOException("Malformed record");
+        }
+        return mRecord[mPosition++] & 0xFF;
+    }
+
+    private long readRecordVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readRecordByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private int readRecordInt() throws IOException {
+        long value = readRecordVarint();
+        // A varint of 10 bytes can come out negative.
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("Malformed record");
+        }
+        return (int) value;
+    }
+
+    // Reads the length of a string or a blob, which must fit in the rest of the record.
+    private int readRecordLength() throws IOException {
+        int length = readRecordInt();
+        if (length > mLength - mPosition) {
+            throw new IOException("Malformed record");
+        }
+        return length;
+    }
+
+    private String readRecordString() throws IOException {
+        int length = readRecordLength();
+        String string = new String(mRecord, mPosition, length, StandardCharsets.UTF_8);
+        mPosition += length;
+        return string;
+    }
+
+    private void checkRecordEnd() throws IOException {
+        if (mPosition != mLength) {
+            throw new IOException("Malformed record");
+        }
+    }
+}
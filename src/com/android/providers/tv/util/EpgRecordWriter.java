@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.tv.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes rows in the format of {@link EpgRecordFormat}. Strings up to
+ * {@link EpgRecordFormat#MAX_DICTIONARY_STRING_LENGTH} characters are dictionary encoded, until
+ * the dictionary is full. This class is not thread-safe.
+ */
+public class EpgRecordWriter implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * A value that refers to a channel written earlier in the same stream, by its index among
+     * the channels of the stream.
+     */
+    public static final class ChannelReference {
+        private final int mIndex;
+
+        public ChannelReference(int index) {
+            mIndex = index;
+        }
+    }
+
+    // A ByteArrayOutputStream whose bytes can be written out without being copied.
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        void writeTo(OutputStream out, int type) throws IOException {
+            if (count > EpgRecordFormat.MAX_RECORD_LENGTH) {
+                throw new IllegalArgumentException("Record too long: " + count + " bytes");
+            }
+            out.write(type);
+            writeVarint(out, count);
+            out.write(buf, 0, count);
+        }
+    }
+
+    private final OutputStream mOut;
+    private final RecordBuffer mRecord = new RecordBuffer();
+    private final Map<String, Integer> mDictionary = new HashMap<String, Integer>();
+    private int mColumnCount = -1;
+
+    public EpgRecordWriter(OutputStream out) throws IOException {
+        mOut = new BufferedOutputStream(out, BUFFER_SIZE);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            mOut.write(EpgRecordFormat.MAGIC >>> shift);
+        }
+        writeVarint(mOut, EpgRecordFormat.VERSION);
+    }
+
+    /**
+     * Starts the rows of a table, one of the {@code EpgRecordFormat.TABLE_*} constants, with the
+     * given columns.
+     */
+    public void startTable(int table, String... columns) throws IOException {
+        mRecord.reset();
+        writeVarint(mRecord, table);
+        writeVarint(mRecord, columns.length);
+        for (String column : columns) {
+            writeBytes(column.getBytes(StandardCharsets.UTF_8));
+        }
+        mRecord.writeTo(mOut, EpgRecordFormat.RECORD_TABLE);
+        mColumnCount = columns.length;
+    }
+
+    /**
+     * Writes a row of the current table, with a value for each of its columns. A value is null,
+     * a {@link Number}, a {@link Boolean}, a {@link String}, a {@code byte[]} or a
+     * {@link ChannelReference}.
+     */
+    public void writeRow(Object... values) throws IOException {
+        if (values.length != mColumnCount) {
+            throw new IllegalArgumentException("Expected " + mColumnCount + " values but got "
+                    + values.length);
+        }
+        mRecord.reset();
+        for (Object value : values) {
+            writeValue(value);
+        }
+        mRecord.writeTo(mOut, EpgRecordFormat.RECORD_ROW);
+    }
+
+    /**
+     * Writes the deletion of a row of the current table.
+     */
+    public void writeDelete(long rowId) throws IOException {
+        mRecord.reset();
+        writeVarint(mRecord, rowId);
+        mRecord.writeTo(mOut, EpgRecordFormat.RECORD_DELETE);
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            mRecord.write(EpgRecordFormat.VALUE_NULL);
+        } else if (value instanceof Double || value instanceof Float) {
+            mRecord.write(EpgRecordFormat.VALUE_DOUBLE);
+            long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                mRecord.write((int) (bits >>> shift));
+            }
+        } else if (value instanceof Number || value instanceof Boolean) {
+            long l = value instanceof Boolean ? ((Boolean) value ? 1 : 0)
+                    : ((Number) value).longValue();
+            mRecord.write(EpgRecordFormat.VALUE_INTEGER);
+            writeVarint(mRecord, (l << 1) ^ (l >> 63));
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof byte[]) {
+            mRecord.write(EpgRecordFormat.VALUE_BLOB);
+            writeBytes((byte[]) value);
+        } else if (value instanceof ChannelReference) {
+            mRecord.write(EpgRecordFormat.VALUE_CHANNEL_REFERENCE);
+            writeVarint(mRecord, ((ChannelReference) value).mIndex);
+        } else {
+            throw new IllegalArgumentException("Unsupported value type: " + value.getClass());
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        Integer index = mDictionary.get(value);
+        if (index != null) {
+            mRecord.write(EpgRecordFormat.VALUE_STRING_REFERENCE);
+            writeVarint(mRecord, index);
+            return;
+        }
+        if (value.length() <= EpgRecordFormat.MAX_DICTIONARY_STRING_LENGTH
+                && mDictionary.size() < EpgRecordFormat.MAX_DICTIONARY_SIZE) {
+            mDictionary.put(value, mDictionary.size());
+            mRecord.write(EpgRecordFormat.VALUE_STRING_DEFINITION);
+        } else {
+            mRecord.write(EpgRecordFormat.VALUE_STRING);
+        }
+        writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        writeVarint(mRecord, bytes.length);
+        mRecord.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Ends the stream and flushes it. A stream that is closed without being finished is rejected
+     * by the reader, so that a writer that fails midway doesn't pass for a complete one.
+     */
+    public void finish() throws IOException {
+        mOut.write(EpgRecordFormat.RECORD_END);
+        writeVarint(mOut, 0);
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.tv.util;
+
+import android.media.tv.TvContract.Programs.Genres;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+
+/**
+ * An immutable mapping from broadcast genres to canonical genres, built once from the
+ * "broadcast genre|CANONICAL_GENRE" entries of the genre mapping resources.
+ * <p>
+ * Broadcast genres are matched ignoring case, by hashing and comparing them in place, so a lookup
+ * doesn't allocate. Since a guide repeats the same few genre strings for most of its programs,
+ * the mapping of whole encoded genre strings is memoized as well. This class is thread-safe.
+ */
+public class GenreMapper {
+    private static final int MEMO_SIZE = 256;
+    // Memoized for broadcast genres that map to no canonical genre, since LruCache can't hold null.
+    private static final String NO_GENRE = "";
+
+    // An open addressing hash table, whose size is a power of two at least twice the number of
+    // mappings so that probe sequences stay short.
+    private final String[] mBroadcastGenres;
+    private final String[] mCanonicalGenres;
+    private final int mMask;
+    private final LruCache<String, String> mMemo = new LruCache<String, String>(MEMO_SIZE);
+
+    /**
+     * Builds the mapping from the given arrays of "broadcast genre|CANONICAL_GENRE" entries. The
+     * last mapping of a broadcast genre wins, and mappings to genres that aren't canonical are
+     * dropped.
+     *
+     * @throws IllegalArgumentException if an entry isn't a pair of genres.
+     */
+    public GenreMapper(String[]... mappings) {
+        int count = 0;
+        for (String[] entries : mappings) {
+            count += entries.length;
+        }
+        int size = Integer.highestOneBit(Math.max(count, 1) * 2) << 1;
+        mBroadcastGenres = new String[size];
+        mCanonicalGenres = new String[size];
+        mMask = size - 1;
+        for (String[] entries : mappings) {
+            for (String entry : entries) {
+                String[] pair = entry.split("\\|");
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("Invalid genre mapping : " + entry);
+                }
+                put(pair[0], Genres.isCanonical(pair[1]) ? pair[1] : null);
+            }
+        }
+    }
+
+    private void put(String broadcastGenre, String canonicalGenre) {
+        int i = hashIgnoreCase(broadcastGenre) & mMask;
+        while (mBroadcastGenres[i] != null) {
+            if (mBroadcastGenres[i].equalsIgnoreCase(broadcastGenre)) {
+                break;
+            }
+            i = (i + 1) & mMask;
+        }
+        mBroadcastGenres[i] = broadcastGenre;
+        mCanonicalGenres[i] = canonicalGenre;
+    }
+
+    // A hash consistent with String.equalsIgnoreCase(), which compares characters folded this way.
+    private static int hashIgnoreCase(String s) {
+        int hash = 0;
+        for (int i = 0; i < s.length(); i++) {
+            hash = 31 * hash + Character.toLowerCase(Character.toUpperCase(s.charAt(i)));
+        }
+        // Spreads the high bits, since only the low ones index the table.
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns the canonical genre of a single broadcast genre, or null if it has none.
+     */
+    public String getCanonicalGenre(String broadcastGenre) {
+        int i = hashIgnoreCase(broadcastGenre) & mMask;
+        String candidate;
+        while ((candidate = mBroadcastGenres[i]) != null) {
+            if (candidate.equalsIgnoreCase(broadcastGenre)) {
+                return mCanonicalGenres[i];
+            }
+            i = (i + 1) & mMask;
+        }
+        return null;
+    }
+
+    /**
+     * Maps encoded broadcast genres to encoded canonical genres, in the order in which they first
+     * appear. Returns null if none of the broadcast genres has a canonical genre.
+     */
+    public String map(String encodedBroadcastGenres) {
+        String canonicalGenres = mMemo.get(encodedBroadcastGenres);
+        if (canonicalGenres == null) {
+            canonicalGenres = mapUncached(encodedBroadcastGenres);
+            mMemo.put(encodedBroadcastGenres, canonicalGenres);
+        }
+        return canonicalGenres == NO_GENRE ? null : canonicalGenres;
+    }
+
+    private String mapUncached(String encodedBroadcastGenres) {
+        String[] broadcastGenres = Genres.decode(encodedBroadcastGenres);
+        String[] canonicalGenres = new String[broadcastGenres.length];
+        int count = 0;
+        for (String broadcastGenre : broadcastGenres) {
+            String canonicalGenre = getCanonicalGenre(broadcastGenre);
+            if (canonicalGenre != null && !contains(canonicalGenres, count, canonicalGenre)) {
+                canonicalGenres[count++] = canonicalGenre;
+            }
+        }
+        if (count == 0) {
+            return NO_GENRE;
+        }
+        if (count < canonicalGenres.length) {
+            String[] trimmed = new String[count];
+            System.arraycopy(canonicalGenres, 0, trimmed, 0, count);
+            canonicalGenres = trimmed;
+        }
+        return Genres.encode(canonicalGenres);
+    }
+
+    private static boolean contains(String[] array, int length, String value) {
+        for (int i = 0; i < length; i++) {
+            if (TextUtils.equals(array[i], value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Genre mapping memo: hits=" + mMemo.hitCount() + " misses="
+                + mMemo.missCount() + " entries=" + mMemo.size());
+    }
+}
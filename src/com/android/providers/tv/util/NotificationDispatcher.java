@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.tv.util;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sends content change notifications from a dedicated thread, so that writers don't wait for the
+ * observers, coalescing the ones of bursts of changes. A change after a quiet window is
+ * dispatched right away, so that an observer sees it as soon as possible. The URIs changed within
+ * the window that follows are notified once, at the end of the window. When more rows of a table
+ * than a threshold change within the window, the table URI is notified instead, which reaches the
+ * observers of the rows as well. This class is thread-safe.
+ */
+public class NotificationDispatcher {
+    private static final int MSG_DISPATCH = 1;
+
+    private final ContentResolver mResolver;
+    private final long mDebounceMillis;
+    private final int mCollapseThreshold;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+    // The URIs to notify at the end of the current window. Guarded by mLock.
+    private Set<Uri> mPendingUris = new HashSet<Uri>();
+    // The number of notifications requested in the current window. Guarded by mLock.
+    private int mPendingCount;
+    // When the notifications were last dispatched, in uptime. Guarded by mLock.
+    private long mLastDispatchMillis;
+    // Whether quit() was called, after which notifications are dispatched right away. Guarded by
+    // mLock.
+    private boolean mQuit;
+    // Guarded by mLock.
+    private long mRequestedCount;
+    private long mDeliveredCount;
+    private long mSuppressedCount;
+
+    public NotificationDispatcher(ContentResolver resolver, long debounceMillis,
+            int collapseThreshold) {
+        mResolver = resolver;
+        mDebounceMillis = debounceMillis;
+        mCollapseThreshold = collapseThreshold;
+        mLastDispatchMillis = SystemClock.uptimeMillis() - debounceMillis;
+        mThread = new HandlerThread("TvProvider notifications",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_DISPATCH) {
+                    dispatch();
+                }
+            }
+        };
+    }
+
+    public void notifyChange(Uri uri) {
+        notifyChanges(Collections.singleton(uri));
+    }
+
+    public void notifyChanges(Collection<Uri> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+        boolean dispatchNow;
+        synchronized (mLock) {
+            // Once notifications are pending, a dispatch that will take these ones too is due.
+            boolean idle = mPendingCount == 0;
+            dispatchNow = idle && mQuit;
+            if (idle && !mQuit) {
+                long windowEndMillis = mLastDispatchMillis + mDebounceMillis;
+                if (SystemClock.uptimeMillis() >= windowEndMillis) {
+                    mHandler.sendEmptyMessage(MSG_DISPATCH);
+                } else {
+                    mHandler.sendEmptyMessageAtTime(MSG_DISPATCH, windowEndMillis);
+                }
+            }
+            mPendingUris.addAll(uris);
+            mPendingCount += uris.size();
+            mRequestedCount += uris.size();
+        }
+        if (dispatchNow) {
+            dispatch();
+        }
+    }
+
+    private void dispatch() {
+        Set<Uri> uris;
+        int requestedCount;
+        synchronized (mLock) {
+            uris = mPendingUris;
+            requestedCount = mPendingCount;
+            mPendingUris = new HashSet<Uri>();
+            mPendingCount = 0;
+            mLastDispatchMillis = SystemClock.uptimeMillis();
+        }
+        if (uris.isEmpty()) {
+            return;
+        }
+
+        List<Uri> notifiedUris = new ArrayList<Uri>();
+        Map<Uri, List<Uri>> rowUrisByTable = new HashMap<Uri, List<Uri>>();
+        for (Uri uri : uris) {
+            Uri tableUri = getTableUri(uri);
+            if (tableUri == null) {
+                notifiedUris.add(uri);
+                continue;
+            }
+            List<Uri> rowUris = rowUrisByTable.get(tableUri);
+            if (rowUris == null) {
+                rowUris = new ArrayList<Uri>();
+                rowUrisByTable.put(tableUri, rowUris);
+            }
+            rowUris.add(uri);
+        }
+        for (Map.Entry<Uri, List<Uri>> entry : rowUrisByTable.entrySet()) {
+            if (uris.contains(entry.getKey())) {
+                // The rows are notified with the table already.
+                continue;
+            }
+            if (entry.getValue().size() > mCollapseThreshold) {
+                notifiedUris.add(entry.getKey());
+            } else {
+                notifiedUris.addAll(entry.getValue());
+            }
+        }
+
+        for (Uri uri : notifiedUris) {
+            mResolver.notifyChange(uri, null);
+        }
+        synchronized (mLock) {
+            mDeliveredCount += notifiedUris.size();
+            mSuppressedCount += requestedCount - notifiedUris.size();
+        }
+    }
+
+    // Returns the URI of the table of a row URI, i.e. one that ends with a row ID, or null if
+    // the URI is not a row URI.
+    private static Uri getTableUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        int count = segments.size();
+        if (count < 2 || !TextUtils.isDigitsOnly(segments.get(count - 1))) {
+            return null;
+        }
+        Uri.Builder builder = new Uri.Builder().scheme(uri.getScheme())
+                .authority(uri.getAuthority());
+        for (int i = 0; i < count - 1; i++) {
+            builder.appendPath(segments.get(i));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Stops the dispatching thread. The pending notifications are dispatched on the calling
+     * thread, as are the ones requested afterwards.
+     */
+    public void quit() {
+        synchronized (mLock) {
+            mQuit = true;
+        }
+        mThread.quit();
+        dispatch();
+    }
+
+    public void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("Notifications: requested=" + mRequestedCount + " delivered="
+                    + mDeliveredCount + " suppressed=" + mSuppressedCount + " pending="
+                    + mPendingCount);
+        }
+    }
+}
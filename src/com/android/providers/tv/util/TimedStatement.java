@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.tv.util;
+
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * A compiled {@link SQLiteStatement} that is meant to be kept and executed many times, with the
+ * time spent executing it. Like the statement itself, this class keeps the bound arguments, so
+ * it must not be used by more than one thread at a time.
+ */
+public class TimedStatement {
+    private final SQLiteStatement mStatement;
+    private final DurationStats mStats;
+
+    public TimedStatement(String name, SQLiteStatement statement) {
+        mStatement = statement;
+        mStats = new DurationStats(name);
+    }
+
+    public void bindLong(int index, long value) {
+        mStatement.bindLong(index, value);
+    }
+
+    public void bindString(int index, String value) {
+        mStatement.bindString(index, value);
+    }
+
+    public void bindNull(int index) {
+        mStatement.bindNull(index);
+    }
+
+    public long simpleQueryForLong() {
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        try {
+            return mStatement.simpleQueryForLong();
+        } finally {
+            mStats.add(SystemClock.elapsedRealtimeNanos() - startNanos);
+        }
+    }
+
+    public long executeInsert() {
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        try {
+            return mStatement.executeInsert();
+        } finally {
+            mStats.add(SystemClock.elapsedRealtimeNanos() - startNanos);
+        }
+    }
+
+    public int executeUpdateDelete() {
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        try {
+            return mStatement.executeUpdateDelete();
+        } finally {
+            mStats.add(SystemClock.elapsedRealtimeNanos() - startNanos);
+        }
+    }
+
+    public void close() {
+        mStatement.close();
+    }
+
+    public void dump(PrintWriter writer) {
+        mStats.dump(writer);
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.tv.util;
+
+import android.content.ContentValues;
+import android.media.tv.TvContract.Programs;
+import android.media.tv.TvContract.Programs.Genres;
+import android.text.TextUtils;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Parses an XMLTV document with a pull parser, handing each channel and program to a callback as
+ * soon as its element ends, so that only one element is held in memory at a time however large
+ * the document is. Programs are returned as the values of a row of the programs table, without
+ * the channel ID, which the caller resolves from the XMLTV channel ID. This class is not
+ * thread-safe, except for {@link #getByteCount()}.
+ */
+public class XmltvParser {
+    private static final String TAG_CHANNEL = "channel";
+    private static final String TAG_PROGRAMME = "programme";
+    private static final String TAG_DISPLAY_NAME = "display-name";
+    private static final String TAG_TITLE = "title";
+    private static final String TAG_SUB_TITLE = "sub-title";
+    private static final String TAG_DESC = "desc";
+    private static final String TAG_CATEGORY = "category";
+    private static final String TAG_EPISODE_NUM = "episode-num";
+    private static final String TAG_ICON = "icon";
+    private static final String ATTR_ID = "id";
+    private static final String ATTR_CHANNEL = "channel";
+    private static final String ATTR_START = "start";
+    private static final String ATTR_STOP = "stop";
+    private static final String ATTR_SYSTEM = "system";
+    private static final String ATTR_SRC = "src";
+    private static final String EPISODE_NUM_SYSTEM_XMLTV_NS = "xmltv_ns";
+
+    public interface Callback {
+        /**
+         * Called for each channel element. {@code displayName} and {@code displayNumber} are null
+         * if the channel has no such display name.
+         */
+        void onChannel(String channelId, String displayName, String displayNumber);
+
+        /**
+         * Called for each program element with a valid start time. The values are owned by the
+         * callback.
+         */
+        void onProgram(String channelId, ContentValues program);
+    }
+
+    private final Calendar mCalendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    private final List<String> mCategories = new ArrayList<String>();
+    private volatile long mByteCount;
+    private int mInvalidProgramCount;
+
+    /**
+     * Parses the document from {@code in} up to its end. The stream is not closed.
+     */
+    public void parse(InputStream in, Callback callback)
+            throws IOException, XmlPullParserException {
+        XmlPullParser parser = Xml.newPullParser();
+        // The encoding is detected from the XML declaration.
+        parser.setInput(new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    mByteCount++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int read = super.read(buffer, offset, count);
+                if (read > 0) {
+                    mByteCount += read;
+                }
+                return read;
+            }
+        }, null);
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (event != XmlPullParser.START_TAG) {
+                continue;
+            }
+            if (TAG_CHANNEL.equals(parser.getName())) {
+                parseChannel(parser, callback);
+            } else if (TAG_PROGRAMME.equals(parser.getName())) {
+                parseProgramme(parser, callback);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes read from the stream so far. This can be called from any
+     * thread to report the progress of {@link #parse}.
+     */
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * Returns the number of program elements skipped for a missing or invalid start time.
+     */
+    public int getInvalidProgramCount() {
+        return mInvalidProgramCount;
+    }
+
+    private void parseChannel(XmlPullParser parser, Callback callback)
+            throws IOException, XmlPullParserException {
+        String channelId = parser.getAttributeValue(null, ATTR_ID);
+        String displayName = null;
+        String displayNumber = null;
+        int depth = parser.getDepth();
+        while (nextChild(parser, depth)) {
+            if (TAG_DISPLAY_NAME.equals(parser.getName())) {
+                // Channels usually list their number among their display names.
+                String text = parser.nextText().trim();
+                if (displayNumber == null && isDisplayNumber(text)) {
+                    displayNumber = text;
+                } else if (displayName == null && !text.isEmpty()) {
+                    displayName = text;
+                }
+            } else {
+                skip(parser);
+            }
+        }
+        if (channelId != null) {
+            callback.onChannel(channelId, displayName, displayNumber);
+        }
+    }
+
+    private void parseProgramme(XmlPullParser parser, Callback callback)
+            throws IOException, XmlPullParserException {
+        String channelId = parser.getAttributeValue(null, ATTR_CHANNEL);
+        Long startTime = parseTime(parser.getAttributeValue(null, ATTR_START));
+        Long endTime = parseTime(parser.getAttributeValue(null, ATTR_STOP));
+        ContentValues program = new ContentValues();
+        mCategories.clear();
+        int depth = parser.getDepth();
+        while (nextChild(parser, depth)) {
+            String name = parser.getName();
+            // Elements may be repeated in several languages. The first one is kept.
+            if (TAG_TITLE.equals(name)) {
+                putFirst(program, Programs.COLUMN_TITLE, parser.nextText());
+            } else if (TAG_SUB_TITLE.equals(name)) {
+                putFirst(program, Programs.COLUMN_EPISODE_TITLE, parser.nextText());
+            } else if (TAG_DESC.equals(name)) {
+                putFirst(program, Programs.COLUMN_SHORT_DESCRIPTION, parser.nextText());
+            } else if (TAG_CATEGORY.equals(name)) {
+                String category = parser.nextText().trim();
+                if (!category.isEmpty() && !mCategories.contains(category)) {
+                    mCategories.add(category);
+                }
+            } else if (TAG_EPISODE_NUM.equals(name)) {
+                String system = parser.getAttributeValue(null, ATTR_SYSTEM);
+                String episodeNum = parser.nextText();
+                if (EPISODE_NUM_SYSTEM_XMLTV_NS.equals(system)) {
+                    putEpisodeNumbers(program, episodeNum);
+                }
+            } else if (TAG_ICON.equals(name)) {
+                String src = parser.getAttributeValue(null, ATTR_SRC);
+                if (!TextUtils.isEmpty(src)) {
+                    program.put(Programs.COLUMN_POSTER_ART_URI, src);
+                }
+                skip(parser);
+            } else {
+                skip(parser);
+            }
+        }
+        if (channelId == null || startTime == null) {
+            mInvalidProgramCount++;
+            return;
+        }
+        program.put(Programs.COLUMN_START_TIME_UTC_MILLIS, startTime);
+        if (endTime != null) {
+            program.put(Programs.COLUMN_END_TIME_UTC_MILLIS, endTime);
+        }
+        if (!mCategories.isEmpty()) {
+            program.put(Programs.COLUMN_BROADCAST_GENRE,
+                    Genres.encode(mCategories.toArray(new String[mCategories.size()])));
+        }
+        callback.onProgram(channelId, program);
+    }
+
+    // Moves to the next child element of the element at the given depth, skipping text. Returns
+    // false at the end of that element.
+    private static boolean nextChild(XmlPullParser parser, int depth)
+            throws IOException, XmlPullParserException {
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.START_TAG) {
+                return true;
+            }
+            if (event == XmlPullParser.END_TAG && parser.getDepth() == depth) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Skips the current element and its children.
+    private static void skip(XmlPullParser parser) throws IOException, XmlPullParserException {
+        int depth = 1;
+        while (depth > 0) {
+            switch (parser.next()) {
+                case XmlPullParser.START_TAG:
+                    depth++;
+                    break;
+                case XmlPullParser.END_TAG:
+                    depth--;
+                    break;
+                case XmlPullParser.END_DOCUMENT:
+                    return;
+            }
+        }
+    }
+
+    private static void putFirst(ContentValues values, String column, String text) {
+        text = text.trim();
+        if (!values.containsKey(column) && !text.isEmpty()) {
+            values.put(column, text);
+        }
+    }
+
+    // Puts the season and episode numbers of an "xmltv_ns" episode number, which is
+    // "season.episode.part" with zero-based numbers, each optionally followed by "/total".
+    private static void putEpisodeNumbers(ContentValues program, String episodeNum) {
+        String[] parts = episodeNum.split("\\.", -1);
+        Integer season = parseEpisodeNumberPart(parts[0]);
+        if (season != null) {
+            program.put(Programs.COLUMN_SEASON_NUMBER, season + 1);
+        }
+        if (parts.length > 1) {
+            Integer episode = parseEpisodeNumberPart(parts[1]);
+            if (episode != null) {
+                program.put(Programs.COLUMN_EPISODE_NUMBER, episode + 1);
+            }
+        }
+    }
+
+    private static Integer parseEpisodeNumberPart(String part) {
+        int slash = part.indexOf('/');
+        String number = (slash >= 0 ? part.substring(0, slash) : part).trim();
+        if (number.isEmpty() || !TextUtils.isDigitsOnly(number)) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean isDisplayNumber(String text) {
+        if (text.isEmpty() || !Character.isDigit(text.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!Character.isDigit(c) && c != '-' && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Parses an XMLTV time, "YYYYMMDDhhmmss +hhmm", in which the seconds and the offset from UTC
+    // are optional. Returns null if the time is missing or invalid.
+    private Long parseTime(String value) {
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        int space = value.indexOf(' ');
+        String digits = space >= 0 ? value.substring(0, space) : value;
+        if ((digits.length() != 12 && digits.length() != 14) || !TextUtils.isDigitsOnly(digits)) {
+            return null;
+        }
+        mCalendar.clear();
+        mCalendar.set(Integer.parseInt(digits.substring(0, 4)),
+                Integer.parseInt(digits.substring(4, 6)) - 1,
+                Integer.parseInt(digits.substring(6, 8)),
+                Integer.parseInt(digits.substring(8, 10)),
+                Integer.parseInt(digits.substring(10, 12)),
+                digits.length() == 14 ? Integer.parseInt(digits.substring(12, 14)) : 0);
+        long time = mCalendar.getTimeInMillis();
+        if (space >= 0) {
+            String offset = value.substring(space + 1).trim();
+            if (offset.length() != 5 || (offset.charAt(0) != '+' && offset.charAt(0) != '-')
+                    || !TextUtils.isDigitsOnly(offset.substring(1))) {
+                return null;
+            }
+            int minutes = Integer.parseInt(offset.substring(1, 3)) * 60
+                    + Integer.parseInt(offset.substring(3, 5));
+            time -= (offset.charAt(0) == '-' ? -minutes : minutes) * 60 * 1000L;
+        }
+        return time;
+    }
+}
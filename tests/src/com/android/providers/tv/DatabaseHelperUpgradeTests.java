@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.tv;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Upgrades databases created with older schema versions and checks that the data survive and
+ * that the result matches the schema of a freshly created database.
+ */
+public class DatabaseHelperUpgradeTests extends AndroidTestCase {
+    private static final String TAG = "DatabaseHelperUpgradeTests";
+
+    private static final int PROGRAM_COUNT = 10000;
+
+    // The schema of version 23, frozen here on purpose. Do not update it along with TvProvider.
+    private static final String[] SCHEMA_VERSION_23 = {
+        "CREATE TABLE channels (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + "package_name TEXT NOT NULL,input_id TEXT NOT NULL,"
+                + "type TEXT NOT NULL DEFAULT 'TYPE_OTHER',"
+                + "service_type TEXT NOT NULL DEFAULT 'SERVICE_TYPE_AUDIO_VIDEO',"
+                + "original_network_id INTEGER NOT NULL DEFAULT 0,"
+                + "transport_stream_id INTEGER NOT NULL DEFAULT 0,"
+                + "service_id INTEGER NOT NULL DEFAULT 0,display_number TEXT,display_name TEXT,"
+                + "network_affiliation TEXT,description TEXT,video_format TEXT,"
+                + "browsable INTEGER NOT NULL DEFAULT 0,searchable INTEGER NOT NULL DEFAULT 1,"
+                + "locked INTEGER NOT NULL DEFAULT 0,internal_provider_data BLOB,logo BLOB,"
+                + "version_number INTEGER,UNIQUE(_id,package_name));",
+        "CREATE TABLE programs (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + "package_name TEXT NOT NULL,channel_id INTEGER,title TEXT,"
+                + "season_number INTEGER,episode_number INTEGER,episode_title TEXT,"
+                + "start_time_utc_millis INTEGER,end_time_utc_millis INTEGER,"
+                + "broadcast_genre TEXT,canonical_genre TEXT,short_description TEXT,"
+                + "long_description TEXT,video_width INTEGER,video_height INTEGER,"
+                + "audio_language TEXT,content_rating TEXT,poster_art_uri TEXT,"
+                + "thumbnail_uri TEXT,internal_provider_data BLOB,version_number INTEGER,"
+                + "FOREIGN KEY(channel_id,package_name) REFERENCES channels(_id,package_name)"
+                + " ON UPDATE CASCADE ON DELETE CASCADE);",
+        "CREATE INDEX programs_package_name_index ON programs(package_name);",
+        "CREATE INDEX programs_channel_id_index ON programs(channel_id);",
+        "CREATE INDEX programs_start_time_index ON programs(start_time_utc_millis);",
+        "CREATE INDEX programs_end_time_index ON programs(end_time_utc_millis);",
+        "CREATE TABLE watched_programs (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + "package_name TEXT NOT NULL,"
+                + "watch_start_time_utc_millis INTEGER NOT NULL DEFAULT 0,"
+                + "watch_end_time_utc_millis INTEGER NOT NULL DEFAULT 0,channel_id INTEGER,"
+                + "title TEXT,start_time_utc_millis INTEGER,end_time_utc_millis INTEGER,"
+                + "description TEXT,tune_params TEXT,session_token TEXT NOT NULL,"
+                + "consolidated INTEGER NOT NULL DEFAULT 0,"
+                + "FOREIGN KEY(channel_id,package_name) REFERENCES channels(_id,package_name)"
+                + " ON UPDATE CASCADE ON DELETE CASCADE);",
+        "CREATE INDEX watched_programs_channel_id_index ON watched_programs(channel_id);",
+    };
+
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new MockTvProviderContext(new MockContentResolver(), getContext());
+        mContext.deleteDatabase(TvProvider.DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(TvProvider.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    private SQLiteDatabase createDatabaseVersion23() {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(TvProvider.DATABASE_NAME, 0, null);
+        db.beginTransaction();
+        try {
+            for (String sql : SCHEMA_VERSION_23) {
+                db.execSQL(sql);
+            }
+            db.execSQL("INSERT INTO channels (_id,package_name,input_id,display_number,logo)"
+                    + " VALUES (1,'com.example','input','1-1',X'89504E47')");
+            for (int i = 0; i < PROGRAM_COUNT; i++) {
+                db.execSQL("INSERT INTO programs (package_name,channel_id,title,"
+                        + "start_time_utc_millis,end_time_utc_millis,canonical_genre)"
+                        + " VALUES ('com.example',1,'Program " + i + "'," + (i * 1000) + ","
+                        + ((i + 1) * 1000) + ",'MOVIES')");
+            }
+            db.execSQL("INSERT INTO watched_programs (package_name,watch_start_time_utc_millis,"
+                    + "watch_end_time_utc_millis,channel_id,session_token,consolidated)"
+                    + " VALUES ('com.example',1000,2000,1,'token',1)");
+            db.setVersion(23);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return db;
+    }
+
+    // Returns the columns of every table and the indexed columns of every index, keyed by name.
+    private static Map<String, String> dumpSchema(SQLiteDatabase db) {
+        Map<String, String> schema = new TreeMap<String, String>();
+        try (Cursor cursor = db.rawQuery("SELECT type, name FROM sqlite_master"
+                + " WHERE name NOT LIKE 'sqlite_%' AND name NOT LIKE 'android_%'", null)) {
+            while (cursor.moveToNext()) {
+                String type = cursor.getString(0);
+                String name = cursor.getString(1);
+                String pragma;
+                if ("table".equals(type)) {
+                    pragma = "PRAGMA table_info(" + name + ")";
+                } else if ("index".equals(type)) {
+                    pragma = "PRAGMA index_info(" + name + ")";
+                } else {
+                    schema.put(name, type);
+                    continue;
+                }
+                List<String> columns = new ArrayList<String>();
+                try (Cursor info = db.rawQuery(pragma, null)) {
+                    int nameIndex = info.getColumnIndexOrThrow("name");
+                    while (info.moveToNext()) {
+                        columns.add(info.getString(nameIndex));
+                    }
+                }
+                if ("table".equals(type)) {
+                    // ALTER TABLE appends columns, so the order may differ from onCreate().
+                    Collections.sort(columns);
+                }
+                schema.put(name, type + " " + columns);
+            }
+        }
+        return schema;
+    }
+
+    public void testUpgradeStepsMatchFreshSchema() {
+        TvProvider.DatabaseHelper helper = new TvProvider.DatabaseHelper(mContext);
+        SQLiteDatabase db = createDatabaseVersion23();
+        try {
+            for (int version = TvProvider.MIN_UPGRADABLE_DATABASE_VERSION;
+                    version < TvProvider.DATABASE_VERSION; version++) {
+                long startTime = SystemClock.elapsedRealtime();
+                db.beginTransaction();
+                try {
+                    helper.upgradeFrom(db, version);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                Log.i(TAG, "Upgrade step from version " + version + " with " + PROGRAM_COUNT
+                        + " programs took " + (SystemClock.elapsedRealtime() - startTime) + "ms");
+            }
+
+            SQLiteDatabase freshDb = SQLiteDatabase.create(null);
+            try {
+                helper.onCreate(freshDb);
+                assertEquals(dumpSchema(freshDb), dumpSchema(db));
+            } finally {
+                freshDb.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testUpgradeKeepsData() {
+        createDatabaseVersion23().close();
+
+        TvProvider.DatabaseHelper helper = new TvProvider.DatabaseHelper(mContext);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            assertEquals(TvProvider.DATABASE_VERSION, db.getVersion());
+            assertEquals(1, DatabaseUtils.queryNumEntries(db, "channels"));
+            assertEquals(PROGRAM_COUNT, DatabaseUtils.queryNumEntries(db, "programs"));
+            assertEquals(1, DatabaseUtils.queryNumEntries(db, "watched_programs"));
+            assertEquals("Logo should be moved to a file shared by hash.", 1,
+                    DatabaseUtils.queryNumEntries(db, "channel_logos"));
+        } finally {
+            helper.close();
+        }
+    }
+
+    public void testUpgradeFromUnsupportedVersionDropsData() {
+        SQLiteDatabase db = createDatabaseVersion23();
+        db.setVersion(TvProvider.MIN_UPGRADABLE_DATABASE_VERSION - 1);
+        db.close();
+
+        TvProvider.DatabaseHelper helper = new TvProvider.DatabaseHelper(mContext);
+        try {
+            db = helper.getWritableDatabase();
+            assertEquals(TvProvider.DATABASE_VERSION, db.getVersion());
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, "channels"));
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, "programs"));
+        } finally {
+            helper.close();
+        }
+    }
+}
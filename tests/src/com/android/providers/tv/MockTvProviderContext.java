@@ -30,6 +30,7 @@ import android.test.mock.MockPackageManager;
 
 class MockTvProviderContext extends IsolatedContext {
     private final Context mBase;
+    private int mPermissionCheckCount;
     private final MockPackageManager mMockPackageManager = new MockPackageManager() {
         @Override
         public ServiceInfo getServiceInfo(ComponentName className, int flags) {
@@ -64,6 +65,11 @@ class MockTvProviderContext extends IsolatedContext {
 
     @Override
     public int checkCallingOrSelfPermission(String permission) {
+        mPermissionCheckCount++;
         return PackageManager.PERMISSION_GRANTED;
     }
+
+    int getPermissionCheckCount() {
+        return mPermissionCheckCount;
+    }
 }
@@ -17,6 +17,10 @@
 package com.android.providers.tv;
 
 class TvProviderForTesting extends TvProvider {
+    // The batch yield limits to use instead of the ones of the resources, if 0 or more.
+    int mBatchYieldOperations = -1;
+    long mBatchYieldIntervalNanos = -1;
+
     @Override
     void scheduleEpgDataCleanup() {}
 
@@ -24,4 +28,16 @@ class TvProviderForTesting extends TvProvider {
     String getCallingPackage_() {
         return getContext().getPackageName();
     }
+
+    @Override
+    int getBatchYieldOperations() {
+        return mBatchYieldOperations >= 0 ? mBatchYieldOperations
+                : super.getBatchYieldOperations();
+    }
+
+    @Override
+    long getBatchYieldIntervalNanos() {
+        return mBatchYieldIntervalNanos >= 0 ? mBatchYieldIntervalNanos
+                : super.getBatchYieldIntervalNanos();
+    }
 }
@@ -0,0 +1,588 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.tv;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.media.tv.TvContract;
+import android.media.tv.TvContract.Channels;
+import android.media.tv.TvContract.Programs;
+import android.media.tv.TvContract.Programs.Genres;
+import android.media.tv.TvContract.WatchedPrograms;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.providers.tv.util.EpgRecordFormat;
+import com.android.providers.tv.util.EpgRecordWriter;
+import com.android.providers.tv.util.GenreMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks for the hot paths of {@link TvProvider}. The numbers are logged under
+ * {@link #TAG} so that they can be compared across builds.
+ */
+@LargeTest
+public class TvProviderPerformanceTests extends AndroidTestCase {
+    private static final String TAG = "TvProviderPerformanceTests";
+    private static final String FAKE_INPUT_ID = "TvProviderPerformanceTests";
+
+    private static final int CHANNEL_COUNT = 100;
+    private static final long PROGRAM_DURATION_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final long GRID_WINDOW_MILLIS = TimeUnit.HOURS.toMillis(3);
+    private static final int QUERY_ITERATIONS = 200;
+
+    private MockContentResolver mResolver;
+    private TvProviderForTesting mProvider;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mResolver = new MockContentResolver();
+        mProvider = new TvProviderForTesting();
+        mResolver.addProvider(TvContract.AUTHORITY, mProvider);
+
+        setContext(new MockTvProviderContext(mResolver, getContext()));
+        mProvider.attachInfoForTesting(getContext(), null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProvider.shutdown();
+        super.tearDown();
+    }
+
+    private long[] insertChannels(int count) {
+        long[] channelIds = new long[count];
+        ContentValues values = new ContentValues();
+        values.put(Channels.COLUMN_INPUT_ID, FAKE_INPUT_ID);
+        for (int i = 0; i < count; i++) {
+            values.put(Channels.COLUMN_DISPLAY_NUMBER, String.valueOf(i));
+            Uri uri = mResolver.insert(Channels.CONTENT_URI, values);
+            assertNotNull(uri);
+            channelIds[i] = ContentUris.parseId(uri);
+        }
+        return channelIds;
+    }
+
+    // Appends {@code programsPerChannel} back-to-back programs to each channel, starting from
+    // {@code startTime}, and returns the end time of the last program.
+    private long insertPrograms(long[] channelIds, long startTime, int programsPerChannel) {
+        ContentValues[] values = new ContentValues[channelIds.length * programsPerChannel];
+        int index = 0;
+        for (long channelId : channelIds) {
+            long time = startTime;
+            for (int i = 0; i < programsPerChannel; i++) {
+                ContentValues program = new ContentValues();
+                program.put(Programs.COLUMN_CHANNEL_ID, channelId);
+                program.put(Programs.COLUMN_TITLE, "Program " + i);
+                program.put(Programs.COLUMN_START_TIME_UTC_MILLIS, time);
+                program.put(Programs.COLUMN_END_TIME_UTC_MILLIS, time + PROGRAM_DURATION_MILLIS);
+                values[index++] = program;
+                time += PROGRAM_DURATION_MILLIS;
+            }
+        }
+        assertEquals(values.length, mResolver.bulkInsert(Programs.CONTENT_URI, values));
+        return startTime + programsPerChannel * PROGRAM_DURATION_MILLIS;
+    }
+
+    // Returns the programs of a 14 day guide for the given channels.
+    private static ContentValues[] buildGuide(long[] channelIds) {
+        int programsPerChannel = (int) (TimeUnit.DAYS.toMillis(14) / PROGRAM_DURATION_MILLIS);
+        ContentValues[] values = new ContentValues[channelIds.length * programsPerChannel];
+        int index = 0;
+        for (long channelId : channelIds) {
+            for (int i = 0; i < programsPerChannel; i++) {
+                ContentValues program = new ContentValues();
+                program.put(Programs.COLUMN_CHANNEL_ID, channelId);
+                program.put(Programs.COLUMN_TITLE, "Program " + i);
+                program.put(Programs.COLUMN_SHORT_DESCRIPTION, "Episode " + i + " of the show");
+                program.put(Programs.COLUMN_BROADCAST_GENRE, i % 2 == 0 ? "News" : "comedy");
+                program.put(Programs.COLUMN_START_TIME_UTC_MILLIS, i * PROGRAM_DURATION_MILLIS);
+                program.put(Programs.COLUMN_END_TIME_UTC_MILLIS,
+                        (i + 1) * PROGRAM_DURATION_MILLIS);
+                values[index++] = program;
+            }
+        }
+        return values;
+    }
+
+    private int queryProgramCount() {
+        Cursor cursor = mResolver.query(Programs.CONTENT_URI, new String[] { Programs._ID },
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testBulkInsertThroughput() throws Exception {
+        long[] channelIds = insertChannels(20);
+        ContentValues[] guide = buildGuide(channelIds);
+
+        // The same rows inserted one by one through insert() in a single transaction, as
+        // bulkInsert() used to do.
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (ContentValues program : buildGuide(channelIds)) {
+            operations.add(ContentProviderOperation.newInsert(Programs.CONTENT_URI)
+                    .withValues(program).build());
+        }
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        mResolver.applyBatch(TvContract.AUTHORITY, operations);
+        long batchNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        assertEquals(guide.length, queryProgramCount());
+        mResolver.delete(Programs.CONTENT_URI, null, null);
+
+        startNanos = SystemClock.elapsedRealtimeNanos();
+        assertEquals(guide.length, mResolver.bulkInsert(Programs.CONTENT_URI, guide));
+        long bulkNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        assertEquals(guide.length, queryProgramCount());
+
+        Log.i(TAG, "14 day guide of " + guide.length + " programs: insert()="
+                + (guide.length * TimeUnit.SECONDS.toNanos(1) / batchNanos) + " rows/s, bulk="
+                + (guide.length * TimeUnit.SECONDS.toNanos(1) / bulkNanos) + " rows/s");
+    }
+
+    public void testRecordStreamThroughput() throws Exception {
+        // About 100k programs.
+        long[] channelIds = insertChannels(150);
+        final ContentValues[] guide = buildGuide(channelIds);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (ContentValues program : buildGuide(channelIds)) {
+            operations.add(ContentProviderOperation.newInsert(Programs.CONTENT_URI)
+                    .withValues(program).build());
+        }
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        mResolver.applyBatch(TvContract.AUTHORITY, operations);
+        long batchNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        assertEquals(guide.length, queryProgramCount());
+        mResolver.delete(Programs.CONTENT_URI, null, null);
+
+        // The rows are encoded while they are inserted, as an input would stream them.
+        final String[] columns = new String[] { Programs.COLUMN_CHANNEL_ID, Programs.COLUMN_TITLE,
+                Programs.COLUMN_SHORT_DESCRIPTION, Programs.COLUMN_BROADCAST_GENRE,
+                Programs.COLUMN_START_TIME_UTC_MILLIS, Programs.COLUMN_END_TIME_UTC_MILLIS };
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        Thread writerThread = new Thread() {
+            @Override
+            public void run() {
+                try (EpgRecordWriter writer = new EpgRecordWriter(
+                        new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]))) {
+                    writer.startTable(EpgRecordFormat.TABLE_PROGRAMS, columns);
+                    Object[] values = new Object[columns.length];
+                    for (ContentValues program : guide) {
+                        for (int i = 0; i < columns.length; i++) {
+                            values[i] = program.get(columns[i]);
+                        }
+                        writer.writeRow(values);
+                    }
+                    writer.finish();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        Bundle extras = new Bundle();
+        extras.putParcelable(TvProvider.EXTRA_FILE_DESCRIPTOR, pipe[0]);
+        startNanos = SystemClock.elapsedRealtimeNanos();
+        writerThread.start();
+        Bundle result = mResolver.call(Programs.CONTENT_URI, TvProvider.METHOD_INSERT_RECORDS,
+                null, extras);
+        writerThread.join();
+        long streamNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        assertEquals(guide.length, result.getInt(TvProvider.EXTRA_PROGRAM_COUNT));
+        assertEquals(guide.length, queryProgramCount());
+
+        // In process, so applyBatch() doesn't pay for marshalling the operations here.
+        Log.i(TAG, guide.length + " programs: applyBatch()="
+                + (guide.length * TimeUnit.SECONDS.toNanos(1) / batchNanos)
+                + " rows/s, record stream="
+                + (guide.length * TimeUnit.SECONDS.toNanos(1) / streamNanos) + " rows/s");
+    }
+
+    // Returns the average latency in microseconds of a grid page query, i.e. the programs of a
+    // single channel in a time window, over the guide that ends at {@code guideEndTime}.
+    private long measureGridWindowQuery(long[] channelIds, long guideEndTime) {
+        long windowStartTime = guideEndTime / 2;
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < QUERY_ITERATIONS; i++) {
+            long channelId = channelIds[i % channelIds.length];
+            Uri uri = TvContract.buildProgramsUriForChannel(channelId, windowStartTime,
+                    windowStartTime + GRID_WINDOW_MILLIS);
+            Cursor cursor = mResolver.query(uri, null, null, null, null);
+            assertNotNull(cursor);
+            try {
+                assertTrue(cursor.getCount() > 0);
+            } finally {
+                cursor.close();
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMicros(SystemClock.elapsedRealtimeNanos() - startNanos)
+                / QUERY_ITERATIONS;
+    }
+
+    public void testGridWindowQueryLatencyIsFlat() {
+        long[] channelIds = insertChannels(CHANNEL_COUNT);
+
+        // Grows the guide to 50, 200 and 800 programs per channel, i.e. 5k, 20k and 80k rows.
+        long guideEndTime = insertPrograms(channelIds, 0, 50);
+        long smallLatency = measureGridWindowQuery(channelIds, guideEndTime);
+        guideEndTime = insertPrograms(channelIds, guideEndTime, 150);
+        long mediumLatency = measureGridWindowQuery(channelIds, guideEndTime);
+        guideEndTime = insertPrograms(channelIds, guideEndTime, 600);
+        long largeLatency = measureGridWindowQuery(channelIds, guideEndTime);
+
+        Log.i(TAG, "Grid window query latency (us): 5k rows=" + smallLatency
+                + ", 20k rows=" + mediumLatency + ", 80k rows=" + largeLatency);
+        // With the index range scan, a 16x larger table shouldn't make the query much slower.
+        assertTrue("Grid window query latency grows with the number of programs",
+                largeLatency < Math.max(smallLatency, 1) * 4);
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testGridWindowQueryAllocations() {
+        long[] channelIds = insertChannels(CHANNEL_COUNT);
+        long guideEndTime = insertPrograms(channelIds, 0, 50);
+        // Warms up the query SQL cache.
+        measureGridWindowQuery(channelIds, guideEndTime);
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long latency = measureGridWindowQuery(channelIds, guideEndTime);
+        Debug.stopAllocCounting();
+        int allocCount = Debug.getThreadAllocCount();
+        long allocSize = Debug.getThreadAllocSize();
+
+        Log.i(TAG, "Grid window query: latency=" + latency + "us, allocations per query="
+                + (allocCount / QUERY_ITERATIONS) + " (" + (allocSize / QUERY_ITERATIONS)
+                + " bytes)");
+    }
+
+    // Returns encoded broadcast genres the way guides repeat them: a few DVB and ISDB genres for
+    // most programs, some programs with two genres, in any case, and some genres with no mapping.
+    private static String[] buildBroadcastGenreSamples(String[] dvbMapping,
+            String[] isdbMapping, int count) {
+        Random random = new Random(0);
+        String[] samples = new String[count];
+        for (int i = 0; i < count; i++) {
+            String[] mapping = random.nextInt(3) == 0 ? isdbMapping : dvbMapping;
+            String genre = pickSkewed(random, mapping);
+            int kind = random.nextInt(10);
+            if (kind < 2) {
+                samples[i] = Genres.encode(genre, pickSkewed(random, mapping));
+            } else if (kind < 3) {
+                samples[i] = genre.toUpperCase();
+            } else if (kind < 4) {
+                samples[i] = "unknown genre " + random.nextInt(20);
+            } else {
+                samples[i] = genre;
+            }
+        }
+        return samples;
+    }
+
+    // Picks the broadcast genre of one of the mappings, with the first ones much more likely.
+    private static String pickSkewed(Random random, String[] mapping) {
+        double r = random.nextDouble();
+        return mapping[(int) (mapping.length * r * r * r)].split("\\|")[0];
+    }
+
+    public void testGenreMapping() {
+        Resources res = getContext().getResources();
+        String[][] mappings = new String[][] {
+                res.getStringArray(R.array.genre_mapping_atsc),
+                res.getStringArray(R.array.genre_mapping_dvb),
+                res.getStringArray(R.array.genre_mapping_isdb),
+                res.getStringArray(R.array.genre_mapping_isdb_br) };
+        String[] samples = buildBroadcastGenreSamples(mappings[1], mappings[2], 10000);
+
+        // The mapping as it used to be done, for comparison.
+        Map<String, String> genreMap = new HashMap<String, String>();
+        for (String[] mapping : mappings) {
+            for (String entry : mapping) {
+                String[] pair = entry.split("\\|");
+                genreMap.put(pair[0].toUpperCase(), pair[1]);
+            }
+        }
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        List<Set<String>> expected = new ArrayList<Set<String>>();
+        for (String sample : samples) {
+            Set<String> genreSet = new HashSet<String>();
+            for (String genre : Genres.decode(sample)) {
+                String canonicalGenre = genreMap.get(genre.toUpperCase());
+                if (Genres.isCanonical(canonicalGenre)) {
+                    genreSet.add(canonicalGenre);
+                }
+            }
+            expected.add(genreSet);
+        }
+        long hashMapNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+
+        GenreMapper mapper = new GenreMapper(mappings);
+        startNanos = SystemClock.elapsedRealtimeNanos();
+        String[] actual = new String[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            actual[i] = mapper.map(samples[i]);
+        }
+        long mapperNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+
+        for (int i = 0; i < samples.length; i++) {
+            Set<String> genreSet = new HashSet<String>();
+            if (actual[i] != null) {
+                genreSet.addAll(Arrays.asList(Genres.decode(actual[i])));
+            }
+            assertEquals("Genres of " + samples[i], expected.get(i), genreSet);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (String sample : samples) {
+            mapper.getCanonicalGenre(sample);
+        }
+        Debug.stopAllocCounting();
+        int allocCount = Debug.getThreadAllocCount();
+
+        Log.i(TAG, "Genre mapping of " + samples.length + " programs: hash map="
+                + TimeUnit.NANOSECONDS.toMicros(hashMapNanos) + "us, mapper="
+                + TimeUnit.NANOSECONDS.toMicros(mapperNanos) + "us, allocations per lookup="
+                + ((float) allocCount / samples.length));
+    }
+
+    // Appends {@code count} log entries of the given consolidation state to the watch history,
+    // each in its own session. Writes to the database directly, since the provider only takes
+    // the watch start and end times from clients and consolidates the entries later.
+    private void insertWatchHistory(long channelId, int count, boolean consolidated) {
+        String packageName;
+        try (Cursor cursor = mResolver.query(TvContract.buildChannelUri(channelId),
+                new String[] { Channels.COLUMN_PACKAGE_NAME }, null, null, null)) {
+            assertTrue(cursor.moveToFirst());
+            packageName = cursor.getString(0);
+        }
+        TvProvider.DatabaseHelper helper = new TvProvider.DatabaseHelper(getContext());
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                ContentValues values = new ContentValues();
+                values.put(WatchedPrograms.COLUMN_PACKAGE_NAME, packageName);
+                values.put(WatchedPrograms.COLUMN_CHANNEL_ID, channelId);
+                values.put("consolidated", consolidated ? 1 : 0);
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < count; i++) {
+                    long watchStartTime = now - TimeUnit.MINUTES.toMillis(i);
+                    values.put(WatchedPrograms.COLUMN_WATCH_START_TIME_UTC_MILLIS, watchStartTime);
+                    if (consolidated) {
+                        values.put(WatchedPrograms.COLUMN_WATCH_END_TIME_UTC_MILLIS,
+                                watchStartTime + TimeUnit.MINUTES.toMillis(1));
+                    }
+                    values.put(WatchedPrograms.COLUMN_INTERNAL_SESSION_TOKEN,
+                            (consolidated ? "done-" : "active-") + watchStartTime + "-" + i);
+                    assertTrue(db.insert("watched_programs", null, values) > 0);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            helper.close();
+        }
+    }
+
+    // Returns the average latency in microseconds of a consolidation pass over the unconsolidated
+    // watch history entries.
+    private long measureConsolidation() {
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < QUERY_ITERATIONS; i++) {
+            mProvider.tryConsolidateAllWatchedPrograms();
+        }
+        return TimeUnit.NANOSECONDS.toMicros(SystemClock.elapsedRealtimeNanos() - startNanos)
+                / QUERY_ITERATIONS;
+    }
+
+    public void testConsolidationLatencyIsFlat() {
+        long channelId = insertChannels(1)[0];
+        // A few ongoing sessions, which stay unconsolidated since there are no programs to split
+        // them by.
+        insertWatchHistory(channelId, 5, false);
+
+        insertWatchHistory(channelId, 1000, true);
+        long smallLatency = measureConsolidation();
+        // Grows the history to the default maximum entry count.
+        int maxEntryCount = getContext().getResources().getInteger(
+                R.integer.max_watched_program_entry_count);
+        insertWatchHistory(channelId, maxEntryCount - 1000, true);
+        long largeLatency = measureConsolidation();
+
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        try (Cursor cursor = mResolver.query(WatchedPrograms.CONTENT_URI, null, null, null,
+                null)) {
+            assertEquals(maxEntryCount, cursor.getCount());
+        }
+        long historyQueryLatency = TimeUnit.NANOSECONDS.toMicros(
+                SystemClock.elapsedRealtimeNanos() - startNanos);
+
+        Log.i(TAG, "Consolidation latency (us): 1k entries=" + smallLatency + ", "
+                + maxEntryCount + " entries=" + largeLatency + "; full history query="
+                + historyQueryLatency);
+        // The consolidation only reads the unconsolidated entries through the partial index.
+        assertTrue("Consolidation latency grows with the size of the watch history",
+                largeLatency < Math.max(smallLatency, 1) * 4);
+    }
+
+    public void testQueryLatencyDuringBatchWrite() throws Exception {
+        final long[] channelIds = insertChannels(CHANNEL_COUNT);
+        final long guideEndTime = insertPrograms(channelIds, 0, 50);
+        long idleLatency = measureGridWindowQuery(channelIds, guideEndTime);
+
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        for (long channelId : channelIds) {
+            long time = guideEndTime;
+            for (int i = 0; i < 200; i++) {
+                operations.add(ContentProviderOperation.newInsert(Programs.CONTENT_URI)
+                        .withValue(Programs.COLUMN_CHANNEL_ID, channelId)
+                        .withValue(Programs.COLUMN_TITLE, "Program " + i)
+                        .withValue(Programs.COLUMN_START_TIME_UTC_MILLIS, time)
+                        .withValue(Programs.COLUMN_END_TIME_UTC_MILLIS,
+                                time + PROGRAM_DURATION_MILLIS)
+                        .build());
+                time += PROGRAM_DURATION_MILLIS;
+            }
+        }
+        final CountDownLatch writeStarted = new CountDownLatch(1);
+        final AtomicLong writeDurationMicros = new AtomicLong();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                writeStarted.countDown();
+                long startNanos = SystemClock.elapsedRealtimeNanos();
+                try {
+                    mResolver.applyBatch(TvContract.AUTHORITY, operations);
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to write programs", e);
+                }
+                writeDurationMicros.set(TimeUnit.NANOSECONDS.toMicros(
+                        SystemClock.elapsedRealtimeNanos() - startNanos));
+            }
+        };
+        writer.start();
+        writeStarted.await();
+
+        // Queries the guide like the UI does while the batch is being written.
+        int queryCount = 0;
+        long maxLatency = 0;
+        long totalLatency = 0;
+        while (writer.isAlive()) {
+            long latency = measureGridWindowQuery(channelIds, guideEndTime);
+            maxLatency = Math.max(maxLatency, latency);
+            totalLatency += latency;
+            queryCount++;
+        }
+        writer.join();
+
+        Log.i(TAG, "Grid window query latency (us) while writing " + operations.size()
+                + " programs in " + writeDurationMicros.get() + "us: idle=" + idleLatency
+                + ", average=" + (totalLatency / Math.max(queryCount, 1)) + ", max="
+                + maxLatency + " over " + queryCount + " rounds");
+        // Without write-ahead logging, every query waits for the whole batch to be written.
+        assertTrue("Queries are blocked by the batch write", queryCount > 1);
+    }
+
+    public void testWriteLatencyDuringBatchWrite_withoutYields() throws Exception {
+        mProvider.mBatchYieldOperations = 0;
+        mProvider.mBatchYieldIntervalNanos = 0;
+        measureWriteLatencyDuringBatchWrite("without yields");
+        // The batch is committed as a whole, so the updates wait for all of it.
+        assertEquals(0, mProvider.getBatchYieldCount());
+    }
+
+    public void testWriteLatencyDuringBatchWrite_withYields() throws Exception {
+        mProvider.mBatchYieldOperations = 100;
+        mProvider.mBatchYieldIntervalNanos = 0;
+        measureWriteLatencyDuringBatchWrite("with yields every 100 rows");
+        assertTrue("The batch transaction wasn't yielded to the waiting updates",
+                mProvider.getBatchYieldCount() > 0);
+    }
+
+    private void measureWriteLatencyDuringBatchWrite(String mode) throws Exception {
+        final long[] channelIds = insertChannels(CHANNEL_COUNT);
+        final ContentValues[] guide = buildGuide(channelIds);
+        final CountDownLatch writeStarted = new CountDownLatch(1);
+        final AtomicLong writeDurationMicros = new AtomicLong();
+        Thread batchWriter = new Thread() {
+            @Override
+            public void run() {
+                writeStarted.countDown();
+                long startNanos = SystemClock.elapsedRealtimeNanos();
+                mResolver.bulkInsert(Programs.CONTENT_URI, guide);
+                writeDurationMicros.set(TimeUnit.NANOSECONDS.toMicros(
+                        SystemClock.elapsedRealtimeNanos() - startNanos));
+            }
+        };
+        batchWriter.start();
+        writeStarted.await();
+
+        // Updates a channel like an input does while another input syncs its guide.
+        ContentValues values = new ContentValues();
+        Uri channelUri = TvContract.buildChannelUri(channelIds[0]);
+        int updateCount = 0;
+        long maxLatency = 0;
+        long totalLatency = 0;
+        while (batchWriter.isAlive()) {
+            values.put(Channels.COLUMN_DISPLAY_NAME, "Channel " + updateCount);
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            assertEquals(1, mResolver.update(channelUri, values, null, null));
+            long latency = TimeUnit.NANOSECONDS.toMicros(
+                    SystemClock.elapsedRealtimeNanos() - startNanos);
+            maxLatency = Math.max(maxLatency, latency);
+            totalLatency += latency;
+            updateCount++;
+        }
+        batchWriter.join();
+
+        Log.i(TAG, "Channel update latency (us) while writing " + guide.length + " programs "
+                + mode + " in " + writeDurationMicros.get() + "us: average="
+                + (totalLatency / Math.max(updateCount, 1)) + ", max=" + maxLatency + " over "
+                + updateCount + " updates, " + mProvider.getBatchYieldCount() + " yields");
+    }
+}
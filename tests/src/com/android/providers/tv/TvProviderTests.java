@@ -0,0 +1,958 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.tv;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.tv.TvContract;
+import android.media.tv.TvContract.Channels;
+import android.media.tv.TvContract.Programs;
+import android.media.tv.TvContract.Programs.Genres;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import android.text.TextUtils;
+import com.android.providers.tv.util.EpgRecordFormat;
+import com.android.providers.tv.util.EpgRecordWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+public class TvProviderTests extends AndroidTestCase {
+    private static final String FAKE_INPUT_ID = "TvProviderTests";
+
+    private MockContentResolver mResolver;
+    private TvProvider mProvider;
+    private MockTvProviderContext mProviderContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mResolver = new MockContentResolver();
+        mProvider = new TvProviderForTesting();
+        mResolver.addProvider(TvContract.AUTHORITY, mProvider);
+
+        mProviderContext = new MockTvProviderContext(mResolver, getContext());
+        setContext(mProviderContext);
+        mProvider.attachInfoForTesting(getContext(), null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProvider.shutdown();
+        super.tearDown();
+    }
+
+    private long insertChannel() {
+        return insertChannel(FAKE_INPUT_ID, true);
+    }
+
+    private long insertChannel(String inputId, boolean browsable) {
+        ContentValues values = new ContentValues();
+        values.put(Channels.COLUMN_INPUT_ID, inputId);
+        values.put(Channels.COLUMN_BROWSABLE, browsable ? 1 : 0);
+        Uri uri = mResolver.insert(Channels.CONTENT_URI, values);
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+
+    private long insertProgram(long channelId, String title, String description,
+            long startTime, long endTime) {
+        ContentValues values = new ContentValues();
+        values.put(Programs.COLUMN_CHANNEL_ID, channelId);
+        values.put(Programs.COLUMN_TITLE, title);
+        values.put(Programs.COLUMN_SHORT_DESCRIPTION, description);
+        values.put(Programs.COLUMN_START_TIME_UTC_MILLIS, startTime);
+        values.put(Programs.COLUMN_END_TIME_UTC_MILLIS, endTime);
+        Uri uri = mResolver.insert(Programs.CONTENT_URI, values);
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+
+    private long insertProgramWithGenre(long channelId, String broadcastGenre,
+            String canonicalGenre, long startTime, long endTime) {
+        ContentValues values = new ContentValues();
+        values.put(Programs.COLUMN_CHANNEL_ID, channelId);
+        values.put(Programs.COLUMN_BROADCAST_GENRE, broadcastGenre);
+        values.put(Programs.COLUMN_CANONICAL_GENRE, canonicalGenre);
+        values.put(Programs.COLUMN_START_TIME_UTC_MILLIS, startTime);
+        values.put(Programs.COLUMN_END_TIME_UTC_MILLIS, endTime);
+        Uri uri = mResolver.insert(Programs.CONTENT_URI, values);
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+
+    private List<Long> queryIds(Uri uri) {
+        Cursor cursor = mResolver.query(uri, new String[] { Programs._ID }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            List<Long> ids = new ArrayList<Long>();
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Uri buildProgramSearchUri(String query) {
+        return Programs.CONTENT_URI.buildUpon().appendPath("search").appendPath(query).build();
+    }
+
+    private static Uri buildNowNextProgramsUri(long time) {
+        return Programs.CONTENT_URI.buildUpon().appendPath("now_next")
+                .appendQueryParameter(TvContract.PARAM_START_TIME, String.valueOf(time)).build();
+    }
+
+    private static Uri buildChannelsUriForGenre(String genre) {
+        return Channels.CONTENT_URI.buildUpon()
+                .appendQueryParameter(TvContract.PARAM_CANONICAL_GENRE, genre).build();
+    }
+
+    public void testQueryChannelsByGenre() {
+        long now = System.currentTimeMillis();
+        long comedyChannel = insertChannel();
+        long sportsChannel = insertChannel();
+        long newsChannel = insertChannel();
+        // Broadcast genres are mapped to canonical genres, case insensitively.
+        insertProgramWithGenre(comedyChannel, "comedy", null, now - 1000, now + 1000);
+        insertProgramWithGenre(comedyChannel, null, Genres.encode(Genres.COMEDY, Genres.DRAMA),
+                now - 2000, now + 2000);
+        insertProgramWithGenre(sportsChannel, null, Genres.SPORTS, now - 1000, now + 1000);
+        // Not on the air now.
+        insertProgramWithGenre(newsChannel, null, Genres.NEWS, now + 1000, now + 2000);
+
+        assertEquals(Arrays.asList(comedyChannel),
+                queryIds(buildChannelsUriForGenre(Genres.COMEDY)));
+        assertTrue("Only the program that started last should be on the air.",
+                queryIds(buildChannelsUriForGenre(Genres.DRAMA)).isEmpty());
+        assertEquals(Arrays.asList(sportsChannel),
+                queryIds(buildChannelsUriForGenre(Genres.SPORTS)));
+        assertTrue(queryIds(buildChannelsUriForGenre(Genres.NEWS)).isEmpty());
+
+        ContentValues values = new ContentValues();
+        values.put(Programs.COLUMN_CANONICAL_GENRE, Genres.NEWS);
+        mResolver.update(TvContract.buildProgramsUriForChannel(sportsChannel), values, null,
+                null);
+        assertTrue("Updated genre should be reflected.",
+                queryIds(buildChannelsUriForGenre(Genres.SPORTS)).isEmpty());
+        assertEquals(Arrays.asList(sportsChannel),
+                queryIds(buildChannelsUriForGenre(Genres.NEWS)));
+    }
+
+    public void testQueryChannelsByGenreSeeksEachChannel() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            new TvProvider.DatabaseHelper(getContext()).onCreate(db);
+            String now = String.valueOf(System.currentTimeMillis());
+            Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN SELECT " + Channels._ID
+                    + " FROM channels WHERE " + TvProvider.CHANNELS_GENRE_WHERE,
+                    new String[] { "1", now, now });
+            boolean usesIndex = false;
+            try {
+                int detailIndex = cursor.getColumnIndexOrThrow("detail");
+                while (cursor.moveToNext()) {
+                    String detail = cursor.getString(detailIndex);
+                    assertFalse("Programs should not be scanned: " + detail,
+                            detail.matches("SCAN (TABLE )?programs\\b.*"));
+                    usesIndex |= detail.contains("programs_channel_id_time_index");
+                }
+            } finally {
+                cursor.close();
+            }
+            assertTrue("Programs should be searched by channel ID and start time.", usesIndex);
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testQueryNowNextPrograms() {
+        long channelId = insertChannel();
+        long past = insertProgram(channelId, "Past", null, 1000, 2000);
+        long now = insertProgram(channelId, "Now", null, 2000, 3000);
+        long next = insertProgram(channelId, "Next", null, 3000, 4000);
+        insertProgram(channelId, "Later", null, 4000, 5000);
+        // Nothing on the air, but there is a next program.
+        long gapChannelId = insertChannel();
+        long over = insertProgram(gapChannelId, "Over", null, 1000, 2000);
+        long gapNext = insertProgram(gapChannelId, "After the gap", null, 6000, 7000);
+        long otherInputChannelId = insertChannel(FAKE_INPUT_ID + "2", true);
+        long otherInputNow = insertProgram(otherInputChannelId, "Other input", null, 2000, 3000);
+        long hiddenChannelId = insertChannel(FAKE_INPUT_ID, false);
+        long hiddenNow = insertProgram(hiddenChannelId, "Hidden", null, 2000, 3000);
+
+        assertEquals(Arrays.asList(now, next, gapNext, otherInputNow, hiddenNow),
+                queryIds(buildNowNextProgramsUri(2500)));
+        assertEquals("Program starting at the time should be on the air.",
+                Arrays.asList(now, next, gapNext, otherInputNow, hiddenNow),
+                queryIds(buildNowNextProgramsUri(2000)));
+        assertEquals(Arrays.asList(past, now, over, gapNext),
+                queryIds(buildNowNextProgramsUri(1500).buildUpon()
+                        .appendQueryParameter(TvContract.PARAM_INPUT, FAKE_INPUT_ID)
+                        .appendQueryParameter(TvContract.PARAM_BROWSABLE_ONLY, "true").build()));
+    }
+
+    public void testNowNextProgramsAreReadOnly() {
+        long channelId = insertChannel();
+        insertProgram(channelId, "Now", null, 2000, 3000);
+        Uri uri = buildNowNextProgramsUri(2500);
+        ContentValues values = new ContentValues();
+        values.put(Programs.COLUMN_CHANNEL_ID, channelId);
+        values.put(Programs.COLUMN_TITLE, "Changed");
+        try {
+            mResolver.insert(uri, values);
+            fail("Insert into the now and next programs should be rejected.");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            mResolver.update(uri, values, null, null);
+            fail("Update of the now and next programs should be rejected.");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            mResolver.delete(uri, null, null);
+            fail("Delete of the now and next programs should be rejected.");
+        } catch (UnsupportedOperationException expected) {
+        }
+        assertEquals(1, queryIds(TvContract.buildProgramsUriForChannel(channelId)).size());
+    }
+
+    // Reads all rows of {@code uri} in pages of {@code pageSize}, keyed by {@code keyColumn}.
+    private List<Long> queryIdsInPages(Uri uri, String keyColumn, int pageSize) {
+        List<Long> ids = new ArrayList<Long>();
+        String afterKey = null;
+        String afterId = null;
+        while (true) {
+            Uri.Builder builder = uri.buildUpon()
+                    .appendQueryParameter("limit", String.valueOf(pageSize));
+            if (afterId != null) {
+                builder.appendQueryParameter("after_id", afterId);
+                if (afterKey != null) {
+                    builder.appendQueryParameter("after_key", afterKey);
+                }
+            }
+            Cursor cursor = mResolver.query(builder.build(),
+                    new String[] { Programs._ID, keyColumn }, null, null, null);
+            assertNotNull(cursor);
+            try {
+                assertTrue(cursor.getCount() <= pageSize);
+                if (cursor.getCount() == 0) {
+                    return ids;
+                }
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                    afterId = cursor.getString(0);
+                    afterKey = cursor.getString(1);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    public void testQueryProgramsInPages() {
+        long channelId = insertChannel();
+        long program1 = insertProgram(channelId, "1", null, 3000, 4000);
+        long program2 = insertProgram(channelId, "2", null, 1000, 2000);
+        long program3 = insertProgram(channelId, "3", null, 2000, 3000);
+        long program4 = insertProgram(channelId, "4", null, 2000, 3000);
+        long program5 = insertProgram(channelId, "5", null, 2000, 3000);
+        long program6 = insertProgram(channelId, "6", null, 4000, 5000);
+
+        assertEquals("Programs should be ordered by start time and then by ID.",
+                Arrays.asList(program2, program3, program4, program5, program1, program6),
+                queryIdsInPages(Programs.CONTENT_URI, Programs.COLUMN_START_TIME_UTC_MILLIS, 2));
+    }
+
+    public void testQueryChannelsInPages() {
+        List<Long> expected = new ArrayList<Long>();
+        // Channels without display numbers go first.
+        long noNumber1 = insertChannel();
+        long noNumber2 = insertChannel();
+        expected.add(noNumber1);
+        expected.add(noNumber2);
+        for (String displayNumber : new String[] { "1-1", "1-2", "1-2", "2-1" }) {
+            long channelId = insertChannel();
+            ContentValues values = new ContentValues();
+            values.put(Channels.COLUMN_DISPLAY_NUMBER, displayNumber);
+            assertEquals(1, mResolver.update(TvContract.buildChannelUri(channelId), values, null,
+                    null));
+            expected.add(channelId);
+        }
+
+        assertEquals(expected, queryIdsInPages(Channels.CONTENT_URI,
+                Channels.COLUMN_DISPLAY_NUMBER, 3));
+        assertEquals(expected, queryIdsInPages(Channels.CONTENT_URI,
+                Channels.COLUMN_DISPLAY_NUMBER, 1));
+    }
+
+    private List<String> queryDisplayNumbers(Uri uri) {
+        Cursor cursor = mResolver.query(uri, new String[] { Channels.COLUMN_DISPLAY_NUMBER },
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            List<String> displayNumbers = new ArrayList<String>();
+            while (cursor.moveToNext()) {
+                displayNumbers.add(cursor.getString(0));
+            }
+            return displayNumbers;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testQueryChannelList_reflectsChanges() {
+        Uri browsableUri = Channels.CONTENT_URI.buildUpon()
+                .appendQueryParameter(TvContract.PARAM_INPUT, FAKE_INPUT_ID)
+                .appendQueryParameter(TvContract.PARAM_BROWSABLE_ONLY, "true").build();
+        long channelId = insertChannel();
+        ContentValues values = new ContentValues();
+        values.put(Channels.COLUMN_DISPLAY_NUMBER, "1-1");
+        assertEquals(1, mResolver.update(TvContract.buildChannelUri(channelId), values, null,
+                null));
+        assertEquals(Arrays.asList("1-1"), queryDisplayNumbers(Channels.CONTENT_URI));
+        assertEquals(Arrays.asList("1-1"), queryDisplayNumbers(browsableUri));
+
+        values.put(Channels.COLUMN_DISPLAY_NUMBER, "2-1");
+        assertEquals(1, mResolver.update(TvContract.buildChannelUri(channelId), values, null,
+                null));
+        assertEquals(Arrays.asList("2-1"), queryDisplayNumbers(Channels.CONTENT_URI));
+
+        insertChannel(FAKE_INPUT_ID, false);
+        assertEquals(2, queryDisplayNumbers(Channels.CONTENT_URI).size());
+        assertEquals(Arrays.asList("2-1"), queryDisplayNumbers(browsableUri));
+
+        assertEquals(1, mResolver.delete(TvContract.buildChannelUri(channelId), null, null));
+        assertEquals(1, queryDisplayNumbers(Channels.CONTENT_URI).size());
+        assertTrue(queryDisplayNumbers(browsableUri).isEmpty());
+    }
+
+    public void testBulkInsert_checksPermissionsOnce() {
+        long channelId = insertChannel();
+        ContentValues[] values = new ContentValues[100];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(Programs.COLUMN_CHANNEL_ID, channelId);
+            values[i].put(Programs.COLUMN_START_TIME_UTC_MILLIS, i * 1000);
+            values[i].put(Programs.COLUMN_END_TIME_UTC_MILLIS, (i + 1) * 1000);
+        }
+
+        int permissionCheckCount = mProviderContext.getPermissionCheckCount();
+        assertEquals(values.length, mResolver.bulkInsert(Programs.CONTENT_URI, values));
+        // The permissions of the caller are checked at most once, for all the rows.
+        assertTrue(mProviderContext.getPermissionCheckCount() - permissionCheckCount <= 3);
+    }
+
+    private static ContentValues buildProgram(String title, long startTime, long endTime) {
+        ContentValues values = new ContentValues();
+        values.put(Programs.COLUMN_TITLE, title);
+        values.put(Programs.COLUMN_START_TIME_UTC_MILLIS, startTime);
+        values.put(Programs.COLUMN_END_TIME_UTC_MILLIS, endTime);
+        return values;
+    }
+
+    private Bundle replacePrograms(long channelId, long startTime, long endTime,
+            ContentValues... programs) {
+        Bundle extras = new Bundle();
+        extras.putLong(TvProvider.EXTRA_CHANNEL_ID, channelId);
+        extras.putLong(TvProvider.EXTRA_START_TIME, startTime);
+        extras.putLong(TvProvider.EXTRA_END_TIME, endTime);
+        extras.putParcelableArrayList(TvProvider.EXTRA_PROGRAMS,
+                new ArrayList<ContentValues>(Arrays.asList(programs)));
+        Bundle result = mResolver.call(Programs.CONTENT_URI,
+                TvProvider.METHOD_REPLACE_PROGRAMS, null, extras);
+        assertNotNull(result);
+        return result;
+    }
+
+    private static void assertChangeCounts(Bundle result, int inserted, int updated,
+            int deleted) {
+        assertEquals(inserted, result.getInt(TvProvider.EXTRA_INSERTED_COUNT));
+        assertEquals(updated, result.getInt(TvProvider.EXTRA_UPDATED_COUNT));
+        assertEquals(deleted, result.getInt(TvProvider.EXTRA_DELETED_COUNT));
+    }
+
+    public void testReplacePrograms() {
+        long channelId = insertChannel();
+        long programA = insertProgram(channelId, "A", null, 0, 1000);
+        insertProgram(channelId, "B", null, 1000, 2000);
+        insertProgram(channelId, "C", null, 2000, 3000);
+        long programD = insertProgram(channelId, "D", null, 5000, 6000);
+
+        ContentValues[] programs = new ContentValues[] {
+                buildProgram("A", 0, 1000),
+                buildProgram("B2", 1000, 2000),
+                buildProgram("E", 2500, 3000) };
+        assertChangeCounts(replacePrograms(channelId, 0, 3000, programs), 1, 1, 1);
+
+        List<Long> ids = queryIds(TvContract.buildProgramsUriForChannel(channelId));
+        assertEquals(4, ids.size());
+        assertTrue("Unchanged programs should be kept.", ids.contains(programA));
+        assertTrue("Programs out of the window should be kept.", ids.contains(programD));
+
+        // Replacing with the same programs changes nothing.
+        programs = new ContentValues[] {
+                buildProgram("E", 2500, 3000),
+                buildProgram("A", 0, 1000),
+                buildProgram("B2", 1000, 2000) };
+        assertChangeCounts(replacePrograms(channelId, 0, 3000, programs), 0, 0, 0);
+        assertEquals(ids, queryIds(TvContract.buildProgramsUriForChannel(channelId)));
+
+        try {
+            replacePrograms(channelId, 0, 3000, buildProgram("F", 3000, 4000));
+            fail("Programs starting out of the window should be rejected.");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testReplaceProgramsBeyondCursorWindow() {
+        long channelId = insertChannel();
+        // Enough existing programs not to fit in a single cursor window.
+        char[] chars = new char[10 * 1024];
+        Arrays.fill(chars, 'x');
+        String description = new String(chars);
+        int count = 300;
+        List<ContentValues> programs = new ArrayList<ContentValues>();
+        for (int i = 0; i < count; i++) {
+            insertProgram(channelId, "Existing", description, i * 2000, i * 2000 + 1000);
+            ContentValues program = buildProgram("Existing", i * 2000, i * 2000 + 1000);
+            program.put(Programs.COLUMN_SHORT_DESCRIPTION, description);
+            programs.add(program);
+            programs.add(buildProgram("New", i * 2000 + 1000, i * 2000 + 2000));
+        }
+
+        assertChangeCounts(replacePrograms(channelId, 0, count * 2000,
+                programs.toArray(new ContentValues[programs.size()])), count, 0, 0);
+        assertEquals(count * 2, queryIds(TvContract.buildProgramsUriForChannel(channelId)).size());
+    }
+
+    public void testReplaceProgramsClearsGenre() {
+        long now = System.currentTimeMillis();
+        long channelId = insertChannel();
+        insertProgramWithGenre(channelId, null, Genres.SPORTS, now - 1000, now + 1000);
+        assertEquals(Arrays.asList(channelId), queryIds(buildChannelsUriForGenre(Genres.SPORTS)));
+
+        assertChangeCounts(replacePrograms(channelId, now - 1000, now,
+                buildProgram("No genre", now - 1000, now + 1000)), 0, 1, 0);
+        assertTrue("A cleared genre should no longer match.",
+                queryIds(buildChannelsUriForGenre(Genres.SPORTS)).isEmpty());
+    }
+
+    private Bundle getChanges(long sinceSequence) {
+        Bundle extras = new Bundle();
+        extras.putLong(TvProvider.EXTRA_SINCE_SEQUENCE, sinceSequence);
+        Bundle result = mResolver.call(Channels.CONTENT_URI, TvProvider.METHOD_GET_CHANGES, null,
+                extras);
+        assertNotNull(result);
+        return result;
+    }
+
+    public void testGetChanges() {
+        long sequence = getChanges(0).getLong(TvProvider.EXTRA_SEQUENCE);
+        long channelId = insertChannel();
+        long programId = insertProgram(channelId, "A", null, 0, 1000);
+        ContentValues values = new ContentValues();
+        values.put(Programs.COLUMN_TITLE, "B");
+        assertEquals(1, mResolver.update(TvContract.buildProgramUri(programId), values, null,
+                null));
+
+        Bundle changes = getChanges(sequence);
+        assertFalse(changes.getBoolean(TvProvider.EXTRA_RESET));
+        assertTrue(Arrays.equals(new int[] {
+                TvProvider.CHANGE_TYPE_CHANNEL, TvProvider.CHANGE_TYPE_PROGRAM },
+                changes.getIntArray(TvProvider.EXTRA_CHANGE_TYPES)));
+        assertTrue(Arrays.equals(new long[] { channelId, programId },
+                changes.getLongArray(TvProvider.EXTRA_CHANGE_ROW_IDS)));
+        assertTrue(Arrays.equals(new boolean[] { false, false },
+                changes.getBooleanArray(TvProvider.EXTRA_CHANGE_DELETED)));
+        sequence = changes.getLong(TvProvider.EXTRA_SEQUENCE);
+
+        // Deleting the channel deletes its programs too.
+        assertEquals(1, mResolver.delete(TvContract.buildChannelUri(channelId), null, null));
+        changes = getChanges(sequence);
+        assertEquals(2, changes.getLongArray(TvProvider.EXTRA_CHANGE_ROW_IDS).length);
+        assertTrue(Arrays.equals(new boolean[] { true, true },
+                changes.getBooleanArray(TvProvider.EXTRA_CHANGE_DELETED)));
+        assertEquals(0, getChanges(changes.getLong(TvProvider.EXTRA_SEQUENCE))
+                .getLongArray(TvProvider.EXTRA_CHANGE_ROW_IDS).length);
+
+        Bundle extras = new Bundle();
+        extras.putInt(TvProvider.EXTRA_MAX_ENTRY_COUNT, 1);
+        mResolver.call(Channels.CONTENT_URI, TvProvider.METHOD_TRUNCATE_CHANGES, null, extras);
+        assertTrue("Clients behind the truncated entries should start over.",
+                getChanges(sequence).getBoolean(TvProvider.EXTRA_RESET));
+    }
+
+    private interface StreamWriter {
+        void writeTo(OutputStream os) throws IOException;
+    }
+
+    // Calls a method that reads a stream from a pipe, written by another thread.
+    private Bundle callWithPipe(String method, Bundle extras, final StreamWriter streamWriter)
+            throws Exception {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try (OutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1])) {
+                    streamWriter.writeTo(os);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+        extras.putParcelable(TvProvider.EXTRA_FILE_DESCRIPTOR, pipe[0]);
+        Bundle result = mResolver.call(Programs.CONTENT_URI, method, null, extras);
+        writer.join();
+        return result;
+    }
+
+    private Bundle importXmltv(final String xmltv) throws Exception {
+        Bundle extras = new Bundle();
+        extras.putString(TvProvider.EXTRA_INPUT_ID, FAKE_INPUT_ID);
+        return callWithPipe(TvProvider.METHOD_IMPORT_XMLTV, extras, new StreamWriter() {
+            @Override
+            public void writeTo(OutputStream os) throws IOException {
+                os.write(xmltv.getBytes(StandardCharsets.UTF_8));
+            }
+        });
+    }
+
+    public void testImportXmltv() throws Exception {
+        String xmltv = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<tv>"
+                + "<channel id=\"one.example.com\">"
+                + "<display-name>Channel One</display-name><display-name>1</display-name>"
+                + "</channel>"
+                + "<programme start=\"20140101120000 +0100\" stop=\"20140101123000 +0100\""
+                + " channel=\"one.example.com\">"
+                + "<title lang=\"en\">News</title><title lang=\"fr\">Journal</title>"
+                + "<category>News</category>"
+                + "<episode-num system=\"xmltv_ns\">1.4.0/1</episode-num>"
+                + "<credits><actor>Someone</actor></credits>"
+                + "</programme>"
+                + "<programme start=\"20140101113000 +0000\" channel=\"one.example.com\">"
+                + "<title>Weather</title>"
+                + "</programme>"
+                + "<programme start=\"20140101120000 +0000\" channel=\"unknown\">"
+                + "<title>Skipped</title>"
+                + "</programme>"
+                + "</tv>";
+        Bundle result = importXmltv(xmltv);
+        assertEquals(1, result.getInt(TvProvider.EXTRA_CHANNEL_COUNT));
+        assertEquals(2, result.getInt(TvProvider.EXTRA_PROGRAM_COUNT));
+        assertEquals(1, result.getInt(TvProvider.EXTRA_SKIPPED_COUNT));
+        assertEquals(xmltv.length(), result.getLong(TvProvider.EXTRA_BYTE_COUNT));
+
+        Uri channelsUri = Channels.CONTENT_URI.buildUpon()
+                .appendQueryParameter(TvContract.PARAM_INPUT, FAKE_INPUT_ID).build();
+        List<Long> channelIds = queryIds(channelsUri);
+        assertEquals(1, channelIds.size());
+        long channelId = channelIds.get(0);
+        try (Cursor cursor = mResolver.query(TvContract.buildChannelUri(channelId),
+                new String[] { Channels.COLUMN_DISPLAY_NAME, Channels.COLUMN_DISPLAY_NUMBER },
+                null, null, null)) {
+            assertTrue(cursor.moveToNext());
+            assertEquals("Channel One", cursor.getString(0));
+            assertEquals("1", cursor.getString(1));
+        }
+        try (Cursor cursor = mResolver.query(TvContract.buildProgramsUriForChannel(channelId),
+                new String[] { Programs.COLUMN_TITLE, Programs.COLUMN_START_TIME_UTC_MILLIS,
+                        Programs.COLUMN_END_TIME_UTC_MILLIS, Programs.COLUMN_CANONICAL_GENRE,
+                        Programs.COLUMN_SEASON_NUMBER, Programs.COLUMN_EPISODE_NUMBER },
+                Programs.COLUMN_TITLE + "=?", new String[] { "News" }, null)) {
+            assertTrue(cursor.moveToNext());
+            // 2014-01-01 11:00 UTC.
+            assertEquals(1388574000000L, cursor.getLong(1));
+            assertEquals(1388574000000L + 30 * 60 * 1000, cursor.getLong(2));
+            assertEquals(Genres.NEWS, cursor.getString(3));
+            assertEquals(2, cursor.getInt(4));
+            assertEquals(5, cursor.getInt(5));
+        }
+
+        // Importing the guide again updates the channel and replaces its programs.
+        importXmltv(xmltv);
+        assertEquals(1, queryIds(channelsUri).size());
+        assertEquals(2, queryIds(TvContract.buildProgramsUriForChannel(channelId)).size());
+
+        // A guide without a display number keeps the one already set.
+        importXmltv("<tv><channel id=\"one.example.com\">"
+                + "<display-name>Channel 1</display-name></channel></tv>");
+        try (Cursor cursor = mResolver.query(TvContract.buildChannelUri(channelId),
+                new String[] { Channels.COLUMN_DISPLAY_NAME, Channels.COLUMN_DISPLAY_NUMBER },
+                null, null, null)) {
+            assertTrue(cursor.moveToNext());
+            assertEquals("Channel 1", cursor.getString(0));
+            assertEquals("1", cursor.getString(1));
+        }
+    }
+
+    public void testImportXmltvInChunks() throws Exception {
+        // More programs than fit in a single chunk, in order and then in reverse order.
+        int count = 600;
+        String[] programmes = new String[count];
+        for (int i = 0; i < count; i++) {
+            String start = String.format(Locale.US, "201401%02d%02d%02d00 +0000",
+                    i / 1440 + 1, i / 60 % 24, i % 60);
+            programmes[i] = "<programme start=\"" + start + "\" channel=\"one.example.com\">"
+                    + "<title>Program " + i + "</title></programme>";
+        }
+        String channel = "<channel id=\"one.example.com\">"
+                + "<display-name>Channel One</display-name></channel>";
+        Bundle result = importXmltv("<tv>" + channel + TextUtils.join("", programmes) + "</tv>");
+        assertEquals(count, result.getInt(TvProvider.EXTRA_PROGRAM_COUNT));
+        Uri channelsUri = Channels.CONTENT_URI.buildUpon()
+                .appendQueryParameter(TvContract.PARAM_INPUT, FAKE_INPUT_ID).build();
+        long channelId = queryIds(channelsUri).get(0);
+        assertEquals(count, queryIds(TvContract.buildProgramsUriForChannel(channelId)).size());
+
+        List<String> reversed = Arrays.asList(programmes);
+        Collections.reverse(reversed);
+        importXmltv("<tv>" + channel + TextUtils.join("", reversed) + "</tv>");
+        assertEquals(1, queryIds(channelsUri).size());
+        assertEquals(count, queryIds(TvContract.buildProgramsUriForChannel(channelId)).size());
+    }
+
+    public void testImportXmltvReplacesProgramsInRange() throws Exception {
+        // A channel of the input with its own internal provider data isn't matched by XMLTV ID.
+        ContentValues values = new ContentValues();
+        values.put(Channels.COLUMN_INPUT_ID, FAKE_INPUT_ID);
+        values.put(Channels.COLUMN_INTERNAL_PROVIDER_DATA,
+                "one.example.com".getBytes(StandardCharsets.UTF_8));
+        long ownChannelId = ContentUris.parseId(mResolver.insert(Channels.CONTENT_URI, values));
+        String channel = "<channel id=\"one.example.com\">"
+                + "<display-name>Channel One</display-name></channel>";
+        String news = "<programme start=\"20140101110000 +0000\" stop=\"20140101113000 +0000\""
+                + " channel=\"one.example.com\"><title>News</title></programme>";
+        String weather = "<programme start=\"20140101113000 +0000\" stop=\"20140101120000 +0000\""
+                + " channel=\"one.example.com\"><title>Weather</title></programme>";
+        importXmltv("<tv>" + channel + news + weather + "</tv>");
+
+        Uri channelsUri = Channels.CONTENT_URI.buildUpon()
+                .appendQueryParameter(TvContract.PARAM_INPUT, FAKE_INPUT_ID).build();
+        List<Long> channelIds = queryIds(channelsUri);
+        assertEquals(2, channelIds.size());
+        channelIds.remove(Long.valueOf(ownChannelId));
+        long channelId = channelIds.get(0);
+        try (Cursor cursor = mResolver.query(TvContract.buildChannelUri(ownChannelId),
+                new String[] { Channels.COLUMN_INTERNAL_PROVIDER_DATA }, null, null, null)) {
+            assertTrue(cursor.moveToNext());
+            assertEquals("one.example.com", new String(cursor.getBlob(0), StandardCharsets.UTF_8));
+        }
+
+        // The programs out of order replace all the previous ones in their range.
+        importXmltv("<tv>" + channel + weather + news + "</tv>");
+        assertEquals(2, queryIds(TvContract.buildProgramsUriForChannel(channelId)).size());
+        assertEquals(2, queryIds(channelsUri).size());
+
+        // A guide which can't be read is rejected, without writing its incomplete last chunk.
+        try {
+            importXmltv("<tv>" + channel.replace("one", "two") + "<programme");
+            fail("A truncated guide should be rejected.");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(2, queryIds(channelsUri).size());
+        assertEquals(2, queryIds(TvContract.buildProgramsUriForChannel(channelId)).size());
+    }
+
+    public void testInsertRecords() throws Exception {
+        final long existingChannelId = insertChannel();
+        Bundle result = callWithPipe(TvProvider.METHOD_INSERT_RECORDS, new Bundle(),
+                new StreamWriter() {
+                    @Override
+                    public void writeTo(OutputStream os) throws IOException {
+                        EpgRecordWriter writer = new EpgRecordWriter(os);
+                        writer.startTable(EpgRecordFormat.TABLE_CHANNELS,
+                                Channels.COLUMN_INPUT_ID, Channels.COLUMN_DISPLAY_NUMBER);
+                        writer.writeRow(FAKE_INPUT_ID, "2");
+                        writer.writeRow(FAKE_INPUT_ID, "3");
+                        writer.startTable(EpgRecordFormat.TABLE_PROGRAMS,
+                                Programs.COLUMN_CHANNEL_ID, Programs.COLUMN_TITLE,
+                                Programs.COLUMN_BROADCAST_GENRE,
+                                Programs.COLUMN_START_TIME_UTC_MILLIS,
+                                Programs.COLUMN_END_TIME_UTC_MILLIS);
+                        writer.writeRow(existingChannelId, "A", "News", 0, 1000);
+                        writer.writeRow(new EpgRecordWriter.ChannelReference(1), "B", "News",
+                                1000, 2000);
+                        writer.finish();
+                    }
+                });
+        assertEquals(2, result.getInt(TvProvider.EXTRA_CHANNEL_COUNT));
+        assertEquals(2, result.getInt(TvProvider.EXTRA_PROGRAM_COUNT));
+        long[] channelIds = result.getLongArray(TvProvider.EXTRA_CHANNEL_IDS);
+        assertEquals(2, channelIds.length);
+
+        try (Cursor cursor = mResolver.query(TvContract.buildProgramsUriForChannel(channelIds[1]),
+                new String[] { Programs.COLUMN_TITLE, Programs.COLUMN_CANONICAL_GENRE },
+                null, null, null)) {
+            assertTrue(cursor.moveToNext());
+            assertEquals("B", cursor.getString(0));
+            assertEquals(Genres.NEWS, cursor.getString(1));
+            assertFalse(cursor.moveToNext());
+        }
+        assertEquals(1, queryIds(TvContract.buildProgramsUriForChannel(existingChannelId)).size());
+    }
+
+    public void testInsertRecords_rejectsTruncatedStream() throws Exception {
+        try {
+            callWithPipe(TvProvider.METHOD_INSERT_RECORDS, new Bundle(), new StreamWriter() {
+                @Override
+                public void writeTo(OutputStream os) throws IOException {
+                    EpgRecordWriter writer = new EpgRecordWriter(os);
+                    writer.startTable(EpgRecordFormat.TABLE_CHANNELS, Channels.COLUMN_INPUT_ID);
+                    writer.writeRow(FAKE_INPUT_ID);
+                    // Closed without finish().
+                    writer.close();
+                }
+            });
+            fail("A truncated stream should be rejected.");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    // Exports a snapshot through a pipe, read by another thread.
+    private byte[] exportSnapshot() throws Exception {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        final ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try (InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pipe[0])) {
+                    byte[] buffer = new byte[8192];
+                    int count;
+                    while ((count = is.read(buffer)) >= 0) {
+                        snapshot.write(buffer, 0, count);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        reader.start();
+        Bundle extras = new Bundle();
+        extras.putParcelable(TvProvider.EXTRA_FILE_DESCRIPTOR, pipe[1]);
+        mResolver.call(Programs.CONTENT_URI, TvProvider.METHOD_EXPORT_SNAPSHOT, null, extras);
+        reader.join();
+        return snapshot.toByteArray();
+    }
+
+    public void testExportAndRestoreSnapshot() throws Exception {
+        long channelId = insertChannel();
+        long programId = insertProgram(channelId, "Football night", null, 1000, 2000);
+        long sequence = getChanges(0).getLong(TvProvider.EXTRA_SEQUENCE);
+        final byte[] snapshot = exportSnapshot();
+
+        assertEquals(1, mResolver.delete(TvContract.buildChannelUri(channelId), null, null));
+        long newChannelId = insertChannel();
+        Bundle result = callWithPipe(TvProvider.METHOD_RESTORE_SNAPSHOT, new Bundle(),
+                new StreamWriter() {
+                    @Override
+                    public void writeTo(OutputStream os) throws IOException {
+                        os.write(snapshot);
+                    }
+                });
+        assertEquals(1, result.getInt(TvProvider.EXTRA_CHANNEL_COUNT));
+        assertEquals(1, result.getInt(TvProvider.EXTRA_PROGRAM_COUNT));
+
+        assertEquals(Arrays.asList(channelId), queryIds(Channels.CONTENT_URI));
+        assertEquals(Arrays.asList(programId),
+                queryIds(TvContract.buildProgramsUriForChannel(channelId)));
+        assertEquals("The search index should be rebuilt.",
+                Arrays.asList(programId), queryIds(buildProgramSearchUri("football")));
+        assertTrue("Clients of the change log should start over.",
+                getChanges(sequence).getBoolean(TvProvider.EXTRA_RESET));
+        assertFalse(queryIds(Channels.CONTENT_URI).contains(newChannelId));
+    }
+
+    public void testRestoreSnapshot_rejectsTruncatedStream() throws Exception {
+        final long channelId = insertChannel();
+        try {
+            callWithPipe(TvProvider.METHOD_RESTORE_SNAPSHOT, new Bundle(), new StreamWriter() {
+                @Override
+                public void writeTo(OutputStream os) throws IOException {
+                    EpgRecordWriter writer = new EpgRecordWriter(os);
+                    writer.startTable(EpgRecordFormat.TABLE_CHANNELS, Channels._ID,
+                            Channels.COLUMN_PACKAGE_NAME, Channels.COLUMN_INPUT_ID);
+                    writer.writeRow(channelId + 1, getContext().getPackageName(),
+                            FAKE_INPUT_ID);
+                    // Closed without finish().
+                    writer.close();
+                }
+            });
+            fail("A truncated stream should be rejected.");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals("Nothing should be restored from a truncated stream.",
+                Arrays.asList(channelId), queryIds(Channels.CONTENT_URI));
+    }
+
+    private Bitmap waitForLogo(Uri logoUri) throws Exception {
+        // The logo is written asynchronously.
+        for (int i = 0; i < 50; i++) {
+            try (InputStream is = mResolver.openInputStream(logoUri)) {
+                return BitmapFactory.decodeStream(is);
+            } catch (FileNotFoundException e) {
+                Thread.sleep(100);
+            }
+        }
+        fail("Logo was not written: " + logoUri);
+        return null;
+    }
+
+    public void testChannelLogo() throws Exception {
+        long channelId = insertChannel();
+        Uri logoUri = TvContract.buildChannelLogoUri(channelId);
+
+        Bitmap bitmap = Bitmap.createBitmap(1024, 512, Bitmap.Config.ARGB_8888);
+        try (OutputStream os = mResolver.openOutputStream(logoUri)) {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
+        }
+        Bitmap logo = waitForLogo(logoUri);
+        assertNotNull(logo);
+        assertEquals("Logo should be scaled down.", 256, logo.getWidth());
+        assertEquals(128, logo.getHeight());
+
+        assertEquals(1, mResolver.delete(logoUri, null, null));
+        try {
+            mResolver.openInputStream(logoUri).close();
+            fail("Deleted logo should not be readable.");
+        } catch (FileNotFoundException expected) {
+        }
+    }
+
+    public void testChannelLogo_largeImageIsSubsampled() throws Exception {
+        long channelId = insertChannel();
+        Uri logoUri = TvContract.buildChannelLogoUri(channelId);
+
+        Bitmap bitmap = Bitmap.createBitmap(2000, 1000, Bitmap.Config.ARGB_8888);
+        try (OutputStream os = mResolver.openOutputStream(logoUri)) {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
+        }
+        bitmap.recycle();
+        Bitmap logo = waitForLogo(logoUri);
+        assertNotNull(logo);
+        assertEquals(256, logo.getWidth());
+        assertEquals(128, logo.getHeight());
+    }
+
+    public void testChannelLogo_fileNamedAfterContent() throws Exception {
+        long channelId = insertChannel();
+        Uri logoUri = TvContract.buildChannelLogoUri(channelId);
+
+        Bitmap bitmap = Bitmap.createBitmap(64, 32, Bitmap.Config.ARGB_8888);
+        try (OutputStream os = mResolver.openOutputStream(logoUri)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, os);
+        }
+        assertNotNull(waitForLogo(logoUri));
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        try (InputStream is = mResolver.openInputStream(logoUri)) {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = is.read(buffer)) > 0) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format(Locale.US, "%02x", b));
+        }
+        assertTrue("The re-encoded logo should be stored under the hash of its content.",
+                new File(new File(getContext().getFilesDir(), "logos"), hash.toString())
+                        .exists());
+    }
+
+    public void testChannelLogo_sharedBetweenChannels() throws Exception {
+        long channelId1 = insertChannel();
+        long channelId2 = insertChannel();
+        Uri logoUri1 = TvContract.buildChannelLogoUri(channelId1);
+        Uri logoUri2 = TvContract.buildChannelLogoUri(channelId2);
+
+        Bitmap bitmap = Bitmap.createBitmap(64, 32, Bitmap.Config.ARGB_8888);
+        try (OutputStream os = mResolver.openOutputStream(logoUri1)) {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
+        }
+        assertNotNull(waitForLogo(logoUri1));
+        try (OutputStream os = mResolver.openOutputStream(logoUri2)) {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
+        }
+        assertNotNull(waitForLogo(logoUri2));
+
+        // Deleting a channel shouldn't delete the logo file that the other channel still uses.
+        assertEquals(1, mResolver.delete(TvContract.buildChannelUri(channelId1), null, null));
+        Thread.sleep(500);
+        Bitmap logo = waitForLogo(logoUri2);
+        assertNotNull(logo);
+        assertEquals(64, logo.getWidth());
+
+        assertEquals(1, mResolver.delete(logoUri2, null, null));
+        try {
+            mResolver.openInputStream(logoUri2).close();
+            fail("Deleted logo should not be readable.");
+        } catch (FileNotFoundException expected) {
+        }
+    }
+
+    public void testSearchPrograms() {
+        long channelId = insertChannel();
+        long descriptionMatch = insertProgram(channelId, "Evening news", "Weather and football",
+                1000, 2000);
+        long laterTitleMatch = insertProgram(channelId, "Football night", null, 3000, 4000);
+        long titleMatch = insertProgram(channelId, "Football highlights", null, 2000, 3000);
+        insertProgram(channelId, "Cooking show", "Pasta", 4000, 5000);
+
+        assertEquals("Title matches should go first, ordered by start time.",
+                Arrays.asList(titleMatch, laterTitleMatch, descriptionMatch),
+                queryIds(buildProgramSearchUri("football")));
+        assertTrue(queryIds(buildProgramSearchUri("basketball")).isEmpty());
+
+        ContentValues values = new ContentValues();
+        values.put(Programs.COLUMN_TITLE, "Basketball highlights");
+        assertEquals(1, mResolver.update(TvContract.buildProgramUri(titleMatch), values, null,
+                null));
+        assertEquals("Updated title should be searchable.",
+                Arrays.asList(titleMatch), queryIds(buildProgramSearchUri("basketball")));
+
+        assertEquals(1, mResolver.delete(TvContract.buildProgramUri(laterTitleMatch), null, null));
+        assertEquals("Deleted program should not be found.",
+                Arrays.asList(descriptionMatch), queryIds(buildProgramSearchUri("football")));
+
+        assertEquals(1, mResolver.delete(TvContract.buildChannelUri(channelId), null, null));
+        assertTrue("Programs of deleted channel should not be found.",
+                queryIds(buildProgramSearchUri("news")).isEmpty());
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.tv.util;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class EpgRecordReaderTests extends AndroidTestCase {
+    public void testRoundTrip() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EpgRecordWriter writer = new EpgRecordWriter(out);
+        writer.startTable(EpgRecordFormat.TABLE_PROGRAMS, "a", "b", "c", "d", "e");
+        writer.writeRow(-1L, 0.5, "News", new byte[] { 1, 2 },
+                new EpgRecordWriter.ChannelReference(3));
+        writer.writeRow(Long.MAX_VALUE, null, "News", null, true);
+        writer.writeDelete(42);
+        writer.finish();
+        writer.close();
+
+        EpgRecordReader reader = new EpgRecordReader(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(EpgRecordFormat.RECORD_TABLE, reader.next());
+        assertEquals(EpgRecordFormat.TABLE_PROGRAMS, reader.getTable());
+        assertTrue(Arrays.equals(new String[] { "a", "b", "c", "d", "e" },
+                reader.getColumnNames()));
+
+        assertEquals(EpgRecordFormat.RECORD_ROW, reader.next());
+        assertEquals(EpgRecordFormat.VALUE_INTEGER, reader.getType(0));
+        assertEquals(-1L, reader.getLong(0));
+        assertEquals(EpgRecordFormat.VALUE_DOUBLE, reader.getType(1));
+        assertEquals(0.5, reader.getDouble(1));
+        assertEquals(EpgRecordFormat.VALUE_STRING, reader.getType(2));
+        String genre = reader.getString(2);
+        assertEquals("News", genre);
+        assertEquals(EpgRecordFormat.VALUE_BLOB, reader.getType(3));
+        assertTrue(Arrays.equals(new byte[] { 1, 2 }, reader.getBlob(3)));
+        assertEquals(EpgRecordFormat.VALUE_CHANNEL_REFERENCE, reader.getType(4));
+        assertEquals(3, reader.getLong(4));
+
+        assertEquals(EpgRecordFormat.RECORD_ROW, reader.next());
+        assertEquals(Long.MAX_VALUE, reader.getLong(0));
+        assertEquals(EpgRecordFormat.VALUE_NULL, reader.getType(1));
+        assertSame("Repeated strings should come from the dictionary.", genre,
+                reader.getString(2));
+        assertEquals(EpgRecordFormat.VALUE_NULL, reader.getType(3));
+        assertEquals(1, reader.getLong(4));
+
+        assertEquals(EpgRecordFormat.RECORD_DELETE, reader.next());
+        assertEquals(42, reader.getDeletedRowId());
+
+        assertEquals(EpgRecordFormat.RECORD_END, reader.next());
+    }
+
+    public void testTruncatedStream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EpgRecordWriter writer = new EpgRecordWriter(out);
+        writer.startTable(EpgRecordFormat.TABLE_CHANNELS, "a");
+        writer.writeRow("1");
+        writer.close();
+
+        EpgRecordReader reader = new EpgRecordReader(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(EpgRecordFormat.RECORD_TABLE, reader.next());
+        assertEquals(EpgRecordFormat.RECORD_ROW, reader.next());
+        try {
+            reader.next();
+            fail("A stream without an end record should be rejected.");
+        } catch (EOFException expected) {
+        }
+    }
+
+    public void testNegativeChannelReference() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EpgRecordWriter writer = new EpgRecordWriter(out);
+        writer.startTable(EpgRecordFormat.TABLE_PROGRAMS, "a");
+        writer.writeRow(new EpgRecordWriter.ChannelReference(-1));
+        writer.finish();
+        writer.close();
+
+        EpgRecordReader reader = new EpgRecordReader(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(EpgRecordFormat.RECORD_TABLE, reader.next());
+        try {
+            reader.next();
+            fail("A negative channel reference should be rejected.");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testNegativeLength() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EpgRecordWriter writer = new EpgRecordWriter(out);
+        writer.close();
+        // A table record with a column name whose length is -1 as a 10 byte varint.
+        out.write(EpgRecordFormat.RECORD_TABLE);
+        out.write(12);
+        out.write(EpgRecordFormat.TABLE_CHANNELS);
+        out.write(1);
+        for (int i = 0; i < 9; i++) {
+            out.write(0xFF);
+        }
+        out.write(0x01);
+
+        EpgRecordReader reader = new EpgRecordReader(new ByteArrayInputStream(out.toByteArray()));
+        try {
+            reader.next();
+            fail("A negative length should be rejected.");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testAwaitBufferedData() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EpgRecordWriter writer = new EpgRecordWriter(out);
+        writer.startTable(EpgRecordFormat.TABLE_CHANNELS, "a");
+        writer.finish();
+        writer.close();
+
+        EpgRecordReader reader = new EpgRecordReader(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(reader.awaitBufferedData(0));
+        assertEquals(EpgRecordFormat.RECORD_TABLE, reader.next());
+        assertEquals(EpgRecordFormat.RECORD_END, reader.next());
+        assertFalse("Nothing is left to buffer after the end.", reader.awaitBufferedData(5));
+    }
+
+    public void testAwaitBufferedData_partialRecord() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EpgRecordWriter writer = new EpgRecordWriter(out);
+        writer.startTable(EpgRecordFormat.TABLE_CHANNELS, "a");
+        writer.writeRow("A name long enough to be split");
+        writer.close();
+        byte[] bytes = out.toByteArray();
+
+        // The stream stops in the middle of the row.
+        EpgRecordReader reader = new EpgRecordReader(
+                new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 4)));
+        assertEquals(EpgRecordFormat.RECORD_TABLE, reader.next());
+        assertFalse("Only part of the row has arrived.", reader.awaitBufferedData(5));
+    }
+
+    public void testInvalidHeader() throws Exception {
+        try {
+            new EpgRecordReader(new ByteArrayInputStream("<?xml".getBytes("UTF-8")));
+            fail("A stream of another format should be rejected.");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.tv.util;
+
+import android.database.ContentObserver;
+import android.media.tv.TvContract;
+import android.media.tv.TvContract.Channels;
+import android.media.tv.TvContract.Programs;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class NotificationDispatcherTests extends AndroidTestCase {
+    private static final int COLLAPSE_THRESHOLD = 3;
+
+    private static class RecordingContentResolver extends MockContentResolver {
+        final List<Uri> mNotifiedUris = new ArrayList<Uri>();
+
+        @Override
+        public synchronized void notifyChange(Uri uri, ContentObserver observer) {
+            mNotifiedUris.add(uri);
+            notifyAll();
+        }
+    }
+
+    private RecordingContentResolver mResolver;
+    private NotificationDispatcher mDispatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = new RecordingContentResolver();
+        mDispatcher = new NotificationDispatcher(mResolver, 10, COLLAPSE_THRESHOLD);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDispatcher.quit();
+        super.tearDown();
+    }
+
+    private List<Uri> awaitNotifiedUris(int count) throws InterruptedException {
+        long deadlineMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        synchronized (mResolver) {
+            while (mResolver.mNotifiedUris.size() < count) {
+                long remainingMillis = deadlineMillis - System.currentTimeMillis();
+                assertTrue(remainingMillis > 0);
+                mResolver.wait(remainingMillis);
+            }
+        }
+        // Lets the rest of the window be dispatched.
+        Thread.sleep(50);
+        return getNotifiedUris();
+    }
+
+    private List<Uri> getNotifiedUris() {
+        synchronized (mResolver) {
+            return new ArrayList<Uri>(mResolver.mNotifiedUris);
+        }
+    }
+
+    public void testNotifyChange_deliversRightAwayWhenIdle() throws Exception {
+        mDispatcher.quit();
+        mDispatcher = new NotificationDispatcher(mResolver, 60 * 1000, COLLAPSE_THRESHOLD);
+        Uri channelUri = TvContract.buildChannelUri(1);
+        mDispatcher.notifyChange(channelUri);
+
+        // Well before the end of the window.
+        assertEquals(Arrays.asList(channelUri), awaitNotifiedUris(1));
+    }
+
+    public void testNotifyChange_coalescesSameUri() throws Exception {
+        Uri channelUri = TvContract.buildChannelUri(1);
+        mDispatcher.notifyChange(channelUri);
+        awaitNotifiedUris(1);
+        mDispatcher.notifyChange(channelUri);
+        mDispatcher.notifyChange(channelUri);
+        mDispatcher.notifyChange(channelUri);
+
+        // The first change is notified right away, and the ones of its window once.
+        assertEquals(Arrays.asList(channelUri, channelUri), awaitNotifiedUris(2));
+    }
+
+    public void testQuit_flushesPendingUris() throws Exception {
+        mDispatcher.quit();
+        mDispatcher = new NotificationDispatcher(mResolver, 60 * 1000, COLLAPSE_THRESHOLD);
+        Uri channelUri = TvContract.buildChannelUri(1);
+        mDispatcher.notifyChange(channelUri);
+        awaitNotifiedUris(1);
+        mDispatcher.notifyChange(Programs.CONTENT_URI);
+        assertEquals(Arrays.asList(channelUri), getNotifiedUris());
+
+        mDispatcher.quit();
+        assertEquals(Arrays.asList(channelUri, Programs.CONTENT_URI), getNotifiedUris());
+    }
+
+    public void testNotifyChanges_collapsesRowsAboveThreshold() throws Exception {
+        List<Uri> uris = new ArrayList<Uri>();
+        for (int i = 1; i <= COLLAPSE_THRESHOLD + 1; i++) {
+            uris.add(TvContract.buildProgramUri(i));
+        }
+        Uri channelUri = TvContract.buildChannelUri(1);
+        uris.add(channelUri);
+        mDispatcher.notifyChanges(uris);
+
+        assertEquals(new HashSet<Uri>(Arrays.asList(Programs.CONTENT_URI, channelUri)),
+                new HashSet<Uri>(awaitNotifiedUris(2)));
+    }
+
+    public void testNotifyChanges_tableCoversItsRows() throws Exception {
+        mDispatcher.notifyChanges(Arrays.asList(TvContract.buildChannelUri(1),
+                Channels.CONTENT_URI));
+
+        assertEquals(Arrays.asList(Channels.CONTENT_URI), awaitNotifiedUris(1));
+    }
+}